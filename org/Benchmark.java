@@ -0,0 +1,898 @@
+package org.gnet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gnet.client.ClientEventListener;
+import org.gnet.client.GNetClient;
+import org.gnet.client.ServerModel;
+import org.gnet.packet.BinaryPacketCodec;
+import org.gnet.packet.CompressingPacketCodec;
+import org.gnet.packet.Delivery;
+import org.gnet.packet.Frames;
+import org.gnet.packet.Packet;
+import org.gnet.packet.PacketBuffer;
+import org.gnet.packet.PacketCodec;
+import org.gnet.packet.PacketPool;
+import org.gnet.packet.PacketRegistry;
+import org.gnet.packet.PacketView;
+import org.gnet.packet.SerializedPacketCodec;
+import org.gnet.server.ClientModel;
+import org.gnet.server.FlushPolicy;
+import org.gnet.server.GNetServer;
+import org.gnet.server.ServerEngine;
+import org.gnet.server.ServerEventListener;
+import org.gnet.util.SpatialGrid;
+
+public class Benchmark {
+
+	private static final String HOST = "127.0.0.1";
+	private static final int PORT = 43595;
+
+	// Item names for the compression benchmarks inventory packets.
+	private static final String[] ITEMS = { "iron_sword", "bronze_axe",
+			"lobster", "rune_platebody", "coins", "law_rune", "oak_logs",
+			"feather", "shark" };
+
+	/**
+	 * Main entry point into the benchmarks.
+	 *
+	 * @param args
+	 *            The benchmark to run followed by its arguments, e.g.
+	 *            "engine NIO 10000 4" (engine, connections, I/O loops) or
+	 *            "ceiling virtual 50000" (thread kind, connection limit) or
+	 *            "codec" or "compression" or "send" or "broadcast 10000"
+	 *            (largest audience) or "interest 10000" (moving entities) or
+	 *            "datagram 10 10000" (clients, datagrams per client).
+	 */
+	public static void main(final String[] args) throws Exception {
+		final String mode = args.length > 0 ? args[0] : "engine";
+		if (mode.equals("engine")) {
+			engine(args.length > 1 ? ServerEngine.valueOf(args[1])
+					: ServerEngine.NIO,
+					args.length > 2 ? Integer.parseInt(args[2]) : 10000,
+					args.length > 3 ? Integer.parseInt(args[3]) : Runtime
+							.getRuntime().availableProcessors());
+		} else if (mode.equals("ceiling")) {
+			ceiling(args.length > 1 && args[1].equals("virtual"),
+					args.length > 2 ? Integer.parseInt(args[2]) : 50000);
+		} else if (mode.equals("codec")) {
+			codec();
+		} else if (mode.equals("compression")) {
+			compression();
+		} else if (mode.equals("send")) {
+			send();
+		} else if (mode.equals("broadcast")) {
+			broadcast(args.length > 1 ? Integer.parseInt(args[1]) : 10000);
+		} else if (mode.equals("interest")) {
+			interest(args.length > 1 ? Integer.parseInt(args[1]) : 10000);
+		} else if (mode.equals("datagram")) {
+			datagram(args.length > 1 ? Integer.parseInt(args[1]) : 10,
+					args.length > 2 ? Integer.parseInt(args[2]) : 10000);
+		} else {
+			System.err.println("Unknown benchmark: " + mode);
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Holds a number of idle connections open and then measures round trips
+	 * on one more. Run once per engine so both start from a fresh JVM.
+	 */
+	private static void engine(final ServerEngine engine,
+			final int connections, final int ioThreads) throws Exception {
+		final PacketCodec codec = new SerializedPacketCodec();
+		final int baseThreads = threadCount();
+		final long baseHeap = usedHeap();
+
+		final GNetServer server = new GNetServer(HOST, PORT);
+		server.setDebugging(false);
+		server.setEngine(engine);
+		server.setIoThreads(ioThreads);
+		server.setPacketCodec(codec);
+		server.addEventListener(new EchoListener());
+		server.bind();
+		server.start();
+
+		// Open the idle connections.
+		long start = System.nanoTime();
+		final List<SocketChannel> idle = new ArrayList<SocketChannel>();
+		for (int i = 0; i < connections; i++) {
+			idle.add(SocketChannel.open(new InetSocketAddress(HOST, PORT)));
+		}
+		while (server.getOnlineClients() < connections) {
+			if (System.nanoTime() - start > 120000000000L) {
+				System.err.println("Timed out, only "
+						+ server.getOnlineClients() + " clients accepted.");
+				break;
+			}
+			Thread.sleep(10);
+		}
+		final long acceptMillis = (System.nanoTime() - start) / 1000000;
+		final int held = server.getOnlineClients();
+		Thread.sleep(1000);
+
+		// Round trips on an extra, active connection.
+		final int roundTrips = 10000;
+		final Socket socket = new Socket(HOST, PORT);
+		socket.setTcpNoDelay(true);
+		final OutputStream out = new BufferedOutputStream(
+				socket.getOutputStream());
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(
+				socket.getInputStream()));
+		final Packet ping = new Packet("Ping", 1);
+		ping.addEntry("x", Integer.valueOf(1));
+		start = System.nanoTime();
+		for (int i = 0; i < roundTrips; i++) {
+			Frames.write(codec, ping, out);
+			out.flush();
+			Frames.read(codec, in);
+		}
+		final long roundTripNanos = (System.nanoTime() - start) / roundTrips;
+
+		System.out.println("Engine:            " + engine);
+		System.out.println("Idle connections:  " + held);
+		System.out.println("Accept time:       " + acceptMillis + "ms");
+		System.out.println("Server threads:    " + (threadCount() - baseThreads));
+		System.out.println("Heap used:         " + (usedHeap() - baseHeap)
+				/ (1024 * 1024) + "MB");
+		System.out.println("Round trip (avg):  " + roundTripNanos / 1000
+				+ "us");
+
+		socket.close();
+		for (final SocketChannel channel : idle) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Load test for the blocking engine: keeps opening connections until the
+	 * server stops accepting them (or the limit is hit) and reports how far
+	 * it got. Run once with platform and once with virtual threads. Both ends
+	 * live in this JVM, so each connection costs two file descriptors.
+	 */
+	private static void ceiling(final boolean virtual, final int limit)
+			throws Exception {
+		final int baseThreads = threadCount();
+		final long baseHeap = usedHeap();
+
+		final GNetServer server = new GNetServer(HOST, PORT);
+		server.setDebugging(false);
+		server.setPacketCodec(new SerializedPacketCodec());
+		server.setVirtualThreads(virtual);
+		server.addEventListener(new EchoListener());
+		server.bind();
+		server.start();
+
+		final long start = System.nanoTime();
+		final List<SocketChannel> open = new ArrayList<SocketChannel>();
+		String stopReason = "limit reached";
+		try {
+			for (int i = 0; i < limit; i++) {
+				open.add(SocketChannel.open(new InetSocketAddress(HOST, PORT)));
+				if (i % 1000 == 999 && !awaitOnline(server, i + 1, 10000)) {
+					stopReason = "server stopped accepting";
+					break;
+				}
+			}
+		} catch (final Throwable t) {
+			stopReason = t.toString();
+		}
+		awaitOnline(server, open.size(), 10000);
+		final long millis = (System.nanoTime() - start) / 1000000;
+
+		System.out.println("Threads:           "
+				+ (virtual ? "virtual" : "platform"));
+		System.out.println("Connections held:  " + server.getOnlineClients());
+		System.out.println("Stopped because:   " + stopReason);
+		System.out.println("Time:              " + millis + "ms");
+		System.out.println("Platform threads:  "
+				+ (threadCount() - baseThreads));
+		System.out.println("Heap used:         " + (usedHeap() - baseHeap)
+				/ (1024 * 1024) + "MB");
+
+		for (final SocketChannel channel : open) {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Wire size and encode/decode cost of a small movement style packet.
+	 */
+	private static void codec() throws Exception {
+		// Registered packets go out as an opcode instead of their name.
+		PacketRegistry.register("Move", PacketRegistry.FIRST_USER_OPCODE);
+		final Packet packet = movePacket();
+
+		// The legacy transport keeps one stream per connection, so measure
+		// the steady state cost of one more packet on it.
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+		oos.writeObject(packet);
+		oos.flush();
+		final int before = bytes.size();
+		oos.writeObject(movePacket());
+		oos.flush();
+		System.out.println("ObjectOutputStream:     " + (bytes.size() - before)
+				+ " bytes/packet (first packet " + before + ")");
+
+		// Build, encode, decode and read back, boxed entries and typed
+		// fields.
+		final PacketCodec[] codecs = { new SerializedPacketCodec(),
+				new BinaryPacketCodec(), new BinaryPacketCodec() };
+		final int iterations = 200000;
+		for (int c = 0; c < codecs.length; c++) {
+			final PacketCodec codec = codecs[c];
+			final boolean typed = c == 2;
+			final PacketBuffer buffer = new PacketBuffer(256);
+			long start = 0;
+			long allocated = 0;
+			for (int i = 0; i < iterations * 2; i++) {
+				// First half warms up.
+				if (i == iterations) {
+					start = System.nanoTime();
+					allocated = allocatedBytes();
+				}
+				buffer.clear();
+				codec.encode(typed ? typedMovePacket() : movePacket(), buffer);
+				final Packet decoded = codec.decode(ByteBuffer.wrap(
+						buffer.array(), 0, buffer.size()));
+				if (typed) {
+					decoded.getInt("x");
+				} else {
+					decoded.getEntry("x");
+				}
+			}
+			final long nanos = (System.nanoTime() - start) / iterations;
+			allocated = allocated < 0 ? -1 : (allocatedBytes() - allocated)
+					/ iterations;
+			System.out.println(pad(codec.getClass().getSimpleName()
+					+ (typed ? " (typed):" : ":"), 32)
+					+ buffer.size() + " bytes/packet, " + nanos
+					+ "ns build+encode+decode"
+					+ (allocated >= 0 ? ", " + allocated + " bytes allocated"
+							: ""));
+		}
+
+		// Receive a frame, read two fields and forward it: decoding it and
+		// encoding it again versus a view that forwards the raw bytes.
+		final BinaryPacketCodec codec = new BinaryPacketCodec();
+		final PacketBuffer frame = new PacketBuffer(256);
+		codec.encode(typedMovePacket(), frame);
+		final PacketView view = new PacketView();
+		// Cheaper per packet but more code to compile, so warm up longer.
+		final int warmup = iterations * 5;
+		for (int v = 0; v < 2; v++) {
+			final PacketBuffer forwarded = new PacketBuffer(256);
+			long start = 0;
+			long allocated = 0;
+			for (int i = 0; i < warmup + iterations; i++) {
+				if (i == warmup) {
+					start = System.nanoTime();
+					allocated = allocatedBytes();
+				}
+				forwarded.clear();
+				if (v == 1) {
+					forwardView(codec, view, frame, forwarded);
+				} else {
+					forwardDecoded(codec, frame, forwarded);
+				}
+			}
+			final long nanos = (System.nanoTime() - start) / iterations;
+			allocated = allocated < 0 ? -1 : (allocatedBytes() - allocated)
+					/ iterations;
+			System.out.println(pad(v == 1 ? "Forward (PacketView):"
+					: "Forward (decoded):", 32)
+					+ nanos
+					+ "ns read+forward"
+					+ (allocated >= 0 ? ", " + allocated + " bytes allocated"
+							: ""));
+		}
+	}
+
+	private static int forwardDecoded(final BinaryPacketCodec codec,
+			final PacketBuffer frame, final PacketBuffer out) throws IOException {
+		final Packet decoded = codec.decode(ByteBuffer.wrap(frame.array(), 0,
+				frame.size()));
+		final int x = decoded.getInt("x") + decoded.getInt("y");
+		codec.encode(decoded, out);
+		return x;
+	}
+
+	private static int forwardView(final BinaryPacketCodec codec,
+			final PacketView view, final PacketBuffer frame,
+			final PacketBuffer out) throws IOException {
+		view.wrap(frame.array(), 0, frame.size());
+		try {
+			final int x = view.getInt("x") + view.getInt("y");
+			codec.encode(view, out);
+			return x;
+		} finally {
+			view.release();
+		}
+	}
+
+	/**
+	 * Cost of broadcasting one packet per tick as the audience grows, encoding
+	 * it for every recipient versus once for everyone. A selector thread
+	 * drains all connections so the server never waits on a full socket.
+	 */
+	private static void broadcast(final int maxClients) throws Exception {
+		final PacketCodec codec = new BinaryPacketCodec();
+		final GNetServer server = new GNetServer(HOST, PORT);
+		server.setDebugging(false);
+		server.setEngine(ServerEngine.NIO);
+		server.setPacketCodec(codec);
+		server.setFlushPolicy(FlushPolicy.END_OF_TICK);
+		server.addEventListener(new EchoListener());
+		server.bind();
+		server.start();
+
+		final Drain drain = new Drain();
+
+		final Packet packet = movePacket();
+		final int frameSize = Frames.encode(codec, packet).size();
+		final int ticks = 200;
+		final List<SocketChannel> open = new ArrayList<SocketChannel>();
+		System.out.println("Packet: " + frameSize + " bytes, " + ticks
+				+ " ticks per run, times per tick");
+		System.out.println("Clients   per-recipient (queue/delivered)"
+				+ "   encode-once (queue/delivered)");
+		for (int clients = 100; clients <= maxClients; clients *= clients < 1000 ? 10
+				: 2) {
+			while (open.size() < clients) {
+				final SocketChannel channel = SocketChannel
+						.open(new InetSocketAddress(HOST, PORT));
+				open.add(channel);
+				drain.add(channel);
+			}
+			if (!awaitOnline(server, clients, 60000)) {
+				System.err.println("Timed out, only "
+						+ server.getOnlineClients() + " clients accepted.");
+				break;
+			}
+
+			// The first runs warm up.
+			final long expected = (long) frameSize * clients * ticks;
+			broadcastTicks(server, packet, ticks, drain.received, expected, false);
+			broadcastTicks(server, packet, ticks, drain.received, expected, true);
+			final long[] perRecipient = broadcastTicks(server, packet, ticks,
+					drain.received, expected, false);
+			final long[] encodeOnce = broadcastTicks(server, packet, ticks,
+					drain.received, expected, true);
+			System.out.println(pad(String.valueOf(clients), 10)
+					+ pad(perRecipient[0] / 1000 + "us / " + perRecipient[1]
+							/ 1000 + "us", 38) + encodeOnce[0] / 1000
+					+ "us / " + encodeOnce[1] / 1000 + "us");
+		}
+		// The drain thread owns the channels, exiting closes them.
+	}
+
+	/**
+	 * @return Average nanos per tick until the packet was queued for every
+	 *         client, and until every client received it.
+	 */
+	private static long[] broadcastTicks(final GNetServer server,
+			final Packet packet, final int ticks, final AtomicLong received,
+			final long expected, final boolean encodeOnce)
+			throws InterruptedException {
+		final long target = received.get() + expected;
+		final long start = System.nanoTime();
+		for (int i = 0; i < ticks; i++) {
+			if (encodeOnce) {
+				server.sendToAll(packet);
+			} else {
+				for (final ClientModel client : server.getClients()) {
+					client.sendPacket(packet);
+				}
+			}
+			server.flush();
+		}
+		final long queued = System.nanoTime() - start;
+		final long deadline = System.currentTimeMillis() + 60000;
+		while (received.get() < target
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(1);
+		}
+		final long delivered = System.nanoTime() - start;
+		return new long[] { queued / ticks, delivered / ticks };
+	}
+
+	/**
+	 * Time and allocation per packet sent to one client: building a new
+	 * packet for every send, boxed and typed, versus reusing pooled ones.
+	 * Allocation is counted on the sending thread only.
+	 */
+	private static void send() throws Exception {
+		PacketRegistry.register("Move", PacketRegistry.FIRST_USER_OPCODE);
+		final GNetServer server = new GNetServer(HOST, PORT);
+		server.setDebugging(false);
+		server.setEngine(ServerEngine.NIO);
+		server.setPacketCodec(new BinaryPacketCodec());
+		server.setFlushPolicy(FlushPolicy.END_OF_TICK);
+		server.addEventListener(new EchoListener());
+		server.bind();
+		server.start();
+
+		final Drain drain = new Drain();
+		drain.add(SocketChannel.open(new InetSocketAddress(HOST, PORT)));
+		awaitOnline(server, 1, 10000);
+		final ClientModel client = server.getClients().iterator().next();
+		final int frameSize = Frames.encode(server.getPacketCodec(),
+				movePacket()).size();
+
+		final String[] modes = { "new Packet, addEntry:", "new Packet, putInt:",
+				"PacketPool, putInt:" };
+		final int packets = 1000000;
+		final int perTick = 1000;
+		for (int mode = 0; mode < modes.length; mode++) {
+			long nanos = 0;
+			long allocated = 0;
+			// The first run warms up.
+			for (int run = 0; run < 2; run++) {
+				final long start = System.nanoTime();
+				final long received = drain.received.get();
+				allocated = allocatedBytes();
+				for (int i = 0; i < packets; i++) {
+					client.sendPacket(mode == 0 ? movePacket()
+							: mode == 1 ? typedMovePacket() : pooledMovePacket());
+					if (i % perTick == perTick - 1) {
+						// End of tick, wait for the client to catch up.
+						server.flush();
+						final long target = received + (long) frameSize
+								* (i + 1);
+						while (drain.received.get() < target) {
+							Thread.yield();
+						}
+					}
+				}
+				nanos = (System.nanoTime() - start) / packets;
+				allocated = allocated < 0 ? -1 : (allocatedBytes() - allocated)
+						/ packets;
+			}
+			System.out.println(pad(modes[mode], 24) + nanos + "ns/packet"
+					+ (allocated >= 0 ? ", " + allocated + " bytes allocated"
+							: ""));
+		}
+	}
+
+	/**
+	 * Encode and decode a large inventory packet and a small state packet
+	 * raw, deflated and deflated with a preset dictionary. The extra CPU
+	 * time is put against the bytes it saved.
+	 */
+	private static void compression() throws Exception {
+		final BinaryPacketCodec binary = new BinaryPacketCodec();
+		final byte[] dictionary = CompressingPacketCodec.buildDictionary(
+				binary, inventoryPacket(7), statePacket(7));
+		final PacketCodec[] codecs = {
+				binary,
+				new CompressingPacketCodec(binary, 0),
+				new CompressingPacketCodec(binary, 0, 1, dictionary) };
+		final String[] names = { "raw", "deflate", "deflate+dictionary" };
+		final int iterations = 50000;
+		for (int kind = 0; kind < 2; kind++) {
+			System.out.println(kind == 0 ? "Inventory:" : "State:");
+			long rawNanos = 0;
+			long rawBytes = 0;
+			for (int c = 0; c < codecs.length; c++) {
+				final PacketCodec codec = codecs[c];
+				final PacketBuffer buffer = new PacketBuffer(4096);
+				long start = 0;
+				long bytes = 0;
+				for (int i = 0; i < iterations * 2; i++) {
+					// First half warms up.
+					if (i == iterations) {
+						start = System.nanoTime();
+						bytes = 0;
+					}
+					buffer.clear();
+					codec.encode(kind == 0 ? inventoryPacket(i)
+							: statePacket(i), buffer);
+					bytes += buffer.size();
+					codec.decode(ByteBuffer.wrap(buffer.array(), 0,
+							buffer.size()));
+				}
+				final long nanos = (System.nanoTime() - start) / iterations;
+				bytes /= iterations;
+				if (c == 0) {
+					rawNanos = nanos;
+					rawBytes = bytes;
+				}
+				final long saved = rawBytes - bytes;
+				System.out.println("  "
+						+ pad(names[c] + ":", 22)
+						+ bytes
+						+ " bytes/packet, "
+						+ nanos
+						+ "ns encode+decode"
+						+ (c > 0 ? ", " + (saved * 100 / rawBytes)
+								+ "% saved, "
+								+ (saved > 0 ? String.format("%.1f",
+										(double) (nanos - rawNanos) / saved)
+										+ "ns per byte saved" : "nothing saved")
+								: ""));
+			}
+		}
+	}
+
+	/**
+	 * Entities walking around a world, each looking up who is near it every
+	 * tick, through the grid and by checking every entity. Moves are queued
+	 * and applied by one flush per tick.
+	 */
+	private static void interest(final int count) throws Exception {
+		final float world = 10000;
+		final float radius = 100;
+		final int ticks = 100;
+		final Random random = new Random(7);
+		final Integer[] ids = new Integer[count];
+		final float[] x = new float[count];
+		final float[] y = new float[count];
+		for (int i = 0; i < count; i++) {
+			ids[i] = Integer.valueOf(i);
+			x[i] = random.nextFloat() * world;
+			y[i] = random.nextFloat() * world;
+		}
+		final SpatialGrid<Integer> grid = new SpatialGrid<Integer>(radius);
+		final long[] found = new long[1];
+		final SpatialGrid.Visitor<Integer> counter = new SpatialGrid.Visitor<Integer>() {
+			@Override
+			protected void visit(final Integer item) {
+				found[0]++;
+			}
+		};
+		long updateNanos = 0;
+		long flushNanos = 0;
+		long queryNanos = 0;
+		long queries = 0;
+		// The first half warms up.
+		for (int tick = 0; tick < ticks * 2; tick++) {
+			if (tick == ticks) {
+				updateNanos = flushNanos = queryNanos = queries = found[0] = 0;
+			}
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				x[i] = Math.min(world, Math.max(0, x[i] + random.nextFloat()
+						* 10 - 5));
+				y[i] = Math.min(world, Math.max(0, y[i] + random.nextFloat()
+						* 10 - 5));
+				grid.update(ids[i], x[i], y[i]);
+			}
+			updateNanos += System.nanoTime() - start;
+			start = System.nanoTime();
+			grid.flush();
+			flushNanos += System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				grid.query(x[i], y[i], radius, counter);
+			}
+			queryNanos += System.nanoTime() - start;
+			queries += count;
+		}
+		final long average = found[0] / queries;
+		System.out.println(count + " entities, radius " + (int) radius
+				+ " in a " + (int) world + "x" + (int) world + " world, "
+				+ average + " found per query");
+		System.out.println(pad("update:", 16) + updateNanos / ticks / 1000
+				+ "us per tick");
+		System.out.println(pad("flush:", 16) + flushNanos / ticks / 1000
+				+ "us per tick");
+		System.out.println(pad("grid query:", 16) + queryNanos / queries
+				+ "ns per query, " + queryNanos / ticks / 1000 + "us per tick");
+
+		// Checking every entity, a sample of queries is plenty.
+		final float squared = radius * radius;
+		final int sample = Math.min(count, 1000);
+		long scanned = 0;
+		long start = 0;
+		for (int run = 0; run < 2; run++) {
+			start = System.nanoTime();
+			for (int q = 0; q < sample; q++) {
+				for (int i = 0; i < count; i++) {
+					final float dx = x[i] - x[q];
+					final float dy = y[i] - y[q];
+					if (dx * dx + dy * dy <= squared) {
+						scanned++;
+					}
+				}
+			}
+		}
+		final long scanNanos = (System.nanoTime() - start) / sample;
+		System.out.println(pad("full scan:", 16) + scanNanos
+				+ "ns per query, " + scanNanos * count / 1000
+				+ "us per tick, " + scanned / (2 * sample) + " found per query");
+	}
+
+	/**
+	 * Sends sequenced datagrams to clients over loopback, which echo them
+	 * back the same way, and reports what got lost or arrived too late in
+	 * each direction.
+	 */
+	private static void datagram(final int clients, final int count)
+			throws Exception {
+		final GNetServer server = new GNetServer(HOST, PORT);
+		server.setDebugging(false);
+		server.setEngine(ServerEngine.NIO);
+		server.setPacketCodec(new BinaryPacketCodec());
+		server.setUdpPort(0);
+		final AtomicLong echoes = new AtomicLong();
+		server.addEventListener(new EchoListener() {
+			@Override
+			protected void packetReceived(final ClientModel client,
+					final Packet packet) {
+				echoes.incrementAndGet();
+			}
+		});
+		server.bind();
+		server.start();
+
+		final AtomicLong received = new AtomicLong();
+		final List<GNetClient> open = new ArrayList<GNetClient>();
+		for (int i = 0; i < clients; i++) {
+			final GNetClient client = new GNetClient(HOST, PORT);
+			client.setDebugging(false);
+			client.setPacketCodec(new BinaryPacketCodec());
+			client.setUdpEnabled(true);
+			client.addEventListener(new ClientEventListener() {
+				@Override
+				protected void clientConnected(final ServerModel serverModel) {
+				}
+
+				@Override
+				protected void clientDisconnected(final ServerModel serverModel) {
+				}
+
+				@Override
+				protected void packetReceived(final ServerModel serverModel,
+						final Packet packet) {
+					received.incrementAndGet();
+					final Packet echo = new Packet("Echo", 1);
+					echo.addEntry("seq", packet.getEntry("seq"));
+					serverModel.sendPacket(echo, Delivery.UNRELIABLE_SEQUENCED);
+				}
+
+				@Override
+				protected void debugMessage(final String msg) {
+				}
+
+				@Override
+				protected void errorMessage(final String msg) {
+				}
+			});
+			client.bind();
+			client.start();
+			open.add(client);
+		}
+		final long deadline = System.currentTimeMillis() + 10000;
+		for (final GNetClient client : open) {
+			while (!client.isDatagramChannelUp()) {
+				if (System.currentTimeMillis() > deadline) {
+					System.err.println("Timed out waiting for the datagram channels.");
+					return;
+				}
+				Thread.sleep(5);
+			}
+		}
+
+		final long start = System.nanoTime();
+		for (int seq = 0; seq < count; seq++) {
+			for (final ClientModel client : server.getClients()) {
+				final Packet ping = new Packet("Ping", 1);
+				ping.addEntry("seq", Integer.valueOf(seq));
+				client.sendPacket(ping, Delivery.UNRELIABLE_SEQUENCED);
+			}
+			if (seq % 100 == 99) {
+				// Bursts beyond the socket buffers would only measure those.
+				Thread.sleep(1);
+			}
+		}
+		final long sendNanos = System.nanoTime() - start;
+		// Let the last echoes come in.
+		Thread.sleep(500);
+
+		final long sent = (long) clients * count;
+		System.out.println("Datagrams: " + sent + " sent in " + sendNanos
+				/ 1000000 + "ms (" + sent * 1000000000L / Math.max(1, sendNanos)
+				+ "/s)");
+		System.out.println("Server to clients: " + received.get()
+				+ " delivered, " + (sent - received.get())
+				+ " lost or dropped as stale");
+		System.out.println("Clients to server: " + echoes.get()
+				+ " delivered, " + (received.get() - echoes.get())
+				+ " lost or dropped as stale");
+		// Exiting closes the clients.
+	}
+
+	private static Packet inventoryPacket(final int seed) {
+		final Packet packet = new Packet("Inventory", 30);
+		packet.addEntry("owner", Integer.valueOf(seed & 1023));
+		for (int slot = 0; slot < 28; slot++) {
+			final int item = (seed + slot * 31) % 9;
+			packet.addEntry("slot" + slot, ITEMS[item] + ":"
+					+ ((seed + slot) % 64 + 1) + ":durability="
+					+ ((seed * 7 + slot) % 100));
+		}
+		return packet;
+	}
+
+	private static Packet statePacket(final int seed) {
+		final Packet packet = new Packet("EntityState", 6);
+		packet.addEntry("entity", Integer.valueOf(seed & 4095));
+		packet.addEntry("x", Integer.valueOf(3200 + seed % 64));
+		packet.addEntry("y", Integer.valueOf(3200 - seed % 64));
+		packet.addEntry("animation", seed % 3 == 0 ? "walk" : "idle");
+		packet.addEntry("health", Integer.valueOf(seed % 100));
+		packet.addEntry("name", "Goblin");
+		return packet;
+	}
+
+	private static Packet movePacket() {
+		final Packet packet = new Packet("Move", 4);
+		packet.addEntry("x", Integer.valueOf(3200));
+		packet.addEntry("y", Integer.valueOf(3200));
+		packet.addEntry("z", Integer.valueOf(0));
+		packet.addEntry("running", Boolean.TRUE);
+		return packet;
+	}
+
+	private static Packet pooledMovePacket() {
+		final Packet packet = PacketPool.acquire(
+				PacketRegistry.FIRST_USER_OPCODE, 4);
+		packet.putInt("x", 3200);
+		packet.putInt("y", 3200);
+		packet.putInt("z", 0);
+		packet.putBoolean("running", true);
+		return packet;
+	}
+
+	private static Packet typedMovePacket() {
+		final Packet packet = new Packet("Move", 4);
+		packet.putInt("x", 3200);
+		packet.putInt("y", 3200);
+		packet.putInt("z", 0);
+		packet.putBoolean("running", true);
+		return packet;
+	}
+
+	/**
+	 * @return Bytes allocated by this thread so far, -1 if the JVM can't
+	 *         tell.
+	 */
+	private static long allocatedBytes() {
+		final java.lang.management.ThreadMXBean threads = ManagementFactory
+				.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static String pad(final String text, final int width) {
+		final StringBuilder builder = new StringBuilder(text);
+		while (builder.length() < width) {
+			builder.append(' ');
+		}
+		return builder.toString();
+	}
+
+	private static boolean awaitOnline(final GNetServer server,
+			final int expected, final long timeoutMillis)
+			throws InterruptedException {
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (server.getOnlineClients() < expected) {
+			if (System.currentTimeMillis() > deadline) {
+				return false;
+			}
+			Thread.sleep(5);
+		}
+		return true;
+	}
+
+	private static int threadCount() {
+		return ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+
+	private static long usedHeap() {
+		final Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * Reads and throws away everything arriving on its channels, so the
+	 * server never waits on a full socket.
+	 */
+	private static class Drain implements Runnable {
+
+		final AtomicLong received = new AtomicLong();
+		private final Selector selector;
+		private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<SocketChannel>();
+
+		Drain() throws IOException {
+			selector = Selector.open();
+			final Thread thread = new Thread(this, "Benchmark-Drain");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		void add(final SocketChannel channel) {
+			pending.add(channel);
+			selector.wakeup();
+		}
+
+		public void run() {
+			final ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+			try {
+				while (true) {
+					selector.select();
+					SocketChannel channel;
+					while ((channel = pending.poll()) != null) {
+						channel.configureBlocking(false);
+						channel.register(selector, SelectionKey.OP_READ);
+					}
+					final Iterator<SelectionKey> keys = selector.selectedKeys()
+							.iterator();
+					while (keys.hasNext()) {
+						final SelectionKey key = keys.next();
+						keys.remove();
+						int read;
+						buffer.clear();
+						while ((read = ((SocketChannel) key.channel())
+								.read(buffer)) > 0) {
+							received.addAndGet(read);
+							buffer.clear();
+						}
+					}
+				}
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static class EchoListener extends ServerEventListener {
+
+		@Override
+		protected void clientConnected(final ClientModel client) {
+		}
+
+		@Override
+		protected void clientDisconnected(final ClientModel client) {
+		}
+
+		@Override
+		protected void packetReceived(final ClientModel client,
+				final Packet packet) {
+			client.sendPacket(packet);
+		}
+
+		@Override
+		protected void debugMessage(final String msg) {
+		}
+
+		@Override
+		protected void errorMessage(final String msg) {
+		}
+	}
+
+}
@@ -0,0 +1,11 @@
+package org.gnet.client;
+
+import org.gnet.packet.Packet;
+
+/**
+ * Handles one kind of packet, see
+ * {@link GNetClient#addPacketHandler(int, ClientPacketHandler)}.
+ */
+public abstract class ClientPacketHandler {
+	protected abstract void handle(ServerModel server, Packet packet);
+}
@@ -1,15 +1,36 @@
 package org.gnet.client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
-
+import java.util.Arrays;
+
+import org.gnet.packet.BinaryPacketCodec;
+import org.gnet.packet.BoundedObjectInputStream;
+import org.gnet.packet.BoundedObjectOutputStream;
+import org.gnet.packet.CompressingPacketCodec;
+import org.gnet.packet.Delivery;
+import org.gnet.packet.Frames;
 import org.gnet.packet.Packet;
+import org.gnet.packet.PacketCodec;
+import org.gnet.packet.PacketRegistry;
+import org.gnet.packet.PacketView;
+import org.gnet.packet.StreamResetPolicy;
+import org.gnet.util.Log;
+import org.gnet.util.LogLevel;
+import org.gnet.util.LogSink;
+import org.gnet.util.Threads;
+import org.gnet.util.WorkerPool;
 
 public class GNetClient {
 
@@ -23,9 +44,52 @@ public class GNetClient {
 	private Thread clientThread;
 	private ObjectOutputStream oos;
 	private ObjectInputStream ois;
+	// Swapped by the reader when a handshake brings a dictionary.
+	private volatile PacketCodec packetCodec;
+	private StreamResetPolicy streamResetPolicy;
+	private DataInputStream in;
+	private boolean packetViews;
+	// Reused for every received frame when packet views are on.
+	private PacketView view;
 	boolean connected;
 	private ServerModel serverModel;
-	private boolean debugging;
+	private volatile boolean debugging;
+
+	// Messages go to the console while debugging, to the listener otherwise.
+	final Log log = new Log(new LogSink() {
+		@Override
+		protected void write(final LogLevel level, final String message) {
+			final boolean error = level.compareTo(LogLevel.WARN) >= 0;
+			if (!debugging && clientEventListener != null) {
+				// Let the user handle the message.
+				if (error) {
+					clientEventListener.errorMessage(message);
+				} else {
+					clientEventListener.debugMessage(message);
+				}
+			} else {
+				(error ? System.err : System.out).println((debugging
+						? "GNetClient -> " : "GNetClient2 -> ") + message);
+			}
+		}
+	});
+	private boolean virtualThreads;
+	private boolean workerThread;
+	private int workerQueueCapacity = 1024;
+	private WorkerPool<ServerModel> worker;
+	private boolean udpEnabled;
+	volatile UdpChannel udp;
+	// Session UID, known once the handshake arrived.
+	private volatile int uid = -1;
+	private volatile Replica replica;
+
+	// Lifecycle events, queued for the worker like packets so they stay in
+	// order with them.
+	private static final Object CONNECTED = new Object();
+	private static final Object DISCONNECTED = new Object();
+
+	// Handlers by opcode, replaced on change so dispatch never locks.
+	private volatile ClientPacketHandler[] packetHandlers = new ClientPacketHandler[0];
 
 	public GNetClient(final String host, final int port) {
 		this.host = host;
@@ -35,25 +99,24 @@ public class GNetClient {
 	}
 
 	private void init() {
-		debug("Obtaining target host...");
+		log.debug("Obtaining target host...");
 		try {
 
 			// Obtain our target host.
 			targetHost = InetAddress.getByName(host);
-			debug("Target host obtained! (" + targetHost.getHostName() + ")");
+			log.debug("Target host obtained! ({})", targetHost.getHostName());
 
 			// Do some internal initializing.
-			clientThread = new Thread() {
-				@Override
+			clientThread = Threads.newThread(new Runnable() {
 				public void run() {
 					clientLoop();
 				}
-			};
+			}, "GNetClient", virtualThreads);
 
 			// Mark initialized as true.
 			initialized = true;
 		} catch (final UnknownHostException e) {
-			error("Failed to find target host!");
+			log.error("Failed to find target host!");
 			e.printStackTrace();
 			initialized = false;
 			return;
@@ -63,23 +126,67 @@ public class GNetClient {
 
 	protected void clientLoop() {
 		try {
-			// Init client object output stream.
-			oos = new ObjectOutputStream(clientSocket.getOutputStream());
+			if (packetCodec != null) {
+				// Framed transport, no stream headers to exchange.
+				final OutputStream out = new BufferedOutputStream(
+						clientSocket.getOutputStream());
+				in = new DataInputStream(new BufferedInputStream(
+						clientSocket.getInputStream()));
+				if (packetViews && packetCodec instanceof BinaryPacketCodec) {
+					view = new PacketView();
+				}
 
-			// Run initial oos flush. (Prevents hanging)
-			oos.flush();
+				// Init ServerModel.
+				serverModel = new ServerModel(this, out);
+			} else if (streamResetPolicy != null) {
+				// Bounded streams, same handshake as the plain ones below.
+				oos = new BoundedObjectOutputStream(
+						clientSocket.getOutputStream(), streamResetPolicy);
+				oos.flush();
+				ois = new BoundedObjectInputStream(
+						clientSocket.getInputStream(), streamResetPolicy);
+
+				// Init ServerModel.
+				serverModel = new ServerModel(this, oos, ois);
+			} else {
+				// Init client object output stream.
+				oos = new ObjectOutputStream(clientSocket.getOutputStream());
 
-			// Init client object input stream.
-			ois = new ObjectInputStream(clientSocket.getInputStream());
+				// Run initial oos flush. (Prevents hanging)
+				oos.flush();
 
-			// Init ServerModel.
-			serverModel = new ServerModel(this, oos, ois);
+				// Init client object input stream.
+				ois = new ObjectInputStream(clientSocket.getInputStream());
+
+				// Init ServerModel.
+				serverModel = new ServerModel(this, oos, ois);
+			}
 
 			// Mark connected as true.
 			connected = true;
 
+			if (replica != null) {
+				// The first acknowledgement asks the server for updates.
+				final Packet ack = new Packet(PacketRegistry.REPLICATION_ACK, 1);
+				ack.addEntry("tick", Long.valueOf(-1));
+				serverModel.sendPacket(ack);
+			}
+
+			if (workerThread) {
+				worker = new WorkerPool<ServerModel>("GNetClient-Worker", 1,
+						workerQueueCapacity, virtualThreads,
+						new WorkerPool.Handler<ServerModel>() {
+							@Override
+							protected void handle(final ServerModel server,
+									final Object message) {
+								deliver(message);
+							}
+						});
+				worker.start();
+			}
+
 			// Notify about clientConnected
-			clientEventListener.clientConnected(serverModel);
+			dispatch(CONNECTED);
 
 			// While the client is connected:
 			while (connected) {
@@ -88,37 +195,44 @@ public class GNetClient {
 				Object incoming = null;
 				try {
 
+					if (in != null) {
+						// Framed transport, blocks until a whole frame arrived.
+						if (view != null) {
+							Frames.read(in, view);
+							try {
+								handlePacket(view);
+							} finally {
+								view.release();
+							}
+						} else {
+							handlePacket(Frames.read(packetCodec, in));
+						}
+						continue;
+					}
+
 					// If the incoming data != null
 					if ((incoming = ois.readObject()) != null) {
 						if (incoming instanceof Packet) {
-							final Packet p = (Packet) incoming;
-							if (p.getPacketName()
-									.equals("ClientShutdownPacket")) {
-								boolean value = (Boolean) p
-										.getEntry("shutdownClient");
-								if (value) {
-									debug("ClientShutdownPacket received! (shutting down)");
-									clientEventListener
-											.clientDisconnected(serverModel);
-									shutDown();
-								}
-							}
-							clientEventListener.packetReceived(serverModel, p);
-							debug("Incoming packet from server: "
-									+ p.getPacketName());
+							handlePacket((Packet) incoming);
 						} else {
-							debug("Incoming object from server: " + incoming);
+							log.debug("Incoming object from server: {}", incoming);
 						}
 					} else {
 						// DATA = NULL
 						// (No incoming data at the moment ^__^)
 						continue;
 					}
+				} catch (final EOFException e) {
+					log.debug("The server has closed the connection, we've been disconnected as a result.");
+					connected = false;
+					dispatch(DISCONNECTED);
+					shutDown();
+					continue;
 				} catch (final SocketException e) {
 					if (e.getLocalizedMessage().equals("Connection reset")) {
-						debug("The server has shutdown, we've been disconnected as a result.");
+						log.debug("The server has shutdown, we've been disconnected as a result.");
 						connected = false;
-						clientEventListener.clientDisconnected(serverModel);
+						dispatch(DISCONNECTED);
 						shutDown();
 						continue;
 					} else {
@@ -126,24 +240,162 @@ public class GNetClient {
 					}
 				} catch (final ClassNotFoundException e) {
 					e.printStackTrace();
-					clientEventListener.clientDisconnected(serverModel);
+					dispatch(DISCONNECTED);
 					shutDown();
 					continue;
 				} catch (final IOException e) {
 					e.printStackTrace();
-					clientEventListener.clientDisconnected(serverModel);
+					dispatch(DISCONNECTED);
 					shutDown();
 					continue;
 				}
 			}
 		} catch (final IOException e) {
 			e.printStackTrace();
+		} finally {
+			if (worker != null) {
+				// Nothing more will be read, let the worker finish up.
+				worker.shutdown();
+			}
+		}
+	}
+
+	private void handlePacket(final Packet p) {
+		if (p.getOpcode() == PacketRegistry.HANDSHAKE) {
+			handshake(p);
+			return;
+		}
+		if (p.getOpcode() == PacketRegistry.REPLICATION_UPDATE) {
+			if (replica != null) {
+				replicate(p);
+			}
+			return;
+		}
+		if (p.getOpcode() == PacketRegistry.CLIENT_SHUTDOWN) {
+			boolean value = (Boolean) p.getEntry("shutdownClient");
+			if (value) {
+				log.debug("ClientShutdownPacket received! (shutting down)");
+				dispatch(DISCONNECTED);
+				shutDown();
+			}
+		}
+		dispatch(p);
+		log.trace("Incoming packet from server: {}", p.getPacketName());
+	}
+
+	/**
+	 * Adopt the connection settings the server sent.
+	 */
+	private void handshake(final Packet p) {
+		if (p.contains("uid")) {
+			uid = p.getInt("uid");
+		}
+		if (p.contains("udpPort") && udpEnabled && packetCodec != null
+				&& udp == null && uid != -1) {
+			openUdp(p.getInt("udpPort"));
+		}
+		if (p.contains("dictionary")
+				&& packetCodec instanceof CompressingPacketCodec) {
+			packetCodec = ((CompressingPacketCodec) packetCodec)
+					.withDictionary(p.getBytes("dictionary"));
+			log.debug("Compression dictionary received ({} bytes).",
+					p.getBytes("dictionary").length);
+		}
+	}
+
+	/**
+	 * Apply a replication update and acknowledge it.
+	 */
+	private void replicate(final Packet p) {
+		try {
+			if (replica.apply(p)) {
+				final Packet ack = new Packet(PacketRegistry.REPLICATION_ACK, 1);
+				ack.addEntry("tick", Long.valueOf(replica.getTick()));
+				serverModel.sendPacket(ack, Delivery.UNRELIABLE_SEQUENCED);
+			}
+		} catch (final IOException e) {
+			log.error("Bad replication update: {}", e.getMessage());
+		}
+	}
+
+	private void openUdp(final int udpPort) {
+		try {
+			final UdpChannel channel = new UdpChannel(this, targetHost,
+					udpPort, uid);
+			channel.start(virtualThreads);
+			udp = channel;
+			log.debug("Datagram channel opened to port {}.", udpPort);
+		} catch (final IOException e) {
+			log.error("Failed to open the datagram channel, staying on TCP.");
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Handle a packet that arrived as a datagram, called by the datagram
+	 * thread.
+	 */
+	void datagramReceived(final Packet p) {
+		if (p.getOpcode() == PacketRegistry.REPLICATION_UPDATE) {
+			if (replica != null) {
+				replicate(p);
+			}
+			return;
+		}
+		if (p.getOpcode() != PacketRegistry.UNREGISTERED
+				&& p.getOpcode() < PacketRegistry.FIRST_USER_OPCODE) {
+			// Connection control stays on TCP.
+			return;
+		}
+		dispatch(p);
+		log.trace("Incoming datagram from server: {}", p.getPacketName());
+	}
+
+	/**
+	 * Hand a packet or lifecycle event to the listener, on the worker thread
+	 * if there is one and right here otherwise.
+	 */
+	private void dispatch(final Object message) {
+		if (worker == null) {
+			deliver(message);
+		} else if (message instanceof PacketView) {
+			// The view is reused for the next frame as soon as we return.
+			worker.submit(0, serverModel, ((PacketView) message).toPacket());
+		} else {
+			worker.submit(0, serverModel, message);
+		}
+	}
+
+	private void deliver(final Object message) {
+		if (message == CONNECTED) {
+			clientEventListener.clientConnected(serverModel);
+		} else if (message == DISCONNECTED) {
+			clientEventListener.clientDisconnected(serverModel);
+		} else {
+			deliver((Packet) message);
+		}
+	}
+
+	/**
+	 * Hand a packet to its opcodes handler, or the listener if it has none.
+	 */
+	private void deliver(final Packet p) {
+		final int opcode = p.getOpcode();
+		final ClientPacketHandler[] handlers = packetHandlers;
+		if (opcode < handlers.length && handlers[opcode] != null) {
+			handlers[opcode].handle(serverModel, p);
+		} else {
+			clientEventListener.packetReceived(serverModel, p);
 		}
 	}
 
 	private void shutDown() {
 
-		serverModel.sendPacket(new Packet("ShuttingDown", 0));
+		serverModel.sendPacket(new Packet(PacketRegistry.SHUTTING_DOWN, 0));
+		if (udp != null) {
+			udp.stop();
+			udp = null;
+		}
 		try {
 			// Attempt to close the client socket.
 			if (clientSocket != null) {
@@ -173,24 +425,24 @@ public class GNetClient {
 			init();
 		}
 		try {
-			debug("Attempting to bind to server on address: " + host + " || "
-					+ port);
+			log.debug("Attempting to bind to server on address: {} || {}",
+					host, port);
 			clientSocket = new Socket(targetHost, port);
 
 			// If binding has completed.
 			if (clientSocket.isBound()) {
-				debug("Binding completed.");
+				log.debug("Binding completed.");
 				binded = true;
 				return;
 			} else {
 				// Binding has failed :oFS
-				debug("Binding failed.");
+				log.debug("Binding failed.");
 				binded = false;
 				return;
 			}
 		} catch (final ConnectException e) {
 			if (e.getLocalizedMessage().equals("Connection refused: connect")) {
-				error("Failed to bind, no server on address!");
+				log.error("Failed to bind, no server on address!");
 				return;
 			} else {
 				e.printStackTrace();
@@ -207,51 +459,50 @@ public class GNetClient {
 	}
 
 	public void start() {
-		debug("Attempting to start client...");
+		log.debug("Attempting to start client...");
 		if (!binded) {
 			// Something went wrong :o
-			error("Cannot start(), binding failed.");
+			log.error("Cannot start(), binding failed.");
 			return;
 		}
 
 		// Start the clients thread.
 		clientThread.start();
 
-		debug("Client started!");
+		log.debug("Client started!");
 	}
 
 	public void addEventListener(final ClientEventListener clientEventListener) {
 		this.clientEventListener = clientEventListener;
 	}
 
-	void debug(final String msg) {
-		if (!debugging) {
-			// Let the user handle the message.
-			if (clientEventListener != null) {
-				clientEventListener.debugMessage(msg);
-			} else if (clientEventListener == null) {
-				System.out.println("GNetClient2 -> " + msg);
-			}
-			return;
-		} else if (debugging) {
-			System.out.println("GNetClient -> " + msg);
-			return;
+	/**
+	 * Route every packet with the opcode to the handler instead of
+	 * {@link ClientEventListener#packetReceived}. A null handler removes it.
+	 */
+	public synchronized void addPacketHandler(final int opcode,
+			final ClientPacketHandler handler) {
+		if (opcode <= PacketRegistry.UNREGISTERED
+				|| opcode >= PacketRegistry.MAX_OPCODES) {
+			throw new IllegalArgumentException("Invalid opcode: " + opcode);
 		}
+		final ClientPacketHandler[] handlers = Arrays.copyOf(packetHandlers,
+				Math.max(packetHandlers.length, opcode + 1));
+		handlers[opcode] = handler;
+		packetHandlers = handlers;
 	}
 
-	void error(final String msg) {
-		if (!debugging) {
-			// Let the user handle the message.
-			if (clientEventListener != null) {
-				clientEventListener.errorMessage(msg);
-			} else if (clientEventListener == null) {
-				System.err.println("GNetClient2 -> " + msg);
-			}
-			return;
-		} else if (debugging) {
-			System.err.println("GNetClient -> " + msg);
-			return;
+	/**
+	 * Route every packet with the registered name to the handler.
+	 */
+	public void addPacketHandler(final String packetName,
+			final ClientPacketHandler handler) {
+		final int opcode = PacketRegistry.opcodeOf(packetName);
+		if (opcode == PacketRegistry.UNREGISTERED) {
+			throw new IllegalArgumentException(packetName
+					+ " isn't registered with the PacketRegistry");
 		}
+		addPacketHandler(opcode, handler);
 	}
 
 	public boolean isBinded() {
@@ -270,10 +521,27 @@ public class GNetClient {
 		return port;
 	}
 
+	/**
+	 * Print messages to the console (the default), or hand them to the
+	 * listeners debugMessage() and errorMessage() instead. Either way they
+	 * are delivered on the logging thread.
+	 */
 	public void setDebugging(final boolean debugging) {
 		this.debugging = debugging;
 	}
 
+	/**
+	 * DEBUG (the default) reports the connection, TRACE adds every packet
+	 * sent and received. Disabled levels cost nothing.
+	 */
+	public void setLogLevel(final LogLevel level) {
+		log.setLevel(level);
+	}
+
+	public LogLevel getLogLevel() {
+		return log.getLevel();
+	}
+
 	public boolean isDebugging() {
 		return debugging;
 	}
@@ -281,4 +549,141 @@ public class GNetClient {
 	public boolean isInitialized() {
 		return initialized;
 	}
+
+	/**
+	 * Select a framed packet codec, must match the servers codec and be set
+	 * before start(). Null keeps the legacy ObjectOutputStream transport.
+	 * With a {@link CompressingPacketCodec} the servers dictionary, if it has
+	 * one, replaces the codecs own once the connection is up.
+	 */
+	public void setPacketCodec(final PacketCodec packetCodec) {
+		this.packetCodec = packetCodec;
+	}
+
+	public PacketCodec getPacketCodec() {
+		return packetCodec;
+	}
+
+	/**
+	 * Run the listener and packet handlers on a worker thread instead of the
+	 * reader, so a slow handler doesn't stop reading. Packets and events keep
+	 * their order, packet views are copied before the handoff. Must be set
+	 * before start().
+	 */
+	public void setWorkerThread(final boolean workerThread) {
+		this.workerThread = workerThread;
+	}
+
+	public boolean isWorkerThread() {
+		return workerThread;
+	}
+
+	/**
+	 * Packets the worker thread can have waiting, 1024 by default. The reader
+	 * waits for the worker when it is full. Must be set before start().
+	 */
+	public void setWorkerQueueCapacity(final int workerQueueCapacity) {
+		this.workerQueueCapacity = workerQueueCapacity;
+	}
+
+	public int getWorkerQueueCapacity() {
+		return workerQueueCapacity;
+	}
+
+	/**
+	 * @return The worker stage, null unless connected with a worker thread.
+	 */
+	public WorkerPool<ServerModel> getWorker() {
+		return worker;
+	}
+
+	/**
+	 * Hand packet handlers a {@link PacketView} over the received frame
+	 * instead of a decoded packet, must be set before start(). Only works with
+	 * the {@link BinaryPacketCodec}. A view is only valid until the handler
+	 * returns.
+	 */
+	public void setPacketViews(final boolean packetViews) {
+		this.packetViews = packetViews;
+	}
+
+	public boolean isPacketViews() {
+		return packetViews;
+	}
+
+	/**
+	 * Bound the memory of the legacy ObjectOutputStream transport by
+	 * periodically resetting the streams. Only used without a packet codec,
+	 * must be called before start().
+	 */
+	public void setStreamResetPolicy(final StreamResetPolicy streamResetPolicy) {
+		this.streamResetPolicy = streamResetPolicy;
+	}
+
+	public StreamResetPolicy getStreamResetPolicy() {
+		return streamResetPolicy;
+	}
+
+	/**
+	 * Run the client loop on a virtual thread (JDK 21+, a platform thread
+	 * otherwise). Must be called before bind().
+	 */
+	public void setVirtualThreads(final boolean virtualThreads) {
+		if (virtualThreads && !Threads.isVirtualSupported()) {
+			log.error("Virtual threads are not supported by this JVM, using a platform thread.");
+		}
+		this.virtualThreads = virtualThreads;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Open the datagram channel for {@link Delivery#UNRELIABLE_SEQUENCED}
+	 * packets when the server offers one, must be called before start() and
+	 * needs a packet codec. Datagrams are delivered on their own thread
+	 * unless there is a worker thread.
+	 */
+	public void setUdpEnabled(final boolean udpEnabled) {
+		this.udpEnabled = udpEnabled;
+	}
+
+	public boolean isUdpEnabled() {
+		return udpEnabled;
+	}
+
+	/**
+	 * @return Whether unreliable packets can travel as datagrams yet.
+	 */
+	public boolean isDatagramChannelUp() {
+		final UdpChannel channel = udp;
+		return channel != null && channel.isUp();
+	}
+
+	/**
+	 * Keep a copy of the state the servers replicator sends, the server only
+	 * sends updates to clients that did this. Must be called before start().
+	 */
+	public synchronized Replica enableReplication() {
+		if (replica == null) {
+			replica = new Replica();
+		}
+		return replica;
+	}
+
+	/**
+	 * @return The replica, null unless enabled.
+	 */
+	public Replica getReplica() {
+		return replica;
+	}
+
+	/**
+	 * @return The session UID the server assigned, or -1 until its handshake
+	 *         arrived.
+	 */
+	public int getUid() {
+		return uid;
+	}
 }
@@ -0,0 +1,154 @@
+package org.gnet.client;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.gnet.packet.DeltaDecoder;
+import org.gnet.packet.Packet;
+
+/**
+ * The clients copy of the entity state a server side replicator sends.
+ * Updates are applied as they arrive and acknowledged, reads never lock.
+ *
+ * A delta is only applied on top of the update it was built from or a later
+ * one, anything else (stale updates, deltas after a lost snapshot) is
+ * dropped and the server falls back to a snapshot. Fields set to null are
+ * removed.
+ */
+public final class Replica {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, Object>> entities = new ConcurrentHashMap<Integer, ConcurrentHashMap<String, Object>>();
+	private volatile long tick = -1;
+	private volatile ReplicaListener listener;
+
+	private final AtomicLong snapshotsApplied = new AtomicLong();
+	private final AtomicLong deltasApplied = new AtomicLong();
+	private final AtomicLong updatesDropped = new AtomicLong();
+
+	Replica() {
+	}
+
+	public void setListener(final ReplicaListener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * @return A read only view of the entities fields, or null.
+	 */
+	public Map<String, Object> getEntity(final int entity) {
+		final Map<String, Object> fields = entities.get(entity);
+		return fields != null ? Collections.unmodifiableMap(fields) : null;
+	}
+
+	public Object get(final int entity, final String field) {
+		final Map<String, Object> fields = entities.get(entity);
+		return fields != null ? fields.get(field) : null;
+	}
+
+	/**
+	 * @return A read only view of the ids of all entities.
+	 */
+	public Set<Integer> getEntityIds() {
+		return Collections.unmodifiableSet(entities.keySet());
+	}
+
+	public int getEntityCount() {
+		return entities.size();
+	}
+
+	/**
+	 * @return The servers tick of the last applied update, -1 before the
+	 *         first snapshot.
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	public long getSnapshotsApplied() {
+		return snapshotsApplied.get();
+	}
+
+	public long getDeltasApplied() {
+		return deltasApplied.get();
+	}
+
+	public long getUpdatesDropped() {
+		return updatesDropped.get();
+	}
+
+	/**
+	 * Apply an update from the server.
+	 *
+	 * @return Whether it was applied and should be acknowledged.
+	 */
+	boolean apply(final Packet update) throws IOException {
+		lock.lock();
+		try {
+			final long updateTick = update.getLong("tick");
+			final long base = update.getLong("base");
+			if (updateTick <= tick || base > tick) {
+				// Stale, or built on state we never got.
+				updatesDropped.incrementAndGet();
+				return false;
+			}
+			final ReplicaListener listener = this.listener;
+			final boolean snapshot = base < 0;
+			// Entities a snapshot doesn't mention are gone.
+			final Set<Integer> missing = snapshot ? new HashSet<Integer>(
+					entities.keySet()) : null;
+			final DeltaDecoder decoder = new DeltaDecoder(
+					update.getBytes("state"));
+			while (decoder.next()) {
+				final Integer id = Integer.valueOf(decoder.getEntity());
+				if (decoder.isRemoved()) {
+					if (entities.remove(id) != null && listener != null) {
+						listener.entityRemoved(id.intValue());
+					}
+					continue;
+				}
+				if (missing != null) {
+					missing.remove(id);
+				}
+				ConcurrentHashMap<String, Object> fields = entities.get(id);
+				if (fields == null || snapshot) {
+					fields = new ConcurrentHashMap<String, Object>(
+							Math.max(16, decoder.getFieldCount() * 2));
+				}
+				while (decoder.getFieldCount() > 0) {
+					final String name = decoder.readName();
+					final Object value = decoder.readValue();
+					if (value != null) {
+						fields.put(name, value);
+					} else {
+						fields.remove(name);
+					}
+				}
+				entities.put(id, fields);
+				if (listener != null) {
+					listener.entityUpdated(id.intValue());
+				}
+			}
+			if (missing != null) {
+				for (final Integer id : missing) {
+					entities.remove(id);
+					if (listener != null) {
+						listener.entityRemoved(id.intValue());
+					}
+				}
+			}
+			tick = updateTick;
+			(snapshot ? snapshotsApplied : deltasApplied).incrementAndGet();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+}
@@ -0,0 +1,10 @@
+package org.gnet.client;
+
+/**
+ * Told about entities a {@link Replica} updated or removed, on the thread
+ * that received the update.
+ */
+public abstract class ReplicaListener {
+	protected abstract void entityUpdated(int entity);
+	protected abstract void entityRemoved(int entity);
+}
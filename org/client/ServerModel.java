@@ -3,29 +3,100 @@ package org.gnet.client;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.SocketException;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.gnet.packet.BoundedObjectOutputStream;
+import org.gnet.packet.Delivery;
+import org.gnet.packet.Frames;
+import org.gnet.packet.ObjectStreamStats;
 import org.gnet.packet.Packet;
+import org.gnet.packet.PacketPool;
 
 public class ServerModel {
 
 	private final ObjectOutputStream oos;
 	private final ObjectInputStream ois;
 	private final GNetClient client;
+	private final OutputStream out;
+	private final ReentrantLock writeLock = new ReentrantLock();
 
 	public ServerModel(final GNetClient client, final ObjectOutputStream oos,
 			final ObjectInputStream ois) {
 		this.oos = oos;
 		this.ois = ois;
 		this.client = client;
+		out = null;
 	}
 
+	ServerModel(final GNetClient client, final OutputStream out) {
+		oos = null;
+		ois = null;
+		this.client = client;
+		this.out = out;
+	}
+
+	/**
+	 * Send a packet. A packet from the {@link PacketPool} goes back to the
+	 * pool and must not be used afterwards.
+	 */
 	public void sendPacket(final Packet packet) {
-		if (oos != null && client.isBinded()&&client.connected) {
+		try {
+			write(packet);
+		} finally {
+			// Object streams keep a reference to what they wrote, only framed
+			// packets can be reused.
+			if (out != null) {
+				PacketPool.recycle(packet);
+			} else {
+				PacketPool.discard(packet);
+			}
+		}
+	}
+
+	/**
+	 * Send a packet with the given delivery. Unreliable packets go over TCP
+	 * until the datagram channel is up, or if they don't fit a datagram.
+	 */
+	public void sendPacket(final Packet packet, final Delivery delivery) {
+		final UdpChannel udp = client.udp;
+		if (delivery == Delivery.RELIABLE || udp == null || !udp.isUp()
+				|| !client.connected) {
+			sendPacket(packet);
+			return;
+		}
+		try {
+			if (udp.send(packet)) {
+				client.log.trace("Datagram sent to server: {}",
+						packet.getPacketName());
+				PacketPool.recycle(packet);
+				return;
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		sendPacket(packet);
+	}
+
+	private void write(final Packet packet) {
+		if ((oos != null || out != null) && client.isBinded()&&client.connected) {
+			// Not synchronized, blocked virtual threads must not pin.
+			writeLock.lock();
 			try {
-				oos.writeObject(packet);
-				oos.flush();
-				client.debug("Packet sent to server: " + packet.getPacketName());
+				if (out != null) {
+					Frames.write(client.getPacketCodec(), packet, out);
+					out.flush();
+				} else if (oos instanceof BoundedObjectOutputStream) {
+					// Resets the stream once the policy says so.
+					((BoundedObjectOutputStream) oos).writePacket(packet);
+					oos.flush();
+				} else {
+					oos.writeObject(packet);
+					oos.flush();
+				}
+				client.log.trace("Packet sent to server: {}",
+						packet.getPacketName());
 
 			} catch (final SocketException e) {
 				if(e.getLocalizedMessage().equals("Connection reset by peer: socket write error")){
@@ -43,9 +114,27 @@ public class ServerModel {
 			} catch (final IOException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
+			} finally {
+				writeLock.unlock();
 			}
 
 		}
 	}
 
+	/**
+	 * @return Handle table statistics of the outgoing object stream, or null
+	 *         unless the client has a StreamResetPolicy.
+	 */
+	public ObjectStreamStats getStreamStats() {
+		if (!(oos instanceof BoundedObjectOutputStream)) {
+			return null;
+		}
+		writeLock.lock();
+		try {
+			return ((BoundedObjectOutputStream) oos).getStats();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
 }
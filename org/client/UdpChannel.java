@@ -0,0 +1,180 @@
+package org.gnet.client;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gnet.packet.Datagrams;
+import org.gnet.packet.Packet;
+import org.gnet.packet.PacketBuffer;
+import org.gnet.util.Threads;
+
+/**
+ * The clients end of the datagram channel, opened once the servers
+ * handshake named its port. One thread receives, any thread may send.
+ *
+ * The hello is repeated until the server echoes it, only then is the
+ * channel up and unreliable packets leave TCP.
+ */
+final class UdpChannel {
+
+	private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+	private static final int HELLO_INTERVAL_MILLIS = 250;
+	// About 5 seconds, then the datagrams are taken to be blocked.
+	private static final int MAX_HELLOS = 20;
+
+	private final GNetClient client;
+	private final DatagramSocket socket;
+	private final int uid;
+	private final AtomicInteger sequence = new AtomicInteger();
+	// Only touched by the receiving thread.
+	private int lastSequence;
+	private boolean sequenced;
+	private int hellos;
+	private volatile boolean up;
+	private volatile boolean running;
+
+	UdpChannel(final GNetClient client, final InetAddress host,
+			final int port, final int uid) throws SocketException {
+		this.client = client;
+		this.uid = uid;
+		socket = new DatagramSocket();
+		// Bursts are dropped by the kernel once this fills up.
+		socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+		socket.connect(new InetSocketAddress(host, port));
+		// Wakes the receiving thread to repeat the hello.
+		socket.setSoTimeout(HELLO_INTERVAL_MILLIS);
+	}
+
+	/**
+	 * Start receiving and say hello, so the server knows where to send.
+	 */
+	void start(final boolean virtual) throws IOException {
+		running = true;
+		Threads.newThread(new Runnable() {
+			public void run() {
+				receiveLoop();
+			}
+		}, "GNetClient-UDP", virtual).start();
+		sendHello();
+	}
+
+	/**
+	 * @return Whether the server answered the hello.
+	 */
+	boolean isUp() {
+		return up;
+	}
+
+	private void sendHello() throws IOException {
+		hellos++;
+		final PacketBuffer hello = Datagrams.encode(null, uid, 0, null);
+		socket.send(new DatagramPacket(hello.array(), 0, hello.size()));
+	}
+
+	private void helloTimedOut() throws IOException {
+		if (up) {
+			return;
+		}
+		if (hellos >= MAX_HELLOS) {
+			client.log.error("No answer to {} datagrams, staying on TCP.",
+					hellos);
+			socket.setSoTimeout(0);
+			return;
+		}
+		sendHello();
+	}
+
+	void stop() {
+		running = false;
+		socket.close();
+	}
+
+	/**
+	 * Send a packet to the server as one datagram.
+	 *
+	 * @return False if the packet doesn't fit a datagram, nothing was sent.
+	 */
+	boolean send(final Packet packet) throws IOException {
+		final PacketBuffer encoded = Datagrams.encode(client.getPacketCodec(),
+				uid, sequence.incrementAndGet(), packet);
+		if (encoded.size() > Datagrams.MAX_DATAGRAM_SIZE) {
+			return false;
+		}
+		socket.send(new DatagramPacket(encoded.array(), 0, encoded.size()));
+		return true;
+	}
+
+	private void receiveLoop() {
+		final byte[] data = new byte[65536];
+		final DatagramPacket datagram = new DatagramPacket(data, data.length);
+		while (running) {
+			try {
+				datagram.setLength(data.length);
+				socket.receive(datagram);
+				received(datagram);
+			} catch (final SocketTimeoutException e) {
+				try {
+					helloTimedOut();
+				} catch (final IOException e1) {
+					e1.printStackTrace();
+				}
+			} catch (final SocketException e) {
+				if (socket.isClosed()) {
+					// Stopped.
+					return;
+				}
+				e.printStackTrace();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void received(final DatagramPacket datagram) {
+		if (datagram.getLength() < Datagrams.HEADER_SIZE) {
+			return;
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(datagram.getData(),
+				datagram.getOffset(), datagram.getLength());
+		if (buffer.getInt() != uid) {
+			return;
+		}
+		if (!up) {
+			// The hello echo or anything else, the server can reach us.
+			up = true;
+			try {
+				socket.setSoTimeout(0);
+			} catch (final SocketException e) {
+				// Closed, the receive loop ends.
+			}
+			client.log.debug("Datagram channel is up after {} hellos.", hellos);
+		}
+		final int received = buffer.getInt();
+		if (!buffer.hasRemaining()) {
+			// Hello echo.
+			return;
+		}
+		if (sequenced && !Datagrams.isNewer(received, lastSequence)) {
+			// Overtaken by a newer one, it's stale.
+			return;
+		}
+		sequenced = true;
+		lastSequence = received;
+		final Packet packet;
+		try {
+			packet = client.getPacketCodec().decode(buffer);
+		} catch (final IOException e) {
+			client.log.error("Bad datagram from server: {}", e.getMessage());
+			return;
+		}
+		client.datagramReceived(packet);
+	}
+
+}
@@ -0,0 +1,418 @@
+package org.gnet.packet;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Compact, reflection free packet encoding. A payload is the packets varint
+ * opcode (followed by its name if the packet isn't registered with the
+ * {@link PacketRegistry}), a varint entry count and the entries, each a name, a one byte
+ * type tag and the value. Lengths and integral values are varints, signed
+ * ones zigzag encoded so small negatives stay small.
+ *
+ * Booleans, numbers, chars, Strings and byte arrays are written natively, any
+ * other Serializable value falls back to Java serialization. Primitive
+ * entries are decoded into the packets typed fields, so reading them back
+ * with {@link Packet#getInt(String)} and friends doesn't box.
+ */
+public class BinaryPacketCodec implements PacketCodec {
+
+	static final int TAG_NULL = 0;
+	static final int TAG_TRUE = 1;
+	static final int TAG_FALSE = 2;
+	static final int TAG_BYTE = 3;
+	static final int TAG_SHORT = 4;
+	static final int TAG_CHAR = 5;
+	static final int TAG_INT = 6;
+	static final int TAG_LONG = 7;
+	static final int TAG_FLOAT = 8;
+	static final int TAG_DOUBLE = 9;
+	static final int TAG_STRING = 10;
+	static final int TAG_BYTES = 11;
+	static final int TAG_SERIALIZED = 12;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// Recently decoded names. The same names arrive in every packet, so hand
+	// out the same String instead of decoding it again. Racing threads can
+	// only cause a miss.
+	private static final String[] NAMES = new String[256];
+	private static final int MAX_CACHED_NAME = 32;
+
+	public void encode(final Packet packet, final PacketBuffer out)
+			throws IOException {
+		if (packet instanceof PacketView && ((PacketView) packet).isRaw()) {
+			// Forwarding a received packet, its bytes are still valid.
+			((PacketView) packet).writeRaw(out);
+			return;
+		}
+		out.writeVarInt(packet.getOpcode());
+		if (packet.getOpcode() == PacketRegistry.UNREGISTERED) {
+			out.writeString(packet.getPacketName());
+		}
+		final Map<String, Object> entries = packet.entries();
+		final int fields = packet.fieldCount();
+		out.writeVarInt(fields + (entries != null ? entries.size() : 0));
+		for (int i = 0; i < fields; i++) {
+			out.writeString(packet.fieldName(i));
+			writeField(packet, i, out);
+		}
+		if (entries != null) {
+			for (final Map.Entry<String, Object> entry : entries.entrySet()) {
+				out.writeString(entry.getKey());
+				writeValue(entry.getValue(), out);
+			}
+		}
+	}
+
+	public Packet decode(final ByteBuffer payload) throws IOException {
+		try {
+			final int opcode = readVarInt(payload);
+			final String name = opcode == PacketRegistry.UNREGISTERED
+					? readName(payload) : PacketRegistry.nameOf(opcode);
+			if (name == null) {
+				throw new IOException("Unregistered opcode: " + opcode);
+			}
+			final int count = readVarInt(payload);
+			if (count < 0 || count > payload.remaining()) {
+				throw new IOException("Invalid entry count: " + count);
+			}
+			final Packet packet = new Packet(name, count);
+			for (int i = 0; i < count; i++) {
+				readEntry(readName(payload), payload, packet);
+			}
+			return packet;
+		} catch (final BufferUnderflowException e) {
+			throw new IOException("Truncated packet payload.");
+		}
+	}
+
+	/**
+	 * Write a typed field, the same way writeValue() writes its boxed form.
+	 */
+	static void writeField(final Packet packet, final int field,
+			final PacketBuffer out) {
+		final int type = packet.fieldType(field);
+		final long value = packet.fieldValue(field);
+		out.writeByte(type);
+		switch (type) {
+		case TAG_INT:
+			out.writeVarInt(zigZag((int) value));
+			break;
+		case TAG_LONG:
+			out.writeVarLong(zigZag(value));
+			break;
+		case TAG_FLOAT:
+			out.writeInt((int) value);
+			break;
+		case TAG_DOUBLE:
+			out.writeLong(value);
+			break;
+		case TAG_BYTES: {
+			final byte[] bytes = packet.fieldBytes(field);
+			out.writeVarInt(bytes.length);
+			out.writeBytes(bytes, 0, bytes.length);
+			break;
+		}
+		default:
+			// Booleans are all tag.
+			break;
+		}
+	}
+
+	/**
+	 * Read one entry value into the packet, primitives into typed fields.
+	 */
+	static void readEntry(final String key, final ByteBuffer in,
+			final Packet packet) throws IOException {
+		final int tag = in.get();
+		switch (tag) {
+		case TAG_TRUE:
+			packet.putBoolean(key, true);
+			break;
+		case TAG_FALSE:
+			packet.putBoolean(key, false);
+			break;
+		case TAG_INT:
+			packet.putInt(key, unZigZag(readVarInt(in)));
+			break;
+		case TAG_LONG:
+			packet.putLong(key, unZigZag(readVarLong(in)));
+			break;
+		case TAG_FLOAT:
+			packet.putFloat(key, Float.intBitsToFloat(in.getInt()));
+			break;
+		case TAG_DOUBLE:
+			packet.putDouble(key, Double.longBitsToDouble(in.getLong()));
+			break;
+		case TAG_BYTES: {
+			final byte[] bytes = new byte[readLength(in)];
+			in.get(bytes);
+			packet.putBytes(key, bytes);
+			break;
+		}
+		default:
+			packet.addEntry(key, readValue(tag, in));
+			break;
+		}
+	}
+
+	static void writeValue(final Object value, final PacketBuffer out)
+			throws IOException {
+		if (value == null) {
+			out.writeByte(TAG_NULL);
+		} else if (value instanceof Integer) {
+			out.writeByte(TAG_INT);
+			out.writeVarInt(zigZag(((Integer) value).intValue()));
+		} else if (value instanceof String) {
+			out.writeByte(TAG_STRING);
+			out.writeString((String) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(((Boolean) value).booleanValue() ? TAG_TRUE
+					: TAG_FALSE);
+		} else if (value instanceof Long) {
+			out.writeByte(TAG_LONG);
+			out.writeVarLong(zigZag(((Long) value).longValue()));
+		} else if (value instanceof Float) {
+			out.writeByte(TAG_FLOAT);
+			out.writeInt(Float.floatToRawIntBits(((Float) value).floatValue()));
+		} else if (value instanceof Double) {
+			out.writeByte(TAG_DOUBLE);
+			out.writeLong(Double.doubleToRawLongBits(((Double) value)
+					.doubleValue()));
+		} else if (value instanceof Byte) {
+			out.writeByte(TAG_BYTE);
+			out.writeByte(((Byte) value).byteValue());
+		} else if (value instanceof Short) {
+			out.writeByte(TAG_SHORT);
+			out.writeVarInt(zigZag(((Short) value).shortValue()));
+		} else if (value instanceof Character) {
+			out.writeByte(TAG_CHAR);
+			out.writeVarInt(((Character) value).charValue());
+		} else if (value instanceof byte[]) {
+			final byte[] bytes = (byte[]) value;
+			out.writeByte(TAG_BYTES);
+			out.writeVarInt(bytes.length);
+			out.writeBytes(bytes, 0, bytes.length);
+		} else {
+			// Anything else has to go through Java serialization.
+			final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			final ObjectOutputStream oos = new ObjectOutputStream(bytes);
+			oos.writeObject(value);
+			oos.close();
+			out.writeByte(TAG_SERIALIZED);
+			out.writeVarInt(bytes.size());
+			out.writeBytes(bytes.toByteArray(), 0, bytes.size());
+		}
+	}
+
+	static Object readValue(final ByteBuffer in) throws IOException {
+		return readValue(in.get(), in);
+	}
+
+	static Object readValue(final int tag, final ByteBuffer in)
+			throws IOException {
+		switch (tag) {
+		case TAG_NULL:
+			return null;
+		case TAG_TRUE:
+			return Boolean.TRUE;
+		case TAG_FALSE:
+			return Boolean.FALSE;
+		case TAG_BYTE:
+			return Byte.valueOf(in.get());
+		case TAG_SHORT:
+			return Short.valueOf((short) unZigZag(readVarInt(in)));
+		case TAG_CHAR:
+			return Character.valueOf((char) readVarInt(in));
+		case TAG_INT:
+			return Integer.valueOf(unZigZag(readVarInt(in)));
+		case TAG_LONG:
+			return Long.valueOf(unZigZag(readVarLong(in)));
+		case TAG_FLOAT:
+			return Float.valueOf(Float.intBitsToFloat(in.getInt()));
+		case TAG_DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(in.getLong()));
+		case TAG_STRING:
+			return readString(in);
+		case TAG_BYTES: {
+			final byte[] bytes = new byte[readLength(in)];
+			in.get(bytes);
+			return bytes;
+		}
+		case TAG_SERIALIZED: {
+			final byte[] bytes = new byte[readLength(in)];
+			in.get(bytes);
+			final ObjectInputStream ois = new ObjectInputStream(
+					new ByteArrayInputStream(bytes));
+			try {
+				return ois.readObject();
+			} catch (final ClassNotFoundException e) {
+				throw new IOException("Unknown class in entry: "
+						+ e.getMessage());
+			}
+		}
+		default:
+			throw new IOException("Unknown entry type tag: " + tag);
+		}
+	}
+
+	/**
+	 * Step over a value without decoding it.
+	 */
+	static void skipValue(final int tag, final ByteBuffer in)
+			throws IOException {
+		switch (tag) {
+		case TAG_NULL:
+		case TAG_TRUE:
+		case TAG_FALSE:
+			break;
+		case TAG_BYTE:
+			in.get();
+			break;
+		case TAG_SHORT:
+		case TAG_CHAR:
+		case TAG_INT:
+			readVarInt(in);
+			break;
+		case TAG_LONG:
+			readVarLong(in);
+			break;
+		case TAG_FLOAT:
+			in.position(in.position() + 4);
+			break;
+		case TAG_DOUBLE:
+			in.position(in.position() + 8);
+			break;
+		case TAG_STRING:
+		case TAG_BYTES:
+		case TAG_SERIALIZED: {
+			final int length = readLength(in);
+			in.position(in.position() + length);
+			break;
+		}
+		default:
+			throw new IOException("Unknown entry type tag: " + tag);
+		}
+	}
+
+	static String readString(final ByteBuffer in) throws IOException {
+		return readString(in, readLength(in));
+	}
+
+	/**
+	 * Read a packet or entry name, reusing a cached String when possible.
+	 */
+	static String readName(final ByteBuffer in) throws IOException {
+		final int length = readLength(in);
+		if (!in.hasArray() || length > MAX_CACHED_NAME) {
+			return readString(in, length);
+		}
+		final byte[] array = in.array();
+		final int offset = in.arrayOffset() + in.position();
+		int hash = length;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + array[offset + i];
+		}
+		final int slot = (hash ^ hash >>> 16) & (NAMES.length - 1);
+		final String cached = NAMES[slot];
+		if (cached != null && matches(cached, array, offset, length)) {
+			in.position(in.position() + length);
+			return cached;
+		}
+		final String name = readString(in, length);
+		NAMES[slot] = name;
+		return name;
+	}
+
+	static boolean matches(final String name, final byte[] array,
+			final int offset, final int length) {
+		final int chars = name.length();
+		if (chars > length) {
+			// UTF-8 takes at least a byte per char.
+			return false;
+		}
+		for (int i = 0; i < chars; i++) {
+			final char c = name.charAt(i);
+			if (c >= 0x80) {
+				// Only ASCII matches byte for byte, decode the rest.
+				return name.equals(new String(array, offset, length, UTF_8));
+			}
+			if (c != array[offset + i]) {
+				return false;
+			}
+		}
+		return chars == length;
+	}
+
+	private static String readString(final ByteBuffer in, final int length) {
+		if (in.hasArray()) {
+			final String value = new String(in.array(), in.arrayOffset()
+					+ in.position(), length, UTF_8);
+			in.position(in.position() + length);
+			return value;
+		}
+		final byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, UTF_8);
+	}
+
+	static int readVarInt(final ByteBuffer in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			final int b = in.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint.");
+	}
+
+	static long readVarLong(final ByteBuffer in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			final int b = in.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint.");
+	}
+
+	/**
+	 * Read a varint length and make sure that many bytes are left.
+	 */
+	static int readLength(final ByteBuffer in) throws IOException {
+		final int length = readVarInt(in);
+		if (length < 0 || length > in.remaining()) {
+			throw new IOException("Invalid length: " + length);
+		}
+		return length;
+	}
+
+	static int zigZag(final int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	static long zigZag(final long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	static int unZigZag(final int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static long unZigZag(final long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}
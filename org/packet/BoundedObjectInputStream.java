@@ -0,0 +1,56 @@
+package org.gnet.packet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+
+/**
+ * Reads what a {@link BoundedObjectOutputStream} wrote. Resets need no help,
+ * only compact class descriptors have to be resolved here.
+ */
+public class BoundedObjectInputStream extends ObjectInputStream {
+
+	private final boolean compactDescriptors;
+	private final ArrayList<ObjectStreamClass> descriptors = new ArrayList<ObjectStreamClass>();
+	private long objectsRead;
+
+	public BoundedObjectInputStream(final InputStream in,
+			final StreamResetPolicy policy) throws IOException {
+		super(in);
+		compactDescriptors = policy.isCompactDescriptors();
+
+		// Lets resolveObject() count every newly read object.
+		enableResolveObject(true);
+	}
+
+	@Override
+	protected Object resolveObject(final Object obj) throws IOException {
+		objectsRead++;
+		return obj;
+	}
+
+	@Override
+	protected ObjectStreamClass readClassDescriptor() throws IOException,
+			ClassNotFoundException {
+		if (!compactDescriptors) {
+			return super.readClassDescriptor();
+		}
+		final int id = readUnsignedShort();
+		if (id == 0) {
+			final ObjectStreamClass desc = super.readClassDescriptor();
+			descriptors.add(desc);
+			return desc;
+		}
+		if (id > descriptors.size()) {
+			throw new IOException("Unknown class descriptor id: " + id);
+		}
+		return descriptors.get(id - 1);
+	}
+
+	public long getObjectsRead() {
+		return objectsRead;
+	}
+
+}
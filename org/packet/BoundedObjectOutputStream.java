@@ -0,0 +1,98 @@
+package org.gnet.packet;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * An ObjectOutputStream that resets itself according to a
+ * {@link StreamResetPolicy} and keeps track of how big its handle table gets.
+ * Read it with a {@link BoundedObjectInputStream}.
+ */
+public class BoundedObjectOutputStream extends ObjectOutputStream {
+
+	private final StreamResetPolicy policy;
+
+	// Descriptor ids outlive resets, the peer keeps the same table.
+	private final HashMap<String, Integer> descriptorIds = new HashMap<String, Integer>();
+
+	private int handlesSinceReset;
+	private int packetsSinceReset;
+	private int peakHandles;
+	private long resets;
+	private long packets;
+	private long fullDescriptors;
+	private long compactDescriptors;
+
+	public BoundedObjectOutputStream(final OutputStream out,
+			final StreamResetPolicy policy) throws IOException {
+		super(out);
+		this.policy = policy;
+
+		// Lets replaceObject() count every newly written object.
+		enableReplaceObject(true);
+	}
+
+	/**
+	 * Write a packet and reset afterwards if the policy says so.
+	 */
+	public void writePacket(final Packet packet) throws IOException {
+		writeObject(packet);
+		packets++;
+		packetsSinceReset++;
+		if (handlesSinceReset > peakHandles) {
+			peakHandles = handlesSinceReset;
+		}
+		if (policy.shouldReset(packetsSinceReset, handlesSinceReset)) {
+			reset();
+		}
+	}
+
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		resets++;
+		handlesSinceReset = 0;
+		packetsSinceReset = 0;
+	}
+
+	@Override
+	protected Object replaceObject(final Object obj) throws IOException {
+		// Only called for objects that get a new handle.
+		handlesSinceReset++;
+		return obj;
+	}
+
+	@Override
+	protected void writeClassDescriptor(final ObjectStreamClass desc)
+			throws IOException {
+		handlesSinceReset++;
+		if (!policy.isCompactDescriptors()) {
+			super.writeClassDescriptor(desc);
+			return;
+		}
+		final Integer id = descriptorIds.get(desc.getName());
+		if (id != null) {
+			compactDescriptors++;
+			writeShort(id.intValue());
+			return;
+		}
+		if (descriptorIds.size() >= 0xFFFF) {
+			throw new IOException("Too many serialized classes.");
+		}
+		// 0 announces a full descriptor, which gets the next id on both sides.
+		fullDescriptors++;
+		descriptorIds.put(desc.getName(),
+				Integer.valueOf(descriptorIds.size() + 1));
+		writeShort(0);
+		super.writeClassDescriptor(desc);
+	}
+
+	public ObjectStreamStats getStats() {
+		return new ObjectStreamStats(handlesSinceReset, peakHandles, resets,
+				packets, fullDescriptors, compactDescriptors);
+	}
+
+}
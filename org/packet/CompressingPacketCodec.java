@@ -0,0 +1,298 @@
+package org.gnet.packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Wraps another codec and deflates its output once it reaches a threshold,
+ * smaller packets go out as they are with a single flag byte in front.
+ *
+ * A preset dictionary makes small, repetitive packets compress far better
+ * than they do on their own. Build one from typical packets with
+ * {@link #buildDictionary(PacketCodec, Packet...)} and give it to the server
+ * only, the server hands it to each client in a {@link HandshakePacket} as
+ * soon as it connects. Clients still need a CompressingPacketCodec (without
+ * a dictionary) so they can read that handshake.
+ *
+ * Deflaters and inflaters are kept per thread and reused, so the codec can
+ * be shared between connections like any other.
+ */
+public final class CompressingPacketCodec implements PacketCodec {
+
+	/**
+	 * Payloads below this many bytes are not worth compressing by default.
+	 */
+	public static final int DEFAULT_THRESHOLD = 256;
+
+	/**
+	 * Deflate only looks back this far, a longer dictionary is wasted.
+	 */
+	public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	// Flag byte in front of every payload.
+	static final int RAW = 0;
+	static final int DEFLATED = 1;
+	static final int DEFLATED_DICT = 2;
+
+	private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private final PacketCodec delegate;
+	private final int threshold;
+	private final int level;
+	private final byte[] dictionary;
+
+	// Per codec since the level is fixed once a deflater is created.
+	private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(level);
+		}
+	};
+
+	/**
+	 * Compress {@link BinaryPacketCodec} output at the default threshold.
+	 */
+	public CompressingPacketCodec() {
+		this(new BinaryPacketCodec(), DEFAULT_THRESHOLD);
+	}
+
+	public CompressingPacketCodec(final PacketCodec delegate,
+			final int threshold) {
+		this(delegate, threshold, Deflater.BEST_SPEED, null);
+	}
+
+	/**
+	 * @param level
+	 *            A {@link Deflater} level, BEST_SPEED is usually the right
+	 *            trade for live traffic.
+	 * @param dictionary
+	 *            Preset dictionary, or null.
+	 */
+	public CompressingPacketCodec(final PacketCodec delegate,
+			final int threshold, final int level, final byte[] dictionary) {
+		if (delegate == null || delegate instanceof CompressingPacketCodec) {
+			throw new IllegalArgumentException("Invalid delegate: " + delegate);
+		}
+		if (threshold < 0) {
+			throw new IllegalArgumentException("Invalid threshold: "
+					+ threshold);
+		}
+		if (level != Deflater.DEFAULT_COMPRESSION
+				&& (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalArgumentException("Invalid level: " + level);
+		}
+		if (dictionary != null && dictionary.length > MAX_DICTIONARY_SIZE) {
+			throw new IllegalArgumentException("Dictionary too large: "
+					+ dictionary.length);
+		}
+		this.delegate = delegate;
+		this.threshold = threshold;
+		this.level = level;
+		this.dictionary = dictionary != null && dictionary.length > 0 ? dictionary
+				.clone() : null;
+	}
+
+	/**
+	 * @return A codec like this one but using the dictionary, or this codec if
+	 *         it already does.
+	 */
+	public CompressingPacketCodec withDictionary(final byte[] dictionary) {
+		if (Arrays.equals(dictionary, this.dictionary)) {
+			return this;
+		}
+		return new CompressingPacketCodec(delegate, threshold, level,
+				dictionary);
+	}
+
+	/**
+	 * Build a dictionary from packets that are typical for the application.
+	 * Deflate favours the end of a dictionary, so list the most common
+	 * packets last.
+	 */
+	public static byte[] buildDictionary(final PacketCodec codec,
+			final Packet... samples) throws IOException {
+		final PacketBuffer buffer = new PacketBuffer(4096);
+		for (final Packet sample : samples) {
+			codec.encode(sample, buffer);
+		}
+		final int length = Math.min(buffer.size(), MAX_DICTIONARY_SIZE);
+		final byte[] dictionary = new byte[length];
+		// Keep the tail if the samples don't all fit.
+		System.arraycopy(buffer.array(), buffer.size() - length, dictionary, 0,
+				length);
+		return dictionary;
+	}
+
+	public PacketCodec getDelegate() {
+		return delegate;
+	}
+
+	public int getThreshold() {
+		return threshold;
+	}
+
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * @return A copy of the dictionary, or null if there is none.
+	 */
+	public byte[] getDictionary() {
+		return dictionary != null ? dictionary.clone() : null;
+	}
+
+	public boolean hasDictionary() {
+		return dictionary != null;
+	}
+
+	@Override
+	public void encode(final Packet packet, final PacketBuffer out)
+			throws IOException {
+		final PacketBuffer raw = SCRATCH.get().raw;
+		raw.clear();
+		delegate.encode(packet, raw);
+		final int length = raw.size();
+		final int start = out.size();
+		if (length >= threshold && length > 0) {
+			// The handshake carries the dictionary, it can't depend on it.
+			final boolean useDictionary = dictionary != null
+					&& packet.getOpcode() != PacketRegistry.HANDSHAKE;
+			out.writeByte(useDictionary ? DEFLATED_DICT : DEFLATED);
+			out.writeVarInt(length);
+			if (deflate(raw, useDictionary, out, start + length)) {
+				return;
+			}
+			// Didn't shrink, send it as it is.
+			out.setSize(start);
+		}
+		out.writeByte(RAW);
+		out.writeBytes(raw.array(), 0, length);
+	}
+
+	/**
+	 * Deflate into out, giving up once the output would reach limit.
+	 *
+	 * @return False if it didn't fit.
+	 */
+	private boolean deflate(final PacketBuffer raw, final boolean useDictionary,
+			final PacketBuffer out, final int limit) {
+		final Deflater deflater = deflaters.get();
+		deflater.reset();
+		if (useDictionary) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(raw.array(), 0, raw.size());
+		deflater.finish();
+		while (!deflater.finished()) {
+			final int room = limit - out.size();
+			if (room <= 0) {
+				return false;
+			}
+			out.ensureCapacity(room);
+			out.setSize(out.size()
+					+ deflater.deflate(out.array(), out.size(), room));
+		}
+		return true;
+	}
+
+	@Override
+	public Packet decode(final ByteBuffer payload) throws IOException {
+		if (!payload.hasRemaining()) {
+			throw new IOException("Empty payload.");
+		}
+		final int flag = payload.get();
+		if (flag == RAW) {
+			return delegate.decode(payload);
+		}
+		if (flag != DEFLATED && flag != DEFLATED_DICT) {
+			throw new IOException("Unknown compression flag: " + flag);
+		}
+		if (flag == DEFLATED_DICT && dictionary == null) {
+			throw new IOException("Packet needs a dictionary, none was set.");
+		}
+		final int length = BinaryPacketCodec.readVarInt(payload);
+		Frames.checkLength(length);
+
+		final Scratch scratch = SCRATCH.get();
+		final Inflater inflater = scratch.inflater;
+		inflater.reset();
+		if (payload.hasArray()) {
+			inflater.setInput(payload.array(),
+					payload.arrayOffset() + payload.position(),
+					payload.remaining());
+		} else {
+			final byte[] input = scratch.input(payload.remaining());
+			final int remaining = payload.remaining();
+			payload.get(input, 0, remaining);
+			inflater.setInput(input, 0, remaining);
+		}
+		// One spare byte so a packet longer than it claims is noticed.
+		final byte[] output = scratch.output(length + 1);
+		int inflated = 0;
+		try {
+			while (!inflater.finished() && inflated <= length) {
+				final int n = inflater.inflate(output, inflated, length + 1
+						- inflated);
+				if (n == 0) {
+					if (inflater.needsDictionary() && flag == DEFLATED_DICT
+							&& inflated == 0) {
+						inflater.setDictionary(dictionary);
+					} else if (inflater.needsInput()
+							|| inflater.needsDictionary()) {
+						break;
+					}
+				}
+				inflated += n;
+			}
+		} catch (final DataFormatException e) {
+			throw new IOException("Corrupt compressed packet: "
+					+ e.getMessage());
+		} catch (final IllegalArgumentException e) {
+			// setDictionary() with a dictionary the sender didn't use.
+			throw new IOException("Dictionary mismatch.");
+		}
+		if (inflated != length || !inflater.finished()) {
+			throw new IOException("Compressed packet inflated to " + inflated
+					+ " bytes, expected " + length);
+		}
+		payload.position(payload.limit());
+		return delegate.decode(ByteBuffer.wrap(output, 0, length));
+	}
+
+	/**
+	 * Per thread buffers and inflater, shared by all compressing codecs.
+	 */
+	private static final class Scratch {
+
+		final PacketBuffer raw = new PacketBuffer(512);
+		final Inflater inflater = new Inflater();
+		private byte[] input = new byte[0];
+		private byte[] output = new byte[512];
+
+		byte[] input(final int length) {
+			if (input.length < length) {
+				input = new byte[Math.max(length, input.length * 2)];
+			}
+			return input;
+		}
+
+		byte[] output(final int length) {
+			if (output.length < length) {
+				output = new byte[Math.max(length, output.length * 2)];
+			}
+			return output;
+		}
+
+	}
+
+}
@@ -0,0 +1,54 @@
+package org.gnet.packet;
+
+import java.io.IOException;
+
+/**
+ * Datagram format of the unreliable channel. A datagram is the senders 4
+ * byte session UID, a 4 byte sequence number and one codec encoded packet,
+ * an empty payload is a hello that announces the senders address, the
+ * server echoes it to confirm the channel.
+ */
+public final class Datagrams {
+
+	public static final int HEADER_SIZE = 8;
+
+	// Bigger datagrams risk IP fragmentation, such packets go over TCP.
+	public static final int MAX_DATAGRAM_SIZE = 1200;
+
+	private static final ThreadLocal<PacketBuffer> BUFFER = new ThreadLocal<PacketBuffer>() {
+		@Override
+		protected PacketBuffer initialValue() {
+			return new PacketBuffer(MAX_DATAGRAM_SIZE);
+		}
+	};
+
+	private Datagrams() {
+	}
+
+	/**
+	 * Encode a datagram into this threads scratch buffer. The returned buffer
+	 * is only valid until the next call on the same thread.
+	 *
+	 * @param packet
+	 *            The packet, or null for a hello.
+	 */
+	public static PacketBuffer encode(final PacketCodec codec, final int uid,
+			final int sequence, final Packet packet) throws IOException {
+		final PacketBuffer buffer = BUFFER.get();
+		buffer.clear();
+		buffer.writeInt(uid);
+		buffer.writeInt(sequence);
+		if (packet != null) {
+			codec.encode(packet, buffer);
+		}
+		return buffer;
+	}
+
+	/**
+	 * @return Whether sequence comes after last, allowing for wrap around.
+	 */
+	public static boolean isNewer(final int sequence, final int last) {
+		return sequence - last > 0;
+	}
+
+}
@@ -0,0 +1,22 @@
+package org.gnet.packet;
+
+/**
+ * How a packet travels, see sendPacket(Packet, Delivery) on ClientModel and
+ * ServerModel.
+ */
+public enum Delivery {
+
+	/**
+	 * Over the TCP connection, in order and never lost.
+	 */
+	RELIABLE,
+
+	/**
+	 * Over the datagram channel, for updates that are worthless once a newer
+	 * one exists (positions and the like). Packets may be lost, and one that
+	 * arrives after a newer one is dropped. Falls back to RELIABLE when the
+	 * channel isn't up or the packet doesn't fit a datagram.
+	 */
+	UNRELIABLE_SEQUENCED
+
+}
@@ -0,0 +1,99 @@
+package org.gnet.packet;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a block written by {@link DeltaEncoder}. Call {@link #next()} for
+ * each record, then read all of its fields before moving on.
+ */
+public final class DeltaDecoder {
+
+	private final ByteBuffer in;
+	private int records;
+	private int entity;
+	private int fields;
+
+	public DeltaDecoder(final byte[] block) throws IOException {
+		in = ByteBuffer.wrap(block);
+		try {
+			records = BinaryPacketCodec.readVarInt(in);
+		} catch (final BufferUnderflowException e) {
+			throw new IOException("Truncated state block.");
+		}
+		if (records < 0 || records > in.remaining()) {
+			throw new IOException("Invalid record count: " + records);
+		}
+	}
+
+	/**
+	 * @return False once every record was read.
+	 */
+	public boolean next() throws IOException {
+		if (fields > 0) {
+			throw new IllegalStateException(fields
+					+ " fields of the last record weren't read.");
+		}
+		if (records == 0) {
+			return false;
+		}
+		records--;
+		try {
+			entity = BinaryPacketCodec.readVarInt(in);
+			fields = BinaryPacketCodec.readVarInt(in) - 1;
+		} catch (final BufferUnderflowException e) {
+			throw new IOException("Truncated state block.");
+		}
+		if (fields > in.remaining()) {
+			throw new IOException("Invalid field count: " + fields);
+		}
+		return true;
+	}
+
+	public int getEntity() {
+		return entity;
+	}
+
+	/**
+	 * @return Whether the record removes the entity.
+	 */
+	public boolean isRemoved() {
+		return fields < 0;
+	}
+
+	/**
+	 * @return Number of fields left to read in this record.
+	 */
+	public int getFieldCount() {
+		return Math.max(0, fields);
+	}
+
+	/**
+	 * Read the next fields name, its value must be read next.
+	 */
+	public String readName() throws IOException {
+		if (fields <= 0) {
+			throw new IllegalStateException("No field left in this record.");
+		}
+		try {
+			return BinaryPacketCodec.readName(in);
+		} catch (final BufferUnderflowException e) {
+			throw new IOException("Truncated state block.");
+		}
+	}
+
+	public Object readValue() throws IOException {
+		if (fields <= 0) {
+			throw new IllegalStateException("No field left in this record.");
+		}
+		try {
+			final Object value = BinaryPacketCodec.readValue(in);
+			fields--;
+			return value;
+		} catch (final BufferUnderflowException e) {
+			throw new IOException("Truncated state block.");
+		}
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.gnet.packet;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Writes the state of replicated entities as one compact block, read back by
+ * {@link DeltaDecoder}. A block is a varint record count followed by the
+ * records, each an entity id and either its changed fields or a removal.
+ * Values are written the way {@link BinaryPacketCodec} writes entries.
+ */
+public final class DeltaEncoder {
+
+	private final PacketBuffer buffer = new PacketBuffer(256);
+	private int records;
+	private int fieldsLeft;
+	// Where the last entity record starts.
+	private int recordStart;
+
+	/**
+	 * Make sure a value can be written, so a bad one is turned down where it
+	 * is set rather than failing every update that carries it.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If it can't.
+	 */
+	public static void checkValue(final Object value) {
+		if (value == null || value instanceof byte[]
+				|| value.getClass().getName().startsWith("java.lang.")
+				&& value instanceof Serializable) {
+			// Strings, boxed primitives and byte arrays.
+			return;
+		}
+		if (!(value instanceof Serializable)) {
+			throw new IllegalArgumentException("Can't encode "
+					+ value.getClass().getName());
+		}
+		try {
+			BinaryPacketCodec.writeValue(value, new PacketBuffer(256));
+		} catch (final IOException e) {
+			throw new IllegalArgumentException("Can't encode "
+					+ value.getClass().getName() + ": " + e.getMessage(), e);
+		}
+	}
+
+	public void clear() {
+		buffer.clear();
+		records = 0;
+		fieldsLeft = 0;
+	}
+
+	/**
+	 * Start an entity record, exactly fields calls to
+	 * {@link #field(String, Object)} must follow.
+	 */
+	public void entity(final int id, final int fields) {
+		checkComplete();
+		recordStart = buffer.size();
+		buffer.writeVarInt(id);
+		buffer.writeVarInt(fields + 1);
+		fieldsLeft = fields;
+		records++;
+	}
+
+	public void field(final String name, final Object value)
+			throws IOException {
+		if (fieldsLeft == 0) {
+			throw new IllegalStateException("No field left in this record.");
+		}
+		buffer.writeString(name);
+		BinaryPacketCodec.writeValue(value, buffer);
+		fieldsLeft--;
+	}
+
+	/**
+	 * Take back the entity record being written, after one of its fields
+	 * failed.
+	 */
+	public void dropEntity() {
+		if (fieldsLeft == 0) {
+			throw new IllegalStateException("No record being written.");
+		}
+		buffer.truncate(recordStart);
+		fieldsLeft = 0;
+		records--;
+	}
+
+	public void removed(final int id) {
+		checkComplete();
+		buffer.writeVarInt(id);
+		buffer.writeVarInt(0);
+		records++;
+	}
+
+	public int getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return The encoded block.
+	 */
+	public byte[] toByteArray() {
+		checkComplete();
+		final PacketBuffer block = new PacketBuffer(buffer.size() + 5);
+		block.writeVarInt(records);
+		block.writeBytes(buffer.array(), 0, buffer.size());
+		final byte[] bytes = new byte[block.size()];
+		System.arraycopy(block.array(), 0, bytes, 0, bytes.length);
+		return bytes;
+	}
+
+	private void checkComplete() {
+		if (fieldsLeft != 0) {
+			throw new IllegalStateException(fieldsLeft
+					+ " fields of the last record are missing.");
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package org.gnet.packet;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Length prefixed framing shared by every transport that uses a
+ * {@link PacketCodec}. A frame is a 4 byte big endian payload length followed
+ * by the payload itself.
+ */
+public final class Frames {
+
+	public static final int HEADER_SIZE = 4;
+
+	// Anything bigger is treated as a corrupt stream.
+	public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+	private static final ThreadLocal<PacketBuffer> BUFFER = new ThreadLocal<PacketBuffer>() {
+		@Override
+		protected PacketBuffer initialValue() {
+			return new PacketBuffer(512);
+		}
+	};
+
+	private Frames() {
+	}
+
+	/**
+	 * Encode a packet into this threads scratch buffer, header included. The
+	 * returned buffer is only valid until the next call on the same thread.
+	 */
+	public static PacketBuffer encode(final PacketCodec codec,
+			final Packet packet) throws IOException {
+		final PacketBuffer buffer = BUFFER.get();
+		buffer.clear();
+		buffer.writeInt(0);
+		codec.encode(packet, buffer);
+		buffer.setInt(0, buffer.size() - HEADER_SIZE);
+		return buffer;
+	}
+
+	/**
+	 * Encode a packet into a newly allocated frame.
+	 */
+	public static ByteBuffer encodeFrame(final PacketCodec codec,
+			final Packet packet) throws IOException {
+		return encode(codec, packet).toByteBuffer();
+	}
+
+	/**
+	 * Encode a packet and write the whole frame with a single write call.
+	 */
+	public static void write(final PacketCodec codec, final Packet packet,
+			final OutputStream out) throws IOException {
+		final PacketBuffer buffer = encode(codec, packet);
+		out.write(buffer.array(), 0, buffer.size());
+	}
+
+	/**
+	 * Block until a whole frame has been read and decode it.
+	 */
+	public static Packet read(final PacketCodec codec, final DataInputStream in)
+			throws IOException {
+		final int length = in.readInt();
+		checkLength(length);
+		final byte[] payload = new byte[length];
+		in.readFully(payload);
+		return codec.decode(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Block until a whole frame has been read into the views own array and
+	 * point the view at it. Frames must be {@link BinaryPacketCodec} encoded.
+	 */
+	public static void read(final DataInputStream in, final PacketView view)
+			throws IOException {
+		final int length = in.readInt();
+		checkLength(length);
+		final byte[] payload = view.ownedArray(length);
+		in.readFully(payload, 0, length);
+		view.wrap(payload, 0, length);
+	}
+
+	public static void checkLength(final int length) throws IOException {
+		if (length < 0 || length > MAX_FRAME_SIZE) {
+			throw new IOException("Invalid frame length: " + length);
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.gnet.packet;
+
+/**
+ * Connection settings the server sends a client as soon as it connects.
+ * Clients handle it themselves, it never reaches their listener.
+ */
+public final class HandshakePacket extends Packet {
+
+	private static final long serialVersionUID = 1L;
+
+	public HandshakePacket() {
+		super(PacketRegistry.HANDSHAKE, 3);
+	}
+
+	/**
+	 * The clients session UID, its token on the datagram channel.
+	 */
+	public void setUid(final int uid) {
+		addEntry("uid", Integer.valueOf(uid));
+	}
+
+	/**
+	 * Port of the servers datagram channel.
+	 */
+	public void setUdpPort(final int udpPort) {
+		addEntry("udpPort", Integer.valueOf(udpPort));
+	}
+
+	/**
+	 * Have the client compress with this preset dictionary from now on.
+	 */
+	public void setDictionary(final byte[] dictionary) {
+		addEntry("dictionary", dictionary);
+	}
+
+}
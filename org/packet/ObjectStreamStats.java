@@ -0,0 +1,72 @@
+package org.gnet.packet;
+
+/**
+ * A snapshot of a {@link BoundedObjectOutputStream}s bookkeeping. The peers
+ * input handle table mirrors the output table, so these numbers describe
+ * both ends of the stream.
+ */
+public final class ObjectStreamStats {
+
+	private final int handles;
+	private final int peakHandles;
+	private final long resets;
+	private final long packets;
+	private final long fullDescriptors;
+	private final long compactDescriptors;
+
+	public ObjectStreamStats(final int handles, final int peakHandles,
+			final long resets, final long packets, final long fullDescriptors,
+			final long compactDescriptors) {
+		this.handles = handles;
+		this.peakHandles = peakHandles;
+		this.resets = resets;
+		this.packets = packets;
+		this.fullDescriptors = fullDescriptors;
+		this.compactDescriptors = compactDescriptors;
+	}
+
+	/**
+	 * @return Objects in the handle table right now.
+	 */
+	public int getHandles() {
+		return handles;
+	}
+
+	/**
+	 * @return The largest the handle table got after a packet was written.
+	 */
+	public int getPeakHandles() {
+		return peakHandles;
+	}
+
+	public long getResets() {
+		return resets;
+	}
+
+	public long getPackets() {
+		return packets;
+	}
+
+	/**
+	 * @return Class descriptors sent in full.
+	 */
+	public long getFullDescriptors() {
+		return fullDescriptors;
+	}
+
+	/**
+	 * @return Class descriptors sent as a cached id.
+	 */
+	public long getCompactDescriptors() {
+		return compactDescriptors;
+	}
+
+	@Override
+	public String toString() {
+		return "handles: " + handles + ", peak: " + peakHandles + ", resets: "
+				+ resets + ", packets: " + packets + ", descriptors: "
+				+ fullDescriptors + " full / " + compactDescriptors
+				+ " compact";
+	}
+
+}
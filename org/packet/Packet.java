@@ -1,23 +1,46 @@
 package org.gnet.packet;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 
+import org.gnet.util.Log;
+import org.gnet.util.LogSink;
+
 public class Packet implements java.io.Serializable {
 	private static final long serialVersionUID = -3945349088377843798L;
 
+	// Debug output is written on the logging thread, not the packets.
+	private static final Log LOG = new Log(LogSink.console("[Packet]: "));
+
 	// The packets name.
-	private final String packetName;
+	private String packetName;
+
+	// The names opcode in the PacketRegistry, 0 if it has none.
+	private int opcode;
 
-	// A HashMap that contains packets keys/values.
-	private final HashMap<String, Object> entrys;
+	// A HashMap that contains packets keys/values, created on first use.
+	private HashMap<String, Object> entrys;
+
+	// Unboxed fields added through the typed put methods, in the order they
+	// were added. Types are BinaryPacketCodec tags, floating point values
+	// are stored as their raw bits.
+	private String[] fieldNames;
+	private byte[] fieldTypes;
+	private long[] fieldValues;
+	private byte[][] fieldBytes;
+	private int fieldCount;
 
 	// Number of slots to initialize our HashMap to.
-	private final int allottedSlots;
+	private int allottedSlots;
 
 	// True to print out packet process for debugging.
 	private boolean debugging;
 
+	// Set while the packet is borrowed from the PacketPool.
+	transient boolean pooled;
+	transient PacketPool.Leak leak;
+
 	/**
 	 * Constructor.
 	 * 
@@ -28,10 +51,33 @@ public class Packet implements java.io.Serializable {
 	 */
 	public Packet(final String packetName, final int dataSlots) {
 		this.packetName = packetName;
+		opcode = PacketRegistry.opcodeOf(packetName);
 		allottedSlots = dataSlots;
-		entrys = new HashMap<String, Object>(dataSlots);
-		print("New packet created. (Name: " + packetName + ", Data slots: "
-				+ dataSlots + ")");
+		if (debugging) {
+			print("New packet created. (Name: " + packetName
+					+ ", Data slots: " + dataSlots + ")");
+		}
+	}
+
+	/**
+	 * Constructor for a packet registered with the {@link PacketRegistry}.
+	 * 
+	 * @param opcode
+	 *            The registered opcode.
+	 * @param dataSlots
+	 *            The amount of slots to reserve for the packets data list.
+	 */
+	public Packet(final int opcode, final int dataSlots) {
+		this(registeredName(opcode), dataSlots);
+	}
+
+	private static String registeredName(final int opcode) {
+		final String name = PacketRegistry.nameOf(opcode);
+		if (name == null) {
+			throw new IllegalArgumentException("Unregistered opcode: "
+					+ opcode);
+		}
+		return name;
 	}
 
 	/**
@@ -43,17 +89,26 @@ public class Packet implements java.io.Serializable {
 	 *            The value of the 'key' to be set.
 	 */
 	public void addEntry(final String name, final Object value) {
-		if (entrys.size() == allottedSlots) {
-			printERR("Unable to add data entry (" + name
-					+ "), please increase data slots!");
+		if (size() == allottedSlots) {
+			if (debugging) {
+				printERR("Unable to add data entry (" + name
+						+ "), please increase data slots!");
+			}
 			return;
 		}
-		if (!entrys.containsKey(name)) {
+		if (!contains(name)) {
+			if (entrys == null) {
+				entrys = new HashMap<String, Object>(allottedSlots);
+			}
 			entrys.put(name, value);
-			print("Successfully added data entry (" + name + ").");
+			if (debugging) {
+				print("Successfully added data entry (" + name + ").");
+			}
 		} else {
-			printERR("Unable to add data entry (" + name
-					+ "), already exists in DB.");
+			if (debugging) {
+				printERR("Unable to add data entry (" + name
+						+ "), already exists in DB.");
+			}
 			return;
 		}
 
@@ -66,12 +121,22 @@ public class Packet implements java.io.Serializable {
 	 *            The 'key'/name to remove from data list.
 	 */
 	public void removeEntry(final String name) {
-		if (entrys.containsKey(name)) {
+		final int field = indexOf(name);
+		if (field >= 0) {
+			removeField(field);
+			if (debugging) {
+				print("Successfully removed data entry (" + name + ").");
+			}
+		} else if (entrys != null && entrys.containsKey(name)) {
 			entrys.remove(name);
-			print("Successfully removed data entry (" + name + ").");
+			if (debugging) {
+				print("Successfully removed data entry (" + name + ").");
+			}
 		} else {
-			printERR("Unable to remove data entry (" + name
-					+ "), doesn't exist in DB.");
+			if (debugging) {
+				printERR("Unable to remove data entry (" + name
+						+ "), doesn't exist in DB.");
+			}
 		}
 	}
 
@@ -84,12 +149,27 @@ public class Packet implements java.io.Serializable {
 	 *            The new value for this 'key'.
 	 */
 	public void editEntry(final String name, final String newValue) {
-		if (entrys.containsKey(name)) {
+		final int field = indexOf(name);
+		if (field >= 0) {
+			// The new value isn't a primitive, move the entry to the map.
+			removeField(field);
+			if (entrys == null) {
+				entrys = new HashMap<String, Object>(allottedSlots);
+			}
+			entrys.put(name, newValue);
+			if (debugging) {
+				print("Successfully edited data entry (" + name + ").");
+			}
+		} else if (entrys != null && entrys.containsKey(name)) {
 			entrys.put(name, newValue);
-			print("Successfully edited data entry (" + name + ").");
+			if (debugging) {
+				print("Successfully edited data entry (" + name + ").");
+			}
 		} else {
-			printERR("Unable to edit data entry (" + name
-					+ "), doesn't exist in DB.");
+			if (debugging) {
+				printERR("Unable to edit data entry (" + name
+						+ "), doesn't exist in DB.");
+			}
 		}
 	}
 
@@ -101,12 +181,21 @@ public class Packet implements java.io.Serializable {
 	 * @return The value from data list determined by the 'key' parameter.
 	 */
 	public Object getEntry(final String name) {
-		if (!entrys.containsKey(name)) {
-			printERR("Unable to fetch data entry (" + name
-					+ "), doesn't exist in DB.");
+		final int field = indexOf(name);
+		if (field >= 0) {
+			// Typed fields are boxed on demand.
+			return boxField(field);
+		}
+		if (entrys == null || !entrys.containsKey(name)) {
+			if (debugging) {
+				printERR("Unable to fetch data entry (" + name
+						+ "), doesn't exist in DB.");
+			}
 			return null;
 		}
-		print("Fetching data entry (" + name + ").");
+		if (debugging) {
+			print("Fetching data entry (" + name + ").");
+		}
 		long start = 0;
 
 		// Only bother to monitor time taken to retrieve a value
@@ -133,26 +222,328 @@ public class Packet implements java.io.Serializable {
 		return null;
 	}
 
+	/**
+	 * Add an int entry without boxing it.
+	 */
+	public void putInt(final String name, final int value) {
+		putField(name, BinaryPacketCodec.TAG_INT, value, null);
+	}
+
+	/**
+	 * Add a long entry without boxing it.
+	 */
+	public void putLong(final String name, final long value) {
+		putField(name, BinaryPacketCodec.TAG_LONG, value, null);
+	}
+
+	/**
+	 * Add a float entry without boxing it.
+	 */
+	public void putFloat(final String name, final float value) {
+		putField(name, BinaryPacketCodec.TAG_FLOAT,
+				Float.floatToRawIntBits(value), null);
+	}
+
+	/**
+	 * Add a double entry without boxing it.
+	 */
+	public void putDouble(final String name, final double value) {
+		putField(name, BinaryPacketCodec.TAG_DOUBLE,
+				Double.doubleToRawLongBits(value), null);
+	}
+
+	/**
+	 * Add a boolean entry without boxing it.
+	 */
+	public void putBoolean(final String name, final boolean value) {
+		putField(name, value ? BinaryPacketCodec.TAG_TRUE
+				: BinaryPacketCodec.TAG_FALSE, 0, null);
+	}
+
+	/**
+	 * Add a byte array entry. The array is not copied.
+	 */
+	public void putBytes(final String name, final byte[] value) {
+		putField(name, BinaryPacketCodec.TAG_BYTES, 0, value);
+	}
+
+	/**
+	 * @return The entry as an int, 0 if there is no such numeric entry.
+	 */
+	public int getInt(final String name) {
+		return (int) getLong(name);
+	}
+
+	/**
+	 * @return The entry as a long, 0 if there is no such numeric entry.
+	 */
+	public long getLong(final String name) {
+		final int field = indexOf(name);
+		if (field >= 0) {
+			switch (fieldTypes[field]) {
+			case BinaryPacketCodec.TAG_INT:
+			case BinaryPacketCodec.TAG_LONG:
+				return fieldValues[field];
+			case BinaryPacketCodec.TAG_FLOAT:
+			case BinaryPacketCodec.TAG_DOUBLE:
+				return (long) getDouble(name);
+			}
+		} else {
+			final Object value = getMapped(name);
+			if (value instanceof Number) {
+				return ((Number) value).longValue();
+			}
+		}
+		if (debugging) {
+			printERR("No numeric data entry (" + name + ").");
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The entry as a float, 0 if there is no such numeric entry.
+	 */
+	public float getFloat(final String name) {
+		final int field = indexOf(name);
+		if (field >= 0 && fieldTypes[field] == BinaryPacketCodec.TAG_FLOAT) {
+			return Float.intBitsToFloat((int) fieldValues[field]);
+		}
+		return (float) getDouble(name);
+	}
+
+	/**
+	 * @return The entry as a double, 0 if there is no such numeric entry.
+	 */
+	public double getDouble(final String name) {
+		final int field = indexOf(name);
+		if (field >= 0) {
+			switch (fieldTypes[field]) {
+			case BinaryPacketCodec.TAG_FLOAT:
+				return Float.intBitsToFloat((int) fieldValues[field]);
+			case BinaryPacketCodec.TAG_DOUBLE:
+				return Double.longBitsToDouble(fieldValues[field]);
+			case BinaryPacketCodec.TAG_INT:
+			case BinaryPacketCodec.TAG_LONG:
+				return fieldValues[field];
+			}
+		} else {
+			final Object value = getMapped(name);
+			if (value instanceof Number) {
+				return ((Number) value).doubleValue();
+			}
+		}
+		if (debugging) {
+			printERR("No numeric data entry (" + name + ").");
+		}
+		return 0;
+	}
+
+	/**
+	 * @return The entry as a boolean, false if there is no such entry.
+	 */
+	public boolean getBoolean(final String name) {
+		final int field = indexOf(name);
+		if (field >= 0) {
+			return fieldTypes[field] == BinaryPacketCodec.TAG_TRUE;
+		}
+		final Object value = getMapped(name);
+		return value instanceof Boolean && ((Boolean) value).booleanValue();
+	}
+
+	/**
+	 * @return The byte array entry, or null.
+	 */
+	public byte[] getBytes(final String name) {
+		final int field = indexOf(name);
+		if (field >= 0) {
+			return fieldBytes != null ? fieldBytes[field] : null;
+		}
+		final Object value = getMapped(name);
+		return value instanceof byte[] ? (byte[]) value : null;
+	}
+
+	/**
+	 * @return Whether an entry with the name exists.
+	 */
+	public boolean contains(final String name) {
+		return indexOf(name) >= 0 || entrys != null
+				&& entrys.containsKey(name);
+	}
+
+	/**
+	 * @return The number of entries.
+	 */
+	public int size() {
+		return fieldCount + (entrys != null ? entrys.size() : 0);
+	}
+
 	public void setDebugging(final boolean debugging) {
 		this.debugging = debugging;
 	}
 
 	private final void print(final String msg) {
 		if (debugging) {
-			System.out.println("[Packet]: " + msg);
+			LOG.debug(msg);
 		}
 	}
 
 	private final void printERR(final String msg) {
 		if (debugging) {
-			System.err.println("[Packet]: " + msg);
+			LOG.error(msg);
+		}
+	}
+
+	/**
+	 * Empty the packet for reuse by the {@link PacketPool}, keeping the
+	 * arrays if they are big enough.
+	 */
+	void reset(final String packetName, final int opcode, final int dataSlots) {
+		this.packetName = packetName;
+		this.opcode = opcode;
+		if (fieldNames != null && fieldNames.length < dataSlots) {
+			fieldNames = null;
+			fieldTypes = null;
+			fieldValues = null;
+			fieldBytes = null;
+		} else if (fieldNames != null) {
+			Arrays.fill(fieldNames, 0, fieldCount, null);
+			if (fieldBytes != null) {
+				Arrays.fill(fieldBytes, 0, fieldCount, null);
+			}
+		}
+		fieldCount = 0;
+		if (entrys != null) {
+			entrys.clear();
 		}
+		allottedSlots = dataSlots;
+		debugging = false;
+	}
+
+	/**
+	 * @return The backing entry map, for codecs only. Null until a boxed
+	 *         entry is added.
+	 */
+	HashMap<String, Object> entries() {
+		return entrys;
+	}
+
+	// Typed field access for codecs.
+
+	int fieldCount() {
+		return fieldCount;
+	}
+
+	String fieldName(final int field) {
+		return fieldNames[field];
+	}
+
+	int fieldType(final int field) {
+		return fieldTypes[field];
+	}
+
+	long fieldValue(final int field) {
+		return fieldValues[field];
+	}
+
+	byte[] fieldBytes(final int field) {
+		return fieldBytes[field];
+	}
+
+	private void putField(final String name, final int type, final long value,
+			final byte[] bytes) {
+		if (size() == allottedSlots) {
+			if (debugging) {
+				printERR("Unable to add data entry (" + name
+						+ "), please increase data slots!");
+			}
+			return;
+		}
+		if (contains(name)) {
+			if (debugging) {
+				printERR("Unable to add data entry (" + name
+						+ "), already exists in DB.");
+			}
+			return;
+		}
+		if (fieldNames == null) {
+			fieldNames = new String[allottedSlots];
+			fieldTypes = new byte[allottedSlots];
+			fieldValues = new long[allottedSlots];
+		}
+		if (bytes != null && fieldBytes == null) {
+			fieldBytes = new byte[fieldNames.length][];
+		}
+		fieldNames[fieldCount] = name;
+		fieldTypes[fieldCount] = (byte) type;
+		fieldValues[fieldCount] = value;
+		if (bytes != null) {
+			fieldBytes[fieldCount] = bytes;
+		}
+		fieldCount++;
+		if (debugging) {
+			print("Successfully added data entry (" + name + ").");
+		}
+	}
+
+	private int indexOf(final String name) {
+		for (int i = 0; i < fieldCount; i++) {
+			// Names are usually the same literal, try the cheap check first.
+			if (fieldNames[i] == name || fieldNames[i].equals(name)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void removeField(final int field) {
+		final int moved = fieldCount - field - 1;
+		System.arraycopy(fieldNames, field + 1, fieldNames, field, moved);
+		System.arraycopy(fieldTypes, field + 1, fieldTypes, field, moved);
+		System.arraycopy(fieldValues, field + 1, fieldValues, field, moved);
+		if (fieldBytes != null) {
+			System.arraycopy(fieldBytes, field + 1, fieldBytes, field, moved);
+			fieldBytes[fieldCount - 1] = null;
+		}
+		fieldCount--;
+		fieldNames[fieldCount] = null;
+	}
+
+	private Object boxField(final int field) {
+		final long value = fieldValues[field];
+		switch (fieldTypes[field]) {
+		case BinaryPacketCodec.TAG_INT:
+			return Integer.valueOf((int) value);
+		case BinaryPacketCodec.TAG_LONG:
+			return Long.valueOf(value);
+		case BinaryPacketCodec.TAG_FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) value));
+		case BinaryPacketCodec.TAG_DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(value));
+		case BinaryPacketCodec.TAG_TRUE:
+			return Boolean.TRUE;
+		case BinaryPacketCodec.TAG_FALSE:
+			return Boolean.FALSE;
+		default:
+			return fieldBytes[field];
+		}
+	}
+
+	private Object getMapped(final String name) {
+		return entrys != null ? entrys.get(name) : null;
 	}
 
 	public String getPacketName() {
 		return packetName;
 	}
 
+	/**
+	 * @return The opcode registered for this packets name, or
+	 *         {@link PacketRegistry#UNREGISTERED}.
+	 */
+	public int getOpcode() {
+		return opcode;
+	}
+
 	public int getAllottedSlots() {
 		return allottedSlots;
 	}
@@ -0,0 +1,176 @@
+package org.gnet.packet;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * A growable byte buffer that codecs encode into. Buffers are meant to be
+ * reused, call {@link #clear()} instead of creating a new one.
+ */
+public final class PacketBuffer {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private byte[] data;
+	private int size;
+	private OutputStream stream;
+
+	public PacketBuffer(final int initialCapacity) {
+		data = new byte[Math.max(16, initialCapacity)];
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Drop what was written after the first size bytes.
+	 */
+	public void truncate(final int size) {
+		if (size < 0 || size > this.size) {
+			throw new IndexOutOfBoundsException("size: " + size + ", was: "
+					+ this.size);
+		}
+		this.size = size;
+	}
+
+	public byte[] array() {
+		return data;
+	}
+
+	public void writeByte(final int value) {
+		ensureCapacity(1);
+		data[size++] = (byte) value;
+	}
+
+	public void writeInt(final int value) {
+		ensureCapacity(4);
+		putInt(size, value);
+		size += 4;
+	}
+
+	public void writeLong(final long value) {
+		writeInt((int) (value >>> 32));
+		writeInt((int) value);
+	}
+
+	/**
+	 * Write an unsigned LEB128 varint, 1 byte for values below 128.
+	 */
+	public void writeVarInt(int value) {
+		ensureCapacity(5);
+		while ((value & ~0x7F) != 0) {
+			data[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[size++] = (byte) value;
+	}
+
+	public void writeVarLong(long value) {
+		ensureCapacity(10);
+		while ((value & ~0x7FL) != 0) {
+			data[size++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[size++] = (byte) value;
+	}
+
+	/**
+	 * Write a varint byte length followed by the strings UTF-8 bytes.
+	 */
+	public void writeString(final String value) {
+		final int length = value.length();
+		for (int i = 0; i < length; i++) {
+			if (value.charAt(i) >= 0x80) {
+				// Not plain ASCII, let the JDK do the encoding.
+				final byte[] bytes = value.getBytes(UTF_8);
+				writeVarInt(bytes.length);
+				writeBytes(bytes, 0, bytes.length);
+				return;
+			}
+		}
+		writeVarInt(length);
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			data[size++] = (byte) value.charAt(i);
+		}
+	}
+
+	public void writeBytes(final byte[] bytes, final int offset,
+			final int length) {
+		ensureCapacity(length);
+		System.arraycopy(bytes, offset, data, size, length);
+		size += length;
+	}
+
+	/**
+	 * Overwrite an int that has already been written, used to patch frame
+	 * length headers once the payload size is known.
+	 */
+	public void setInt(final int index, final int value) {
+		if (index < 0 || index + 4 > size) {
+			throw new IndexOutOfBoundsException("index: " + index + ", size: "
+					+ size);
+		}
+		putInt(index, value);
+	}
+
+	/**
+	 * @return A copy of the buffers contents, ready to be written.
+	 */
+	public ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(Arrays.copyOf(data, size));
+	}
+
+	/**
+	 * @return An OutputStream view appending to this buffer.
+	 */
+	public OutputStream asOutputStream() {
+		if (stream == null) {
+			stream = new OutputStream() {
+				@Override
+				public void write(final int b) {
+					writeByte(b);
+				}
+
+				@Override
+				public void write(final byte[] b, final int off, final int len) {
+					writeBytes(b, off, len);
+				}
+			};
+		}
+		return stream;
+	}
+
+	private void putInt(final int index, final int value) {
+		data[index] = (byte) (value >>> 24);
+		data[index + 1] = (byte) (value >>> 16);
+		data[index + 2] = (byte) (value >>> 8);
+		data[index + 3] = (byte) value;
+	}
+
+	/**
+	 * Move the end of the buffer, used after writing into {@link #array()}
+	 * directly or to drop what was written past size.
+	 */
+	void setSize(final int size) {
+		if (size < 0 || size > data.length) {
+			throw new IndexOutOfBoundsException("size: " + size
+					+ ", capacity: " + data.length);
+		}
+		this.size = size;
+	}
+
+	void ensureCapacity(final int extra) {
+		if (size + extra > data.length) {
+			data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.gnet.packet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Turns a {@link Packet} into the payload of a single wire frame and back.
+ * Framing itself (the length header) is handled by {@link Frames}, so a
+ * codec only ever sees one packet worth of bytes.
+ *
+ * Codecs are shared between connections and threads, implementations must
+ * therefore be stateless.
+ */
+public interface PacketCodec {
+
+	/**
+	 * Encode a packet.
+	 *
+	 * @param packet
+	 *            The packet to encode.
+	 * @param out
+	 *            The buffer to append the encoded payload to.
+	 */
+	void encode(Packet packet, PacketBuffer out) throws IOException;
+
+	/**
+	 * Decode a packet.
+	 *
+	 * @param payload
+	 *            The frame payload, positioned at its first byte and limited
+	 *            to its last.
+	 * @return The decoded packet.
+	 */
+	Packet decode(ByteBuffer payload) throws IOException;
+
+}
@@ -0,0 +1,159 @@
+package org.gnet.packet;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reusable packets for the send path. Acquire a packet, fill it and hand it
+ * to sendPacket() or sendToAll(): the transport recycles it once encoded, so
+ * the packet must not be touched after sending. A packet that ends up not
+ * being sent can be given back with {@link #recycle(Packet)}.
+ *
+ * Every thread keeps its own pool, so packets are best acquired on the
+ * thread that sends them. With leak detection on, pooled packets that get
+ * garbage collected without being sent or recycled are reported along with
+ * the stack that acquired them.
+ */
+public final class PacketPool {
+
+	private static final int MAX_POOLED = 256;
+
+	private static final ThreadLocal<Free> FREE = new ThreadLocal<Free>() {
+		@Override
+		protected Free initialValue() {
+			return new Free();
+		}
+	};
+
+	private static final ReferenceQueue<Packet> COLLECTED = new ReferenceQueue<Packet>();
+	private static final Set<Leak> ACQUIRED = Collections
+			.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+	private static volatile boolean leakDetection;
+
+	private PacketPool() {
+	}
+
+	/**
+	 * @return An empty packet for a name registered with the
+	 *         {@link PacketRegistry}.
+	 */
+	public static Packet acquire(final int opcode, final int dataSlots) {
+		final String packetName = PacketRegistry.nameOf(opcode);
+		if (packetName == null) {
+			throw new IllegalArgumentException("Unregistered opcode: "
+					+ opcode);
+		}
+		return acquire(packetName, opcode, dataSlots);
+	}
+
+	/**
+	 * @return An empty packet.
+	 */
+	public static Packet acquire(final String packetName, final int dataSlots) {
+		return acquire(packetName, PacketRegistry.opcodeOf(packetName),
+				dataSlots);
+	}
+
+	/**
+	 * Give a packet back to the pool. Transports call this once they have
+	 * encoded a packet, it does nothing for packets that didn't come from the
+	 * pool or were recycled already.
+	 */
+	public static void recycle(final Packet packet) {
+		if (!release(packet)) {
+			return;
+		}
+		final Free free = FREE.get();
+		if (free.size < MAX_POOLED) {
+			free.packets[free.size++] = packet;
+		}
+	}
+
+	/**
+	 * Take a packet out of the pool for good. For transports that keep a
+	 * reference to what they sent, object streams for example.
+	 */
+	public static void discard(final Packet packet) {
+		release(packet);
+	}
+
+	/**
+	 * Report pooled packets that are never sent or recycled. Costs a stack
+	 * trace per acquire, meant for debugging.
+	 */
+	public static void setLeakDetection(final boolean leakDetection) {
+		PacketPool.leakDetection = leakDetection;
+	}
+
+	public static boolean isLeakDetection() {
+		return leakDetection;
+	}
+
+	private static Packet acquire(final String packetName, final int opcode,
+			final int dataSlots) {
+		final Free free = FREE.get();
+		final Packet packet;
+		if (free.size > 0) {
+			packet = free.packets[--free.size];
+			free.packets[free.size] = null;
+			packet.reset(packetName, opcode, dataSlots);
+		} else {
+			packet = new Packet(packetName, dataSlots);
+		}
+		packet.pooled = true;
+		if (leakDetection) {
+			reportLeaks();
+			packet.leak = new Leak(packet);
+			ACQUIRED.add(packet.leak);
+		}
+		return packet;
+	}
+
+	private static boolean release(final Packet packet) {
+		if (!packet.pooled) {
+			return false;
+		}
+		packet.pooled = false;
+		if (packet.leak != null) {
+			ACQUIRED.remove(packet.leak);
+			packet.leak.clear();
+			packet.leak = null;
+		}
+		return true;
+	}
+
+	private static void reportLeaks() {
+		Reference<? extends Packet> collected;
+		while ((collected = COLLECTED.poll()) != null) {
+			if (ACQUIRED.remove(collected)) {
+				System.err.println("[PacketPool]: A pooled packet was garbage"
+						+ " collected without being sent or recycled.");
+				((Leak) collected).acquiredAt.printStackTrace();
+			}
+		}
+	}
+
+	private static final class Free {
+		final Packet[] packets = new Packet[MAX_POOLED];
+		int size;
+	}
+
+	/**
+	 * Tracks a borrowed packet while leak detection is on.
+	 */
+	static final class Leak extends WeakReference<Packet> {
+
+		final Throwable acquiredAt;
+
+		Leak(final Packet packet) {
+			super(packet, COLLECTED);
+			acquiredAt = new Throwable("Packet " + packet.getPacketName()
+					+ " acquired here");
+		}
+	}
+
+}
@@ -0,0 +1,136 @@
+package org.gnet.packet;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Maps packet names to small numeric opcodes. A registered packet is sent as
+ * its opcode instead of its name, and can be routed by opcode through an
+ * array instead of comparing names. Both ends must register the same packets
+ * with the same opcodes, usually from one shared class at startup.
+ *
+ * Opcode 0 means unregistered, such packets still carry their name.
+ */
+public final class PacketRegistry {
+
+	public static final int UNREGISTERED = 0;
+
+	/**
+	 * Sent by a client that is disconnecting.
+	 */
+	public static final int SHUTTING_DOWN = 1;
+
+	/**
+	 * Sent by the server to ask a client to disconnect.
+	 */
+	public static final int CLIENT_SHUTDOWN = 2;
+
+	/**
+	 * Sent by the server right after a client connects, carrying the
+	 * connection settings the client has to adopt.
+	 */
+	public static final int HANDSHAKE = 3;
+
+	/**
+	 * Replicated entity state, a full snapshot or a delta, see
+	 * {@link DeltaEncoder}.
+	 */
+	public static final int REPLICATION_UPDATE = 4;
+
+	/**
+	 * Sent by clients to acknowledge the last replication update they applied.
+	 */
+	public static final int REPLICATION_ACK = 5;
+
+	/**
+	 * Lowest opcode left for applications.
+	 */
+	public static final int FIRST_USER_OPCODE = 16;
+
+	/**
+	 * Opcodes must be below this.
+	 */
+	public static final int MAX_OPCODES = 4096;
+
+	private static final ReentrantLock LOCK = new ReentrantLock();
+	private static final ConcurrentHashMap<String, Integer> OPCODES = new ConcurrentHashMap<String, Integer>();
+	private static volatile String[] names = new String[FIRST_USER_OPCODE];
+
+	static {
+		add("ShuttingDown", SHUTTING_DOWN);
+		add("ClientShutdownPacket", CLIENT_SHUTDOWN);
+		add("Handshake", HANDSHAKE);
+		add("ReplicationUpdate", REPLICATION_UPDATE);
+		add("ReplicationAck", REPLICATION_ACK);
+	}
+
+	private PacketRegistry() {
+	}
+
+	/**
+	 * Register a packet name under an opcode. Registering the same pair twice
+	 * does nothing.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the opcode is reserved, out of range or taken, or the
+	 *             name already has another opcode.
+	 */
+	public static void register(final String name, final int opcode) {
+		if (opcode < FIRST_USER_OPCODE || opcode >= MAX_OPCODES) {
+			throw new IllegalArgumentException("Opcode " + opcode
+					+ " not between " + FIRST_USER_OPCODE + " and "
+					+ (MAX_OPCODES - 1));
+		}
+		add(name, opcode);
+	}
+
+	/**
+	 * @return The names opcode, or {@link #UNREGISTERED}.
+	 */
+	public static int opcodeOf(final String name) {
+		final Integer opcode = OPCODES.get(name);
+		return opcode != null ? opcode.intValue() : UNREGISTERED;
+	}
+
+	/**
+	 * @return The name registered under the opcode, or null.
+	 */
+	public static String nameOf(final int opcode) {
+		final String[] current = names;
+		return opcode > 0 && opcode < current.length ? current[opcode] : null;
+	}
+
+	private static void add(final String name, final int opcode) {
+		LOCK.lock();
+		try {
+			final String existing = nameOf(opcode);
+			final int existingOpcode = opcodeOf(name);
+			if (name.equals(existing) && existingOpcode == opcode) {
+				return;
+			}
+			if (existing != null) {
+				throw new IllegalArgumentException("Opcode " + opcode
+						+ " is already taken by " + existing);
+			}
+			if (existingOpcode != UNREGISTERED) {
+				throw new IllegalArgumentException(name
+						+ " is already registered as " + existingOpcode);
+			}
+			String[] grown = names;
+			if (opcode >= grown.length) {
+				final String[] copy = new String[Math.min(MAX_OPCODES,
+						Math.max(opcode + 1, grown.length * 2))];
+				System.arraycopy(grown, 0, copy, 0, grown.length);
+				grown = copy;
+			} else {
+				grown = grown.clone();
+			}
+			grown[opcode] = name;
+			names = grown;
+			OPCODES.put(name, Integer.valueOf(opcode));
+		} finally {
+			LOCK.unlock();
+		}
+	}
+
+}
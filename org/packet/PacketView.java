@@ -0,0 +1,399 @@
+package org.gnet.packet;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+
+/**
+ * A read only window onto a received {@link BinaryPacketCodec} frame. Nothing
+ * is decoded up front: each getter scans the frame for its entry and decodes
+ * just that value, so reading a few ints allocates nothing. Sending a view
+ * that wasn't modified copies its bytes as they are, without decoding and
+ * encoding again.
+ *
+ * A view is only valid until the handler it was passed to returns, after
+ * that the transport reuses it for the next frame. Use {@link #toPacket()}
+ * to keep a packet around. Modifying a view decodes it into a regular packet
+ * first, with room for {@link #EXTRA_SLOTS} more entries.
+ */
+public final class PacketView extends Packet {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Entries that can be added to a view on top of the ones it arrived with.
+	 */
+	public static final int EXTRA_SLOTS = 8;
+
+	// Blocking readers keep frames up to this size in their own array.
+	private static final int MAX_OWNED = 64 * 1024;
+
+	private transient ByteBuffer buffer;
+	private transient byte[] owned;
+	private transient int start;
+	private transient int entriesStart;
+	private transient int entryCount;
+	private transient boolean bound;
+	private transient boolean decoded;
+
+	public PacketView() {
+		super("", 0);
+	}
+
+	/**
+	 * Point the view at a frames payload. Checks the payloads structure, so
+	 * getters can't run into a malformed frame later. The array must not
+	 * change until {@link #release()}.
+	 */
+	public void wrap(final byte[] array, final int offset, final int length)
+			throws IOException {
+		if (buffer == null || buffer.array() != array) {
+			buffer = ByteBuffer.wrap(array);
+		}
+		buffer.limit(offset + length);
+		buffer.position(offset);
+		start = offset;
+		decoded = false;
+		try {
+			final int opcode = BinaryPacketCodec.readVarInt(buffer);
+			final String name = opcode == PacketRegistry.UNREGISTERED
+					? BinaryPacketCodec.readName(buffer) : PacketRegistry
+							.nameOf(opcode);
+			if (name == null) {
+				throw new IOException("Unregistered opcode: " + opcode);
+			}
+			entryCount = BinaryPacketCodec.readVarInt(buffer);
+			if (entryCount < 0 || entryCount > buffer.remaining()) {
+				throw new IOException("Invalid entry count: " + entryCount);
+			}
+			entriesStart = buffer.position();
+			for (int i = 0; i < entryCount; i++) {
+				final int keyLength = BinaryPacketCodec.readLength(buffer);
+				buffer.position(buffer.position() + keyLength);
+				BinaryPacketCodec.skipValue(buffer.get(), buffer);
+			}
+			reset(name, opcode, entryCount);
+		} catch (final RuntimeException e) {
+			// Buffer under- or overflow from a truncated payload.
+			throw new IOException("Truncated packet payload.");
+		}
+		bound = true;
+	}
+
+	/**
+	 * For transports that read frames into the views own array, see
+	 * {@link Frames#read(java.io.DataInputStream, PacketView)}.
+	 *
+	 * @return An array to read length bytes into, then wrap.
+	 */
+	public byte[] ownedArray(final int length) {
+		if (length > MAX_OWNED) {
+			return new byte[length];
+		}
+		if (owned == null || owned.length < length) {
+			owned = new byte[Math.max(length, 512)];
+		}
+		return owned;
+	}
+
+	/**
+	 * Called by the transport once the handler returned, the view can't be
+	 * used after this.
+	 */
+	public void release() {
+		// The buffer is kept, frames usually arrive in the same array.
+		bound = false;
+		reset("", PacketRegistry.UNREGISTERED, 0);
+	}
+
+	/**
+	 * @return A standalone copy that stays valid after the handler returns,
+	 *         with room for {@link #EXTRA_SLOTS} more entries like a modified
+	 *         view.
+	 */
+	public Packet toPacket() {
+		checkBound();
+		try {
+			if (!decoded) {
+				// Straight from the frame, no need to encode it again.
+				final Packet copy = new Packet(getPacketName(), entryCount
+						+ EXTRA_SLOTS);
+				buffer.position(entriesStart);
+				for (int i = 0; i < entryCount; i++) {
+					BinaryPacketCodec.readEntry(
+							BinaryPacketCodec.readName(buffer), buffer, copy);
+				}
+				return copy;
+			}
+			final BinaryPacketCodec codec = new BinaryPacketCodec();
+			final PacketBuffer copy = new PacketBuffer(64);
+			codec.encode(this, copy);
+			return codec.decode(ByteBuffer.wrap(copy.array(), 0, copy.size()));
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return Whether the view still holds exactly the bytes it arrived as.
+	 */
+	boolean isRaw() {
+		return bound && !decoded;
+	}
+
+	/**
+	 * Copy the payload as it arrived.
+	 */
+	void writeRaw(final PacketBuffer out) {
+		out.writeBytes(buffer.array(), start, buffer.limit() - start);
+	}
+
+	@Override
+	public Object getEntry(final String name) {
+		if (decode(false)) {
+			return super.getEntry(name);
+		}
+		final int tag = seek(name);
+		if (tag < 0) {
+			return null;
+		}
+		try {
+			return BinaryPacketCodec.readValue(tag, buffer);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public long getLong(final String name) {
+		if (decode(false)) {
+			return super.getLong(name);
+		}
+		switch (seek(name)) {
+		case BinaryPacketCodec.TAG_INT:
+		case BinaryPacketCodec.TAG_SHORT:
+			return BinaryPacketCodec.unZigZag(readVarInt());
+		case BinaryPacketCodec.TAG_LONG:
+			return BinaryPacketCodec.unZigZag(readVarLong());
+		case BinaryPacketCodec.TAG_BYTE:
+			return buffer.get();
+		case BinaryPacketCodec.TAG_CHAR:
+			return readVarInt();
+		case BinaryPacketCodec.TAG_FLOAT:
+			return (long) Float.intBitsToFloat(buffer.getInt());
+		case BinaryPacketCodec.TAG_DOUBLE:
+			return (long) Double.longBitsToDouble(buffer.getLong());
+		default:
+			return 0;
+		}
+	}
+
+	@Override
+	public double getDouble(final String name) {
+		if (decode(false)) {
+			return super.getDouble(name);
+		}
+		switch (seek(name)) {
+		case BinaryPacketCodec.TAG_FLOAT:
+			return Float.intBitsToFloat(buffer.getInt());
+		case BinaryPacketCodec.TAG_DOUBLE:
+			return Double.longBitsToDouble(buffer.getLong());
+		case -1:
+			return 0;
+		default:
+			// Integral, step back onto the tag and read it as a long.
+			return getLong(buffer.position() - 1);
+		}
+	}
+
+	@Override
+	public boolean getBoolean(final String name) {
+		if (decode(false)) {
+			return super.getBoolean(name);
+		}
+		return seek(name) == BinaryPacketCodec.TAG_TRUE;
+	}
+
+	@Override
+	public byte[] getBytes(final String name) {
+		if (decode(false)) {
+			return super.getBytes(name);
+		}
+		if (seek(name) != BinaryPacketCodec.TAG_BYTES) {
+			return null;
+		}
+		final byte[] bytes = new byte[readVarInt()];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	@Override
+	public boolean contains(final String name) {
+		if (decode(false)) {
+			return super.contains(name);
+		}
+		return seek(name) >= 0;
+	}
+
+	@Override
+	public int size() {
+		if (decode(false)) {
+			return super.size();
+		}
+		return entryCount;
+	}
+
+	@Override
+	public void addEntry(final String name, final Object value) {
+		decode(true);
+		super.addEntry(name, value);
+	}
+
+	@Override
+	public void removeEntry(final String name) {
+		decode(true);
+		super.removeEntry(name);
+	}
+
+	@Override
+	public void editEntry(final String name, final String newValue) {
+		decode(true);
+		super.editEntry(name, newValue);
+	}
+
+	@Override
+	public void putInt(final String name, final int value) {
+		decode(true);
+		super.putInt(name, value);
+	}
+
+	@Override
+	public void putLong(final String name, final long value) {
+		decode(true);
+		super.putLong(name, value);
+	}
+
+	@Override
+	public void putFloat(final String name, final float value) {
+		decode(true);
+		super.putFloat(name, value);
+	}
+
+	@Override
+	public void putDouble(final String name, final double value) {
+		decode(true);
+		super.putDouble(name, value);
+	}
+
+	@Override
+	public void putBoolean(final String name, final boolean value) {
+		decode(true);
+		super.putBoolean(name, value);
+	}
+
+	@Override
+	public void putBytes(final String name, final byte[] value) {
+		decode(true);
+		super.putBytes(name, value);
+	}
+
+	/**
+	 * Serialize as a plain packet, a view means nothing elsewhere.
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		return toPacket();
+	}
+
+	/**
+	 * @param force
+	 *            Decode the entries into the packet if that hasn't happened.
+	 * @return Whether the entries live in the packet rather than the frame.
+	 */
+	private boolean decode(final boolean force) {
+		checkBound();
+		if (decoded || !force) {
+			return decoded;
+		}
+		// Mark first, the put methods below must go straight to the packet.
+		decoded = true;
+		reset(getPacketName(), getOpcode(), entryCount + EXTRA_SLOTS);
+		buffer.position(entriesStart);
+		try {
+			for (int i = 0; i < entryCount; i++) {
+				BinaryPacketCodec.readEntry(BinaryPacketCodec.readName(buffer),
+						buffer, this);
+			}
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return true;
+	}
+
+	/**
+	 * Find an entry and position the buffer on its value.
+	 *
+	 * @return The entries tag, -1 if there is none.
+	 */
+	private int seek(final String name) {
+		buffer.position(entriesStart);
+		for (int i = 0; i < entryCount; i++) {
+			final int keyLength = readVarInt();
+			final int keyStart = buffer.position();
+			buffer.position(keyStart + keyLength);
+			final int tag = buffer.get();
+			if (BinaryPacketCodec.matches(name, buffer.array(), keyStart,
+					keyLength)) {
+				return tag;
+			}
+			try {
+				BinaryPacketCodec.skipValue(tag, buffer);
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return -1;
+	}
+
+	private long getLong(final int tagPosition) {
+		buffer.position(tagPosition);
+		switch (buffer.get()) {
+		case BinaryPacketCodec.TAG_INT:
+		case BinaryPacketCodec.TAG_SHORT:
+			return BinaryPacketCodec.unZigZag(readVarInt());
+		case BinaryPacketCodec.TAG_LONG:
+			return BinaryPacketCodec.unZigZag(readVarLong());
+		case BinaryPacketCodec.TAG_BYTE:
+			return buffer.get();
+		case BinaryPacketCodec.TAG_CHAR:
+			return readVarInt();
+		default:
+			return 0;
+		}
+	}
+
+	private int readVarInt() {
+		try {
+			return BinaryPacketCodec.readVarInt(buffer);
+		} catch (final IOException e) {
+			// wrap() checked the frame already.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private long readVarLong() {
+		try {
+			return BinaryPacketCodec.readVarLong(buffer);
+		} catch (final IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void checkBound() {
+		if (!bound) {
+			throw new IllegalStateException(
+					"PacketView used after its handler returned, keep a"
+							+ " toPacket() copy instead.");
+		}
+	}
+
+}
@@ -0,0 +1,67 @@
+package org.gnet.packet;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Frames each packet as its own Java serialization stream. Wire compatible
+ * with nothing but itself, but accepts any Serializable entry value.
+ */
+public class SerializedPacketCodec implements PacketCodec {
+
+	public void encode(final Packet packet, final PacketBuffer out)
+			throws IOException {
+		final ObjectOutputStream oos = new ObjectOutputStream(
+				out.asOutputStream());
+		oos.writeObject(packet);
+		oos.flush();
+	}
+
+	public Packet decode(final ByteBuffer payload) throws IOException {
+		final ObjectInputStream ois = new ObjectInputStream(
+				new ByteBufferInputStream(payload));
+		try {
+			final Object incoming = ois.readObject();
+			if (!(incoming instanceof Packet)) {
+				throw new IOException("Frame does not contain a packet: "
+						+ incoming);
+			}
+			return (Packet) incoming;
+		} catch (final ClassNotFoundException e) {
+			throw new IOException("Unknown class in frame: " + e.getMessage());
+		}
+	}
+
+	private static final class ByteBufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(final ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			final int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+}
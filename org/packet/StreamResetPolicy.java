@@ -0,0 +1,56 @@
+package org.gnet.packet;
+
+/**
+ * Bounds the memory a long lived ObjectOutputStream connection holds on to.
+ * ObjectOutputStream remembers every object it ever wrote (and the peers
+ * ObjectInputStream every object it read) until reset() is called, this
+ * policy decides when to reset.
+ *
+ * A reset travels in-band, so the peer clears its table at exactly the same
+ * point in the stream without any extra handshake.
+ */
+public final class StreamResetPolicy {
+
+	private final int maxPackets;
+	private final int maxHandles;
+	private final boolean compactDescriptors;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxPackets
+	 *            Reset after this many packets, 0 to disable.
+	 * @param maxHandles
+	 *            Reset once the handle table holds this many objects, 0 to
+	 *            disable.
+	 * @param compactDescriptors
+	 *            Send every class descriptor in full only once per connection
+	 *            and a 2 byte id after that, even across resets. Changes the
+	 *            wire format, both peers must enable it.
+	 */
+	public StreamResetPolicy(final int maxPackets, final int maxHandles,
+			final boolean compactDescriptors) {
+		this.maxPackets = maxPackets;
+		this.maxHandles = maxHandles;
+		this.compactDescriptors = compactDescriptors;
+	}
+
+	public boolean shouldReset(final int packetsSinceReset,
+			final int handlesSinceReset) {
+		return maxPackets > 0 && packetsSinceReset >= maxPackets
+				|| maxHandles > 0 && handlesSinceReset >= maxHandles;
+	}
+
+	public int getMaxPackets() {
+		return maxPackets;
+	}
+
+	public int getMaxHandles() {
+		return maxHandles;
+	}
+
+	public boolean isCompactDescriptors() {
+		return compactDescriptors;
+	}
+
+}
@@ -0,0 +1,117 @@
+package org.gnet.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the bytes queued for each client, so a client on a slow link can't
+ * pile up memory or hold up whoever sends to it: sending only ever queues,
+ * and once a clients queue is full its {@link OverflowAction} decides.
+ *
+ * Above the high watermark a client turns unwritable and
+ * {@link ServerEventListener#writabilityChanged} tells producers to back
+ * off, once drained below the low one it is writable again.
+ *
+ * Connection control packets (reserved opcodes) are never dropped. The
+ * object stream transport can't skip packets, with it every action but
+ * {@link OverflowAction#DISCONNECT} disconnects as well.
+ */
+public final class BackpressurePolicy {
+
+	/**
+	 * No limit and no writability changes (the default).
+	 */
+	public static final BackpressurePolicy UNBOUNDED = new BackpressurePolicy(
+			Long.MAX_VALUE, OverflowAction.DISCONNECT, 0, Long.MAX_VALUE,
+			Long.MAX_VALUE);
+
+	private final long maxBytes;
+	private final OverflowAction action;
+	private final long ttlNanos;
+	private final long lowWatermark;
+	private final long highWatermark;
+
+	private BackpressurePolicy(final long maxBytes,
+			final OverflowAction action, final long ttlNanos,
+			final long lowWatermark, final long highWatermark) {
+		this.maxBytes = maxBytes;
+		this.action = action;
+		this.ttlNanos = ttlNanos;
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+	}
+
+	private static BackpressurePolicy bounded(final long maxBytes,
+			final OverflowAction action, final long ttlNanos) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes must be > 0");
+		}
+		return new BackpressurePolicy(maxBytes, action, ttlNanos,
+				maxBytes / 4, maxBytes / 2);
+	}
+
+	public static BackpressurePolicy dropOldest(final long maxBytes) {
+		return bounded(maxBytes, OverflowAction.DROP_OLDEST, 0);
+	}
+
+	/**
+	 * Packets that waited longer than ttlMillis are dropped instead of
+	 * written, whether or not the queue is full.
+	 */
+	public static BackpressurePolicy expire(final long maxBytes,
+			final long ttlMillis) {
+		if (ttlMillis <= 0) {
+			throw new IllegalArgumentException("ttlMillis must be > 0");
+		}
+		return bounded(maxBytes, OverflowAction.EXPIRE,
+				TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+	}
+
+	public static BackpressurePolicy conflate(final long maxBytes) {
+		return bounded(maxBytes, OverflowAction.CONFLATE, 0);
+	}
+
+	public static BackpressurePolicy disconnect(final long maxBytes) {
+		return bounded(maxBytes, OverflowAction.DISCONNECT, 0);
+	}
+
+	/**
+	 * @return A copy with other watermarks, by default half and a quarter of
+	 *         the limit.
+	 */
+	public BackpressurePolicy withWatermarks(final long lowBytes,
+			final long highBytes) {
+		if (lowBytes < 0 || lowBytes > highBytes) {
+			throw new IllegalArgumentException("Invalid watermarks: "
+					+ lowBytes + " / " + highBytes);
+		}
+		return new BackpressurePolicy(maxBytes, action, ttlNanos, lowBytes,
+				highBytes);
+	}
+
+	/**
+	 * @return Most bytes queued per client, Long.MAX_VALUE if unbounded.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public OverflowAction getAction() {
+		return action;
+	}
+
+	/**
+	 * @return How long a packet may wait, 0 if packets don't expire.
+	 */
+	public long getTtlNanos() {
+		return ttlNanos;
+	}
+
+	public long getLowWatermark() {
+		return lowWatermark;
+	}
+
+	public long getHighWatermark() {
+		return highWatermark;
+	}
+
+}
@@ -0,0 +1,18 @@
+package org.gnet.server;
+
+public enum BatchMode {
+
+	/**
+	 * Deliver the packets a single read brought in for a client together,
+	 * on the thread that read them (or the clients worker).
+	 */
+	PER_CONNECTION,
+
+	/**
+	 * Queue packets until {@link GNetServer#pollPackets()} is called, then
+	 * deliver everything in one batch on the calling thread, grouped by
+	 * client.
+	 */
+	PER_TICK
+
+}
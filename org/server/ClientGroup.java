@@ -0,0 +1,109 @@
+package org.gnet.server;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToLongFunction;
+
+import org.gnet.packet.Packet;
+
+/**
+ * A named set of clients (a party, guild, instance...) that can be sent to
+ * as one, see {@link GNetServer#getGroup(String)}. Joining and leaving never
+ * lock and never wait for senders. Sending sees a weakly consistent
+ * membership: clients joining or leaving meanwhile may or may not get the
+ * packet. Clients leave all their groups when they disconnect.
+ */
+public final class ClientGroup {
+
+	private static final LongBinaryOperator SUM = new LongBinaryOperator() {
+		public long applyAsLong(final long left, final long right) {
+			return left + right;
+		}
+	};
+
+	private final String name;
+	private final ConcurrentHashMap<ClientModel, Boolean> members = new ConcurrentHashMap<ClientModel, Boolean>();
+	private volatile boolean removed;
+
+	ClientGroup(final String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return False if the client was already a member, is disconnected or
+	 *         the group was removed.
+	 */
+	public boolean join(final ClientModel client) {
+		if (removed || members.putIfAbsent(client, Boolean.TRUE) != null) {
+			return false;
+		}
+		client.groups.add(this);
+		if (!client.isConnected() || removed) {
+			// Raced with the client leaving or the group going away.
+			leave(client);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return False if the client wasn't a member.
+	 */
+	public boolean leave(final ClientModel client) {
+		client.groups.remove(this);
+		return members.remove(client) != null;
+	}
+
+	public boolean contains(final ClientModel client) {
+		return members.containsKey(client);
+	}
+
+	public int size() {
+		return members.size();
+	}
+
+	public boolean isEmpty() {
+		return members.isEmpty();
+	}
+
+	/**
+	 * @return A live, read only view of the members.
+	 */
+	public Set<ClientModel> getMembers() {
+		return Collections.unmodifiableSet(members.keySet());
+	}
+
+	/**
+	 * Drop every member, later joins are refused.
+	 */
+	void remove() {
+		removed = true;
+		for (final ClientModel client : members.keySet()) {
+			leave(client);
+		}
+	}
+
+	/**
+	 * Queue an encoded frame for every member but except (may be null), large
+	 * groups are fanned out across the common fork/join pool.
+	 *
+	 * @return The number of members the frame was queued for.
+	 */
+	long queueFrame(final OutboundFrame frame, final Packet packet,
+			final ClientModel except) {
+		return members.reduceKeysToLong(ClientRegistry.PARALLEL_BROADCAST,
+				new ToLongFunction<ClientModel>() {
+					public long applyAsLong(final ClientModel client) {
+						return client != except
+								&& client.queueFrame(frame, packet) ? 1 : 0;
+					}
+				}, 0L, SUM);
+	}
+
+}
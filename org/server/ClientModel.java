@@ -1,36 +1,136 @@
 package org.gnet.server;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketException;
-import java.nio.channels.ShutdownChannelGroupException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.gnet.packet.BoundedObjectInputStream;
+import org.gnet.packet.BoundedObjectOutputStream;
+import org.gnet.packet.Datagrams;
+import org.gnet.packet.Delivery;
+import org.gnet.packet.Frames;
+import org.gnet.packet.ObjectStreamStats;
 import org.gnet.packet.Packet;
+import org.gnet.packet.PacketBuffer;
+import org.gnet.packet.PacketCodec;
+import org.gnet.packet.PacketPool;
+import org.gnet.packet.PacketRegistry;
+import org.gnet.packet.PacketView;
+import org.gnet.packet.StreamResetPolicy;
+import org.gnet.util.SpatialGrid;
 
 public class ClientModel implements Runnable {
 
-	private final GNetServer server;
+	final GNetServer server;
 	private final Socket clientSocket;
+	final PacketCodec codec;
+	// Reused for every received frame when the server hands out views.
+	final PacketView view;
 	int uuid;
 	private ObjectOutputStream oos;
 	private ObjectInputStream ois;
-	private boolean connected;
+	private PacketBuffer oosBuffer;
+	private OutputStream out;
+	private DataInputStream in;
+	volatile boolean connected;
+
+	// Encoded packets waiting for the writer.
+	final OutboundQueue outbound;
+	// The writability the listener heard about last.
+	private volatile boolean notifiedWritable = true;
+	private final ReentrantLock writabilityLock = new ReentrantLock();
+	final AtomicBoolean flushScheduled = new AtomicBoolean();
+	final AtomicBoolean flushTimerArmed = new AtomicBoolean();
+
+	// Locks rather than monitors so blocked virtual threads unmount instead
+	// of pinning their carrier. The object stream is stateful, so encoding
+	// and queueing must happen in one step.
+	private final ReentrantLock encodeLock = new ReentrantLock();
+	private final ReentrantLock writeLock = new ReentrantLock();
+
+	// Packets read but not yet delivered to the batch listener. The reader
+	// owns batch, inbound is shared with pollPackets() under inboundLock.
+	private PacketBatch batch;
+	// A client that never stops sending still gets its packets delivered.
+	private static final int MAX_BATCH = 256;
+	private PacketBatch inbound;
+	private volatile boolean inboundPending;
+	private final ReentrantLock inboundLock = new ReentrantLock();
+
+	// Datagram channel, the address is known once the client said hello.
+	// The last sequence is only touched by the servers datagram thread.
+	private volatile SocketAddress udpAddress;
+	private final AtomicInteger udpSequence = new AtomicInteger();
+	private int lastUdpSequence;
+	private boolean udpSequenced;
+	// Without workers the reader and the datagram thread take turns
+	// delivering, whoever holds the lock also delivers queued datagrams.
+	final ReentrantLock deliverLock = new ReentrantLock();
+
+	// Whether the client wants replication updates.
+	volatile boolean replicating;
+	private final ConcurrentLinkedQueue<Object> datagrams = new ConcurrentLinkedQueue<Object>();
+
+	// Groups this client is a member of, left on disconnect.
+	final Set<ClientGroup> groups = Collections
+			.newSetFromMap(new ConcurrentHashMap<ClientGroup, Boolean>());
+
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			writeQueued();
+		}
+	};
 
 	public ClientModel(final GNetServer server, final Socket clientSocket) {
 		this.server = server;
 		this.clientSocket = clientSocket;
+		codec = server.getPacketCodec();
+		view = server.isPacketViews() ? new PacketView() : null;
+		outbound = new OutboundQueue(server.getBackpressurePolicy(),
+				codec != null, server.metrics.outboundDropped);
 		try {
-			// Init client object output stream.
-			oos = new ObjectOutputStream(clientSocket.getOutputStream());
+			out = clientSocket.getOutputStream();
+			if (codec != null) {
+				// Framed transport, no stream headers to exchange.
+				in = new DataInputStream(new BufferedInputStream(
+						clientSocket.getInputStream()));
+			} else {
+				// The object stream encodes into a buffer, the writer sends it.
+				oosBuffer = new PacketBuffer(512);
+				final StreamResetPolicy policy = server.getStreamResetPolicy();
 
-			// Run initial oos flush. (Prevents hanging)
-			oos.flush();
+				// Init client object output stream.
+				oos = policy != null ? new BoundedObjectOutputStream(
+						oosBuffer.asOutputStream(), policy)
+						: new ObjectOutputStream(oosBuffer.asOutputStream());
+
+				// Run initial oos flush. (Prevents hanging)
+				oos.flush();
+				out.write(oosBuffer.array(), 0, oosBuffer.size());
+				out.flush();
 
-			// Init client object input stream.
-			ois = new ObjectInputStream(clientSocket.getInputStream());
+				// Init client object input stream.
+				ois = policy != null ? new BoundedObjectInputStream(
+						clientSocket.getInputStream(), policy)
+						: new ObjectInputStream(clientSocket.getInputStream());
+			}
 			connected = true;
 		} catch (final IOException e) {
 			// TODO Auto-generated catch block
@@ -39,31 +139,47 @@ public class ClientModel implements Runnable {
 
 	}
 
+	/**
+	 * Constructor for models whose I/O is driven elsewhere (see
+	 * {@link NioClientModel}).
+	 */
+	ClientModel(final GNetServer server, final Socket clientSocket,
+			final PacketCodec codec) {
+		this.server = server;
+		this.clientSocket = clientSocket;
+		this.codec = codec;
+		view = server.isPacketViews() ? new PacketView() : null;
+		outbound = new OutboundQueue(server.getBackpressurePolicy(),
+				codec != null, server.metrics.outboundDropped);
+		connected = true;
+	}
+
 	public void run() {
 		while (connected) {
 			// Try to fetch incoming data.
 			Object incoming = null;
 			try {
+				if (in != null) {
+					// Framed transport, blocks until a whole frame arrived.
+					readFrame();
+					if (batch != null && !batch.isEmpty() && connected
+							&& in.available() == 0) {
+						// Nothing more buffered, this read is done.
+						endOfRead();
+					}
+					continue;
+				}
 				if ((incoming = ois.readObject()) != null) {
 					if (incoming instanceof Packet) {
-						final Packet p = (Packet) incoming;
-						if (p.getPacketName().equals("ShuttingDown")) {
-							server.recievedPackets++;
-							server.debug("Incoming shutown packet from ["
-									+ uuid + "]: " + p.getPacketName());
-							cleanUp();
-							continue;
-						} else {
-							server.recievedPackets++;
-							server.serverEventListener.packetReceived(this, p);
-							server.debug("Incoming packet from [" + uuid
-									+ "]: " + p.getPacketName());
-							continue;
-						}
-
+						// The stream doesn't tell frame sizes or decode times.
+						server.metrics.packetReceived(
+								((Packet) incoming).getOpcode(), 0, -1);
+						handlePacket((Packet) incoming);
+						endOfRead();
+						continue;
 					} else {
-						server.debug("Incoming object from [" + uuid + "]: "
-								+ incoming);
+						server.log.debug("Incoming object from [{}]: {}", uuid,
+								incoming);
 						continue;
 					}
 
@@ -74,73 +190,603 @@ public class ClientModel implements Runnable {
 				}
 
 			} catch (final EOFException e) {
-				connected = false;
-				e.printStackTrace();
+				// The client went away without saying goodbye.
+				endOfRead();
+				cleanUp();
 				continue;
 			} catch (final SocketException e) {
-				if (e.getLocalizedMessage().equals("Connection reset")) {
-					cleanUp();
-
-				} else {
-					e.printStackTrace();
+				if (!connected) {
+					// Closed on our side, e.g. for falling behind.
+					continue;
 				}
-
+				if (!"Connection reset".equals(e.getLocalizedMessage())) {
+					server.log.debug("Client [{}] I/O failure: {}", uuid,
+							e.getMessage());
+				}
+				endOfRead();
+				cleanUp();
 			} catch (final ClassNotFoundException e) {
-				e.printStackTrace();
-				connected = false;
-				continue;
+				server.log.debug("Client [{}] sent an unknown class: {}", uuid,
+						e.getMessage());
+				endOfRead();
+				cleanUp();
 			} catch (final IOException e) {
-				e.printStackTrace();
-				connected = false;
-				continue;
+				// Malformed frames end up here, drop the client like the NIO
+				// engine does.
+				server.log.debug("Client [{}] I/O failure: {}", uuid,
+						e.getMessage());
+				endOfRead();
+				cleanUp();
 			}
 		}
 	}
 
-	private void cleanUp() {
+	/**
+	 * Read one frame, blocking until all of it arrived, and handle it.
+	 */
+	private void readFrame() throws IOException {
+		final int length = in.readInt();
+		Frames.checkLength(length);
+		final byte[] payload = view != null ? view.ownedArray(length)
+				: new byte[length];
+		in.readFully(payload, 0, length);
+		final long started = System.nanoTime();
+		if (view != null) {
+			view.wrap(payload, 0, length);
+			server.metrics.packetReceived(view.getOpcode(), Frames.HEADER_SIZE
+					+ length, System.nanoTime() - started);
+			handleView();
+		} else {
+			final Packet packet = codec.decode(ByteBuffer.wrap(payload, 0,
+					length));
+			server.metrics.packetReceived(packet.getOpcode(),
+					Frames.HEADER_SIZE + length, System.nanoTime() - started);
+			handlePacket(packet);
+		}
+	}
 
-		if (server.getClients().contains(this)) {
-			server.getClients().remove(this);
-			server.onlineClients -= 1;
+	void handlePacket(final Packet p) {
+		if (p.getOpcode() == PacketRegistry.SHUTTING_DOWN) {
+			server.log.debug("Incoming shutown packet from [{}]: {}", uuid,
+					p.getPacketName());
+			endOfRead();
+			cleanUp();
+		} else if (p.getOpcode() == PacketRegistry.REPLICATION_ACK) {
+			acknowledged(p);
+		} else if (server.tickMode || server.batchMode == BatchMode.PER_TICK) {
+			queueInbound(GNetServer.detach(p));
+		} else if (server.batchMode == BatchMode.PER_CONNECTION) {
+			if (batch == null) {
+				batch = PacketBatch.acquire();
+			}
+			batch.add(this, GNetServer.detach(p));
+			if (batch.size() >= MAX_BATCH) {
+				endOfRead();
+			}
+		} else {
+			server.dispatch(this, p);
+			// Only log the name, the packet may be reused by then.
+			server.log.trace("Incoming packet from [{}]: {}", uuid,
+					p.getPacketName());
+		}
+	}
 
-			connected = false;
-			try {
-				if (oos != null) {
-					oos.close();
+	/**
+	 * Pass a replication ack on, acks never reach the listener.
+	 */
+	private void acknowledged(final Packet p) {
+		// Clients ask for replication with their first acknowledgement.
+		replicating = true;
+		final Replicator replicator = server.replicator;
+		if (replicator != null) {
+			replicator.acknowledged(this, p.getLong("tick"));
+		}
+	}
+
+	/**
+	 * Handle the frame the view points at, then let go of it.
+	 */
+	void handleView() {
+		try {
+			handlePacket(view);
+		} finally {
+			view.release();
+		}
+	}
+
+	/**
+	 * Deliver the packets batched during the current read, called by the
+	 * reader once it ran out of data.
+	 */
+	void endOfRead() {
+		if (batch == null || batch.isEmpty()) {
+			return;
+		}
+		if (server.dispatchBatch(this, batch)) {
+			// Handed to a worker, which gives it back to the pool.
+			batch = null;
+		} else {
+			batch.clear();
+		}
+	}
+
+	private void queueInbound(final Packet packet) {
+		inboundLock.lock();
+		try {
+			if (inbound == null) {
+				inbound = new PacketBatch(16);
+			}
+			final int max = server.getMaxInboundPerTick();
+			if (max > 0 && inbound.size() >= max) {
+				// Flooding, drop it rather than queue without bound.
+				server.metrics.inboundDropped.increment();
+				return;
+			}
+			inbound.add(this, packet);
+			inboundPending = true;
+		} finally {
+			inboundLock.unlock();
+		}
+	}
+
+	/**
+	 * Move the packets queued since the last tick into the tick batch.
+	 */
+	void drainInbound(final PacketBatch into) {
+		if (!inboundPending) {
+			return;
+		}
+		inboundLock.lock();
+		try {
+			into.addAll(inbound);
+			inbound.clear();
+			inboundPending = false;
+		} finally {
+			inboundLock.unlock();
+		}
+	}
+
+	void cleanUp() {
+
+		// Always stop reading and release the socket, even if the client was
+		// never (or is no longer) registered.
+		connected = false;
+		try {
+			if (oos != null) {
+				oos.close();
+			}
+			if (ois != null) {
+				ois.close();
+			}
+			if (clientSocket != null) {
+				clientSocket.close();
+			}
+		} catch (final IOException e1) {
+			e1.printStackTrace();
+		}
+		outbound.clear();
+		for (final ClientGroup group : groups) {
+			group.leave(this);
+		}
+		final SpatialGrid<ClientModel> grid = server.interest;
+		if (grid != null) {
+			grid.remove(this);
+		}
+
+		// Only the one who removed the client from the registry frees its
+		// UID, cleanUp() runs once per failing path.
+		final int online = server.clients.remove(this);
+		if (online >= 0) {
+			server.generator.releaseUID(uuid);
+		}
+		if (online >= 0 && inboundPending) {
+			// Still delivered with the next tick.
+			server.departed.add(this);
+		}
+		if (online >= 0) {
+			server.metrics.disconnects.increment();
+			server.log.debug("A client [{}] has disconnected! (online: {})",
+					uuid, online);
+			server.clientDisconnected(this);
+
+		}
+
+	}
+
+	/**
+	 * Queue a packet for this client. When it hits the socket depends on the
+	 * servers {@link FlushPolicy}. A packet from the {@link PacketPool} goes
+	 * back to the pool and must not be used afterwards.
+	 */
+	public void sendPacket(final Packet packet) {
+		try {
+			queuePacket(packet);
+		} finally {
+			// Object streams keep a reference to what they wrote, only framed
+			// packets can be reused.
+			if (codec != null) {
+				PacketPool.recycle(packet);
+			} else {
+				PacketPool.discard(packet);
+			}
+		}
+	}
+
+	/**
+	 * Send a packet with the given delivery. Unreliable packets go over TCP
+	 * until the client said hello on the datagram channel, or if they don't
+	 * fit a datagram.
+	 */
+	public void sendPacket(final Packet packet, final Delivery delivery) {
+		final UdpChannel udp = server.udp;
+		final SocketAddress address = udpAddress;
+		if (delivery == Delivery.RELIABLE || udp == null || address == null
+				|| !connected) {
+			sendPacket(packet);
+			return;
+		}
+		try {
+			if (udp.send(this, address, packet)) {
+				server.log.trace("Datagram sent to client [{}]: {}", uuid,
+						packet.getPacketName());
+				PacketPool.recycle(packet);
+				return;
+			}
+		} catch (final IOException e) {
+			server.log.error("Datagram to client [{}] failed, using TCP: {}",
+					uuid, e.getMessage());
+		}
+		sendPacket(packet);
+	}
+
+	int nextUdpSequence() {
+		return udpSequence.incrementAndGet();
+	}
+
+	/**
+	 * Handle a datagram from this client, called by the datagram thread.
+	 *
+	 * @param payload
+	 *            Positioned after the header.
+	 */
+	void datagramReceived(final SocketAddress from, final int sequence,
+			final ByteBuffer payload) {
+		if (!payload.hasRemaining()) {
+			// Hello, the client can be sent datagrams from now on. Echo each
+			// one, the client repeats it until an echo gets through.
+			if (udpAddress == null) {
+				server.log.debug("Datagram channel of [{}] is up: {}", uuid,
+						from);
+			}
+			udpAddress = from;
+			final UdpChannel udp = server.udp;
+			if (udp != null) {
+				try {
+					udp.sendHello(this, from);
+				} catch (final IOException e) {
+					server.log.error("Failed to answer the hello of [{}]: {}",
+							uuid, e.getMessage());
 				}
-				if (oos != null) {
-					ois.close();
+			}
+			return;
+		}
+		if (udpSequenced && !Datagrams.isNewer(sequence, lastUdpSequence)) {
+			// Overtaken by a newer one, it's stale.
+			server.metrics.inboundDropped.increment();
+			return;
+		}
+		udpSequenced = true;
+		lastUdpSequence = sequence;
+		udpAddress = from;
+
+		final int length = payload.remaining();
+		final long started = System.nanoTime();
+		final Packet packet;
+		try {
+			packet = codec.decode(payload);
+		} catch (final IOException e) {
+			server.log.error("Bad datagram from [{}]: {}", uuid, e.getMessage());
+			return;
+		}
+		server.metrics.packetReceived(packet.getOpcode(), Datagrams.HEADER_SIZE
+				+ length, System.nanoTime() - started);
+		if (packet.getOpcode() == PacketRegistry.REPLICATION_ACK) {
+			acknowledged(packet);
+			return;
+		}
+		if (packet.getOpcode() != PacketRegistry.UNREGISTERED
+				&& packet.getOpcode() < PacketRegistry.FIRST_USER_OPCODE) {
+			// Connection control stays on TCP.
+			return;
+		}
+		if (server.tickMode || server.batchMode == BatchMode.PER_TICK) {
+			queueInbound(packet);
+		} else if (server.batchMode == BatchMode.PER_CONNECTION) {
+			// The read batch belongs to the TCP reader, this is a batch of one.
+			final PacketBatch single = PacketBatch.acquire();
+			single.add(this, packet);
+			server.dispatchDatagram(this, single);
+		} else {
+			server.dispatchDatagram(this, packet);
+			server.log.trace("Incoming datagram from [{}]: {}", uuid,
+					packet.getPacketName());
+		}
+	}
+
+	/**
+	 * Deliver a datagram packet or batch without workers, right away unless
+	 * the reader is delivering, which then delivers it next.
+	 */
+	void queueDatagram(final Object message) {
+		datagrams.add(message);
+		deliverDatagrams();
+	}
+
+	void deliverDatagrams() {
+		// Checked again after unlocking, in case one was queued meanwhile.
+		while (!datagrams.isEmpty() && deliverLock.tryLock()) {
+			try {
+				Object message;
+				while ((message = datagrams.poll()) != null) {
+					server.deliver(this, message);
 				}
-				if (clientSocket != null) {
-					clientSocket.close();
+			} finally {
+				deliverLock.unlock();
+			}
+		}
+	}
+
+	private void queuePacket(final Packet packet) {
+		if (!connected) {
+			return;
+		}
+		try {
+			if (codec != null) {
+				final long started = System.nanoTime();
+				final PacketBuffer encoded = Frames.encode(codec, packet);
+				server.metrics.packetsSent(packet.getOpcode(), encoded.size(),
+						1, System.nanoTime() - started);
+				if (!enqueue(OutboundFrame.copyOf(encoded),
+						packet.getOpcode())) {
+					return;
 				}
-			} catch (final IOException e1) {
-				e1.printStackTrace();
+			} else if (!queueObject(packet)) {
+				return;
 			}
-			server.debug("A client [" + uuid + "] has disconnected! (online: "
-					+ server.onlineClients + ")");
-			server.serverEventListener.clientDisconnected(this);
+		} catch (final IOException e) {
+			// The codec can't write one of the packets values.
+			server.log.error("Failed to encode a packet for client [{}]: {}",
+					uuid, e.getMessage());
+			return;
+		}
+		server.log.trace("Packet sent to client [{}]: {}", uuid,
+				packet.getPacketName());
+		packetQueued();
+	}
 
+	/**
+	 * Queue a frame that was encoded once for many clients, each queue holds
+	 * its own reference to it.
+	 *
+	 * @return false if the client is gone.
+	 */
+	boolean queueFrame(final OutboundFrame frame, final Packet packet) {
+		if (!connected) {
+			return false;
 		}
+		frame.retain();
+		if (!enqueue(frame, packet.getOpcode())) {
+			return false;
+		}
+		server.log.trace("Packet sent to client [{}]: {}", uuid,
+				packet.getPacketName());
+		packetQueued();
+		return true;
+	}
 
+	/**
+	 * @return False if the client was disconnected for falling behind.
+	 */
+	private boolean queueObject(final Packet packet) throws IOException {
+		final long queued;
+		encodeLock.lock();
+		try {
+			final long started = System.nanoTime();
+			oosBuffer.clear();
+			if (oos instanceof BoundedObjectOutputStream) {
+				// Resets the stream once the policy says so.
+				((BoundedObjectOutputStream) oos).writePacket(packet);
+			} else {
+				oos.writeObject(packet);
+			}
+			oos.flush();
+			server.metrics.packetsSent(packet.getOpcode(), oosBuffer.size(), 1,
+					System.nanoTime() - started);
+			queued = outbound.add(OutboundFrame.copyOf(oosBuffer),
+					packet.getOpcode());
+		} finally {
+			encodeLock.unlock();
+		}
+		if (queued < 0) {
+			tooSlow();
+			return false;
+		}
+		return true;
 	}
 
-	public void sendPacket(final Packet packet) {
-		if (oos != null && connected) {
+	/**
+	 * Hand a frame to the outbound queue, which applies the servers
+	 * {@link BackpressurePolicy}.
+	 *
+	 * @return False if the client was disconnected for falling behind.
+	 */
+	private boolean enqueue(final OutboundFrame frame, final int opcode) {
+		if (outbound.add(frame, opcode) < 0) {
+			tooSlow();
+			return false;
+		}
+		return true;
+	}
+
+	private void tooSlow() {
+		server.metrics.slowConsumers.increment();
+		server.log.debug(
+				"Client [{}] fell behind, disconnecting. ({} bytes queued)",
+				uuid, outbound.getBytes());
+		cleanUp();
+	}
+
+	/**
+	 * Tell the listener if the outbound queue crossed a watermark since it
+	 * last heard. Whoever changes the queue calls this afterwards, so the
+	 * listener always ends up with the current state.
+	 */
+	void checkWritable() {
+		if (outbound.isWritable() == notifiedWritable) {
+			return;
+		}
+		writabilityLock.lock();
+		try {
+			final boolean writable = outbound.isWritable();
+			if (writable != notifiedWritable && connected) {
+				notifiedWritable = writable;
+				server.writabilityChanged(this, writable);
+			}
+		} finally {
+			writabilityLock.unlock();
+		}
+	}
+
+	/**
+	 * Apply the flush policy after something was queued.
+	 */
+	void packetQueued() {
+		final FlushPolicy policy = server.getFlushPolicy();
+		final long queued = outbound.getBytes();
+		server.metrics.packetQueued(queued);
+		checkWritable();
+		if (queued >= policy.getMaxBytes()) {
+			requestFlush();
+		} else if (policy.getMaxLatencyNanos() > 0
+				&& flushTimerArmed.compareAndSet(false, true)) {
+			server.scheduleFlush(this, policy.getMaxLatencyNanos());
+		}
+	}
+
+	/**
+	 * Have the writer send everything queued so far, without blocking the
+	 * caller.
+	 */
+	void requestFlush() {
+		if (connected && flushScheduled.compareAndSet(false, true)) {
 			try {
-				oos.writeObject(packet);
-				oos.flush();
-				server.debug("Packet sent to client [" + uuid + "]: "
-						+ packet.getPacketName());
-				server.sentPackets++;
-			} catch (final IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+				server.getWriterPool().execute(flushTask);
+			} catch (final RejectedExecutionException e) {
+				// The server shut down, nothing gets written anymore.
+				flushScheduled.set(false);
 			}
+		}
+	}
 
+	private void writeQueued() {
+		writeLock.lock();
+		final byte[] scratch = OutboundQueue.acquireScratch();
+		try {
+			flushScheduled.set(false);
+			int used = 0;
+			OutboundFrame frame;
+			while ((frame = outbound.poll()) != null) {
+				final int length = frame.length;
+				try {
+					if (used > 0 && used + length > scratch.length) {
+						out.write(scratch, 0, used);
+						used = 0;
+					}
+					if (length > scratch.length) {
+						out.write(frame.data, 0, length);
+					} else {
+						// Pack small frames together, one write for all of
+						// them.
+						System.arraycopy(frame.data, 0, scratch, used, length);
+						used += length;
+					}
+				} finally {
+					frame.release();
+				}
+			}
+			if (used > 0) {
+				out.write(scratch, 0, used);
+			}
+			out.flush();
+		} catch (final IOException e) {
+			cleanUp();
+		} finally {
+			OutboundQueue.releaseScratch(scratch);
+			writeLock.unlock();
+		}
+		checkWritable();
+	}
+
+	/**
+	 * @return Handle table statistics of the outgoing object stream, or null
+	 *         unless the server has a {@link StreamResetPolicy}.
+	 */
+	public ObjectStreamStats getStreamStats() {
+		if (!(oos instanceof BoundedObjectOutputStream)) {
+			return null;
+		}
+		encodeLock.lock();
+		try {
+			return ((BoundedObjectOutputStream) oos).getStats();
+		} finally {
+			encodeLock.unlock();
 		}
 	}
 
+	/**
+	 * @return Number of packets waiting to be written.
+	 */
+	public int getQueuedPackets() {
+		return outbound.size();
+	}
+
+	/**
+	 * @return Bytes waiting to be written.
+	 */
+	public long getQueuedBytes() {
+		return outbound.getBytes();
+	}
+
+	/**
+	 * @return False while the outbound queue is above the high watermark of
+	 *         the servers {@link BackpressurePolicy}, until it drained below
+	 *         the low one.
+	 */
+	public boolean isWritable() {
+		return outbound.isWritable();
+	}
+
+	/**
+	 * @return The address of the clients TCP connection.
+	 */
+	public InetAddress getInetAddress() {
+		return clientSocket.getInetAddress();
+	}
+
+	/**
+	 * @return Whether unreliable packets can travel as datagrams yet.
+	 */
+	public boolean isDatagramChannelUp() {
+		return udpAddress != null && server.udp != null;
+	}
+
+	/**
+	 * @return A live, read only view of the groups the client is in.
+	 */
+	public Set<ClientGroup> getGroups() {
+		return Collections.unmodifiableSet(groups);
+	}
+
 	public int getUuid() {
 		return uuid;
 	}
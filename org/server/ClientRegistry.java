@@ -0,0 +1,83 @@
+package org.gnet.server;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToLongFunction;
+
+import org.gnet.packet.Packet;
+
+/**
+ * The servers connected clients by UID. Lookups and iteration never lock,
+ * adding and removing is O(1) from any thread. Iteration is weakly
+ * consistent: it never throws, but may or may not see clients that come and
+ * go meanwhile.
+ */
+final class ClientRegistry {
+
+	// Clients one thread queues a broadcast to before splitting pays off.
+	static final long PARALLEL_BROADCAST = 1024;
+
+	private static final LongBinaryOperator SUM = new LongBinaryOperator() {
+		public long applyAsLong(final long left, final long right) {
+			return left + right;
+		}
+	};
+
+	private final ConcurrentHashMap<Integer, ClientModel> clients = new ConcurrentHashMap<Integer, ClientModel>();
+	private final AtomicInteger online = new AtomicInteger();
+
+	/**
+	 * @return The new online count, or -1 if the UID was already taken.
+	 */
+	int add(final ClientModel client) {
+		if (clients.putIfAbsent(client.uuid, client) != null) {
+			return -1;
+		}
+		return online.incrementAndGet();
+	}
+
+	/**
+	 * @return The new online count, or -1 if the client wasn't registered.
+	 */
+	int remove(final ClientModel client) {
+		if (!clients.remove(client.uuid, client)) {
+			return -1;
+		}
+		return online.decrementAndGet();
+	}
+
+	ClientModel get(final int uid) {
+		return clients.get(uid);
+	}
+
+	int size() {
+		return online.get();
+	}
+
+	/**
+	 * @return A live view of the clients.
+	 */
+	Collection<ClientModel> values() {
+		return clients.values();
+	}
+
+	/**
+	 * Queue an encoded frame for every client but except (may be null). Large
+	 * audiences are fanned out across the common fork/join pool.
+	 *
+	 * @return The number of clients the frame was queued for.
+	 */
+	long queueFrame(final OutboundFrame frame, final Packet packet,
+			final ClientModel except) {
+		return clients.reduceValuesToLong(PARALLEL_BROADCAST,
+				new ToLongFunction<ClientModel>() {
+					public long applyAsLong(final ClientModel client) {
+						return client != except
+								&& client.queueFrame(frame, packet) ? 1 : 0;
+					}
+				}, 0L, SUM);
+	}
+
+}
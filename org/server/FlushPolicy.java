@@ -0,0 +1,59 @@
+package org.gnet.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when a clients queued packets get written to its socket. Every
+ * flush packs everything queued so far into as few socket writes as possible.
+ */
+public final class FlushPolicy {
+
+	/**
+	 * Flush after every packet (the default).
+	 */
+	public static final FlushPolicy IMMEDIATE = new FlushPolicy(0, 0);
+
+	/**
+	 * Only flush when {@link GNetServer#flush()} is called, usually at the end
+	 * of a game tick. A client still gets flushed early once 1MB piles up.
+	 */
+	public static final FlushPolicy END_OF_TICK = new FlushPolicy(0,
+			1024 * 1024);
+
+	private final long maxLatencyNanos;
+	private final int maxBytes;
+
+	private FlushPolicy(final long maxLatencyNanos, final int maxBytes) {
+		this.maxLatencyNanos = maxLatencyNanos;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Flush once a packet has waited maxLatencyMillis, or as soon as maxBytes
+	 * are queued, whichever comes first.
+	 */
+	public static FlushPolicy maxLatency(final long maxLatencyMillis,
+			final int maxBytes) {
+		if (maxLatencyMillis <= 0) {
+			throw new IllegalArgumentException("maxLatencyMillis must be > 0");
+		}
+		return new FlushPolicy(TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis),
+				maxBytes);
+	}
+
+	/**
+	 * @return How long a packet may wait before a flush, 0 if the policy
+	 *         doesn't time flushes.
+	 */
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos;
+	}
+
+	/**
+	 * @return Queued bytes that trigger a flush right away.
+	 */
+	public int getMaxBytes() {
+		return maxBytes;
+	}
+
+}
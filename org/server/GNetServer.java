@@ -3,14 +3,47 @@ package org.gnet.server;
 import java.io.IOException;
 import java.net.BindException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
+import org.gnet.packet.BinaryPacketCodec;
 import org.gnet.packet.ClientShutdownPacket;
+import org.gnet.packet.CompressingPacketCodec;
+import org.gnet.packet.Delivery;
+import org.gnet.packet.Frames;
+import org.gnet.packet.HandshakePacket;
 import org.gnet.packet.Packet;
+import org.gnet.packet.PacketBuffer;
+import org.gnet.packet.PacketCodec;
+import org.gnet.packet.PacketPool;
+import org.gnet.packet.PacketRegistry;
+import org.gnet.packet.PacketView;
+import org.gnet.packet.StreamResetPolicy;
+import org.gnet.util.Log;
+import org.gnet.util.LogLevel;
+import org.gnet.util.LogSink;
+import org.gnet.util.SpatialGrid;
+import org.gnet.util.Threads;
 import org.gnet.util.UIDGenerator;
+import org.gnet.util.WorkerPool;
 
 public class GNetServer {
 
@@ -21,63 +54,201 @@ public class GNetServer {
 	private Thread clientConnectionThread;
 	protected boolean connectNewClients;
 	private boolean binded;
-	int onlineClients;
-	ArrayList<ClientModel> clients;
+	final ClientRegistry clients = new ClientRegistry();
 	ServerEventListener serverEventListener;
 	UIDGenerator generator;
 
+	final ServerMetrics metrics = new ServerMetrics(this);
+
+	// Messages go to the console while debugging, to the listener otherwise.
+	final Log log = new Log(new LogSink() {
+		@Override
+		protected void write(final LogLevel level, final String message) {
+			if (debugging) {
+				(level.compareTo(LogLevel.WARN) >= 0 ? System.err : System.out)
+						.println("GNetServer -> " + message);
+			} else if (serverEventListener != null) {
+				// Let the user handle the message.
+				if (level.compareTo(LogLevel.WARN) >= 0) {
+					serverEventListener.errorMessage(message);
+				} else {
+					serverEventListener.debugMessage(message);
+				}
+			}
+		}
+	});
+
 	// ServerMonitor stuff.
-	public int sentPackets;
-	public int recievedPackets;
 	public boolean tcpBound;
 	public boolean serverRunning;
 	private ServerMonitor serverMonitor;
-	private transient boolean debugging = true;
+	private HeadlessMonitor headlessMonitor;
+	private transient volatile boolean debugging = true;
 	private InetAddress targetHost;
 
+	// Transport settings.
+	private ServerEngine engine = ServerEngine.BLOCKING;
+	private PacketCodec packetCodec;
+	private boolean packetViews;
+	private StreamResetPolicy streamResetPolicy;
+	private ServerSocketChannel serverChannel;
+	private int ioThreads = Runtime.getRuntime().availableProcessors();
+	private LoopBalancing loopBalancing = LoopBalancing.LEAST_LOADED;
+	private IOLoop[] ioLoops;
+	private int nextLoop;
+	private boolean virtualThreads;
+	private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+	private BackpressurePolicy backpressurePolicy = BackpressurePolicy.UNBOUNDED;
+	private ExecutorService writerPool;
+	private ScheduledExecutorService flushTimer;
+	private int maxClients = UIDGenerator.DEFAULT_CAPACITY;
+	private boolean randomUIDs = true;
+	private int workerThreads;
+	private int workerQueueCapacity = 1024;
+	WorkerPool<ClientModel> workers;
+	// Datagram channel, -1 keeps it off.
+	private int udpPort = -1;
+	volatile UdpChannel udp;
+	volatile Replicator replicator;
+	volatile SpatialGrid<ClientModel> interest;
+	private final ConcurrentHashMap<String, ClientGroup> groups = new ConcurrentHashMap<String, ClientGroup>();
+
+	private PacketBatchListener batchListener;
+	BatchMode batchMode;
+	// Reused by every pollPackets() call.
+	private final PacketBatch tickBatch = new PacketBatch(256);
+	private final ReentrantLock pollLock = new ReentrantLock();
+	// Disconnected clients with packets the next tick still has to deliver.
+	final Queue<ClientModel> departed = new ConcurrentLinkedQueue<ClientModel>();
+
+	// Tick mode, connects and disconnects wait for the tick like packets.
+	boolean tickMode;
+	private int maxInboundPerTick;
+	private volatile long tick;
+	private final Queue<ClientModel> tickConnects = new ConcurrentLinkedQueue<ClientModel>();
+	private final Queue<ClientModel> tickDisconnects = new ConcurrentLinkedQueue<ClientModel>();
+	private final List<ClientModel> leaving = new ArrayList<ClientModel>();
+
+	// Recipients of the sendToNearby() in progress on this thread.
+	private static final ThreadLocal<List<ClientModel>> NEARBY = new ThreadLocal<List<ClientModel>>() {
+		@Override
+		protected List<ClientModel> initialValue() {
+			return new ArrayList<ClientModel>();
+		}
+	};
+
+	// Lifecycle events, queued for the workers like packets so they stay in
+	// order with them.
+	private static final Object CONNECTED = new Object();
+	private static final Object DISCONNECTED = new Object();
+
+	// Handlers by opcode, replaced on change so dispatch never locks.
+	private volatile ServerPacketHandler[] packetHandlers = new ServerPacketHandler[0];
+
 	public GNetServer(final String host, final int port) {
 		this.host = host;
 		this.port = port;
 	}
 
 	public void shutDownServer() {
-		if (clients != null) {
-			for (int i = 0; i < clients.size(); i++) {
-				clients.get(i).sendPacket(new ClientShutdownPacket());
+		if (initialized) {
+			// Clients may remove themselves meanwhile, the registry copes.
+			for (final ClientModel client : clients.values()) {
+				client.sendPacket(new ClientShutdownPacket());
 			}
 			connectNewClients = false;
 			binded = false;
 			initialized = false;
 			serverRunning = false;
 		}
+		// Get the shutdown packets on their way whatever the flush policy.
+		flush();
+		connectNewClients = false;
+		closeListener();
+		if (ioLoops != null) {
+			for (final IOLoop loop : ioLoops) {
+				loop.shutdown();
+			}
+			for (final IOLoop loop : ioLoops) {
+				loop.join();
+			}
+			ioLoops = null;
+		}
+		// Writes already asked for, the shutdown packets among them, still
+		// run, then the threads go away.
+		if (writerPool != null) {
+			writerPool.shutdown();
+		}
+		if (flushTimer != null) {
+			flushTimer.shutdown();
+		}
+		metrics.unregisterMBean();
+		if (udp != null) {
+			udp.stop();
+			udp = null;
+		}
+		if (workers != null) {
+			// Whatever is still queued gets handled, later events run inline.
+			workers.shutdown();
+		}
+		if (serverMonitor != null) {
+			serverMonitor.stop();
+		}
+		if (headlessMonitor != null) {
+			headlessMonitor.stop();
+		}
+	}
+
+	/**
+	 * Close the listening socket, which ends the accept thread.
+	 */
+	private void closeListener() {
+		try {
+			if (serverChannel != null) {
+				serverChannel.close();
+			}
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+		tcpBound = false;
+		if (clientConnectionThread != null
+				&& clientConnectionThread != Thread.currentThread()) {
+			try {
+				clientConnectionThread.join();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 	}
 
 	private void init() {
 		try {
-			debug("Obtaining target host...");
+			log.debug("Obtaining target host...");
 			// Obtain our target host.
 			targetHost = InetAddress.getByName(host);
-			debug("Target host obtained! (" + targetHost.getHostName() + ")");
+			log.debug("Target host obtained! ({})", targetHost.getHostName());
 
 			// Do some internal initializing.
-			clients = new ArrayList<ClientModel>();
-			generator = new UIDGenerator(0, "99999999");
+			generator = new UIDGenerator(10000000, 99999999, maxClients,
+					randomUIDs);
 
 			// Mark initialized as true.
 			initialized = true;
 
 			// Initialize our client accepting thread.
-			clientConnectionThread = new Thread() {
-				@Override
+			clientConnectionThread = Threads.newThread(new Runnable() {
 				public void run() {
 
 					while (connectNewClients) {
 						connectNewClient();
 					}
 				}
-			};
+			}, "GNetServer-Accept", virtualThreads);
 		} catch (final UnknownHostException e) {
-			error("Failed to find target host!");
+			log.error("Failed to find target host!");
 			e.printStackTrace();
 			initialized = false;
 			return;
@@ -91,26 +262,42 @@ public class GNetServer {
 			init();
 		}
 		try {
-			debug("Attempting to bind to address: " + host + " || " + port);
-			serverSocket = new ServerSocket(port, Integer.MAX_VALUE,
-					InetAddress.getByName(host));
+			log.debug("Attempting to bind to address: {} || {}", host, port);
+			if (engine == ServerEngine.NIO) {
+				if (packetCodec == null) {
+					// The NIO engine can only speak framed codecs.
+					packetCodec = new BinaryPacketCodec();
+					log.debug("No packet codec set, using BinaryPacketCodec.");
+				}
+				serverChannel = ServerSocketChannel.open();
+				serverChannel.socket().bind(
+						new InetSocketAddress(InetAddress.getByName(host),
+								port), Integer.MAX_VALUE);
+				serverSocket = serverChannel.socket();
+			} else {
+				serverSocket = new ServerSocket(port, Integer.MAX_VALUE,
+						InetAddress.getByName(host));
+			}
 
 			// If binding was completed.
 			if (serverSocket.isBound()) {
 				tcpBound = true;
-				debug("Binding completed.");
+				if (udpPort >= 0) {
+					bindUdp();
+				}
+				log.debug("Binding completed.");
 				binded = true;
 				return;
 			} else {
 				// Binding has failed :o
-				debug("Binding failed.");
+				log.debug("Binding failed.");
 				binded = false;
 				return;
 			}
 		} catch (final BindException e) {
 			if (e.getLocalizedMessage().equals(
 					"Address already in use: JVM_Bind")) {
-				error("Failed to bind, address already in use!");
+				log.error("Failed to bind, address already in use!");
 				return;
 			} else {
 				e.printStackTrace();
@@ -127,16 +314,60 @@ public class GNetServer {
 	}
 
 	public void start() {
-		debug("Attempting to start server...");
+		log.debug("Attempting to start server...");
 		if (!binded) {
 			// Something went wrong :o
-			error("Cannot start(), binding failed.");
+			log.error("Cannot start(), binding failed.");
 			return;
 		}
 
 		// Enable loop execution.
 		connectNewClients = true;
 
+		if (engine == ServerEngine.BLOCKING) {
+			// Blocking writes happen here, never on the senders thread.
+			writerPool = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(final Runnable task) {
+					return Threads.newThread(task, "GNetServer-Writer",
+							virtualThreads);
+				}
+			});
+		}
+		if (flushPolicy.getMaxLatencyNanos() > 0) {
+			flushTimer = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(final Runnable task) {
+							final Thread thread = new Thread(task,
+									"GNetServer-FlushTimer");
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		}
+
+		if (workerThreads > 0 && !tickMode) {
+			workers = new WorkerPool<ClientModel>("GNetServer-Worker",
+					workerThreads, workerQueueCapacity, virtualThreads,
+					new WorkerPool.Handler<ClientModel>() {
+						@Override
+						protected void handle(final ClientModel client,
+								final Object message) {
+							deliver(client, message);
+						}
+
+						@Override
+						protected void drained(final ClientModel client) {
+							((NioClientModel) client).resumeReading();
+						}
+					});
+			workers.start();
+		}
+
+		if (headlessMonitor != null) {
+			// Start sampling, the ServerMonitor shows these samples.
+			headlessMonitor.start();
+		}
+
 		if (!(serverMonitor == null)) {
 
 			// Start the ServerMonitors rendering/updating thread.
@@ -146,98 +377,1055 @@ public class GNetServer {
 			serverMonitor.show();
 		}
 
+		if (engine == ServerEngine.NIO) {
+			try {
+				// Start the I/O loops, the connection thread feeds them.
+				ioLoops = new IOLoop[Math.max(1, ioThreads)];
+				for (int i = 0; i < ioLoops.length; i++) {
+					ioLoops[i] = new IOLoop(this, "GNetServer-IO-" + i);
+				}
+				for (final IOLoop loop : ioLoops) {
+					loop.start();
+				}
+				log.debug("Started {} I/O loops.", ioLoops.length);
+			} catch (final IOException e) {
+				log.error("Cannot start(), failed to open selector.");
+				e.printStackTrace();
+				return;
+			}
+		}
+
+		if (udp != null) {
+			udp.start(virtualThreads);
+		}
+
 		// Start our client connection thread.
 		clientConnectionThread.start();
 
-		debug("Server started!");
+		log.debug("Server started!");
 	}
 
 	protected void connectNewClient() {
+		if (engine == ServerEngine.NIO) {
+			connectNewChannel();
+			return;
+		}
 		try {
 			// Try to accept a new client.
 			final Socket client = serverSocket.accept();
+			metrics.accepted.increment();
+
+			// Generate a UID for the client.
+			final int uid = generator.generateUID();
+			if (uid < 0) {
+				metrics.refused.increment();
+				log.error("No free UIDs, refusing client.");
+				client.close();
+				return;
+			}
 
 			// Once request handled create our ClientModel instance.
 			final ClientModel clientModel = new ClientModel(this, client);
+			clientModel.uuid = uid;
+			if (!clientModel.isConnected()) {
+				// The streams couldn't be set up, it never got registered.
+				generator.releaseUID(uid);
+				client.close();
+				return;
+			}
 
-			// Generate a UID for the client.
-			clientModel.uuid = generator.generateUID();
+			// Register before reading, so a client that drops right away is
+			// removed from the registry rather than added after it left.
+			if (!registerClient(clientModel)) {
+				return;
+			}
 
 			// Start the clients thread.
-			new Thread(clientModel).start();
+			Threads.newThread(clientModel, "GNetServer-Client-" + clientModel.uuid,
+					virtualThreads).start();
+		} catch (final IOException e) {
+			if (connectNewClients) {
+				e.printStackTrace();
+			}
+			// Otherwise the listener was closed by shutDownServer().
+		}
+	}
 
-			// Client is now connected, add to list if not on.
-			if (!clients.contains(clientModel)) {
-				clients.add(clientModel);
+	private void connectNewChannel() {
+		try {
+			// Try to accept a new client.
+			final SocketChannel channel = serverChannel.accept();
+			channel.configureBlocking(false);
+			metrics.accepted.increment();
+
+			// Generate a UID for the client.
+			final int uid = generator.generateUID();
+			if (uid < 0) {
+				metrics.refused.increment();
+				log.error("No free UIDs, refusing client.");
+				channel.close();
+				return;
 			}
-			// client count increased.
-			onlineClients++;
 
-			// debug some info.
-			debug("A client [" + clientModel.uuid
-					+ "] has connected! (online: " + onlineClients + ")");
+			// Pin the client to a loop, it stays there until disconnected.
+			final IOLoop loop = nextLoop();
+			final NioClientModel clientModel = new NioClientModel(this,
+					channel, loop, packetCodec);
+			clientModel.uuid = uid;
 
-			// notify user about clientConnected.
-			serverEventListener.clientConnected(clientModel);
+			// The loop registers the client and notifies the listener.
+			loop.register(clientModel);
 		} catch (final IOException e) {
-			e.printStackTrace();
+			if (connectNewClients) {
+				e.printStackTrace();
+			}
+			// Otherwise the listener was closed by shutDownServer().
 		}
 	}
 
-	public void sendToAll(Packet packet) {
-		for (ClientModel client : clients) {
-			if (client != null) {
-				client.sendPacket(packet);
+	private IOLoop nextLoop() {
+		if (loopBalancing == LoopBalancing.ROUND_ROBIN) {
+			nextLoop = (nextLoop + 1) % ioLoops.length;
+			return ioLoops[nextLoop];
+		}
+		IOLoop best = ioLoops[0];
+		for (int i = 1; i < ioLoops.length; i++) {
+			if (ioLoops[i].getConnections() < best.getConnections()) {
+				best = ioLoops[i];
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return False if the client went away before it could be registered.
+	 */
+	boolean registerClient(final ClientModel clientModel) {
+		// Settings the client needs before anything else arrives. Queued
+		// before the client is in the registry, so no broadcast gets ahead.
+		final boolean dictionary = packetCodec instanceof CompressingPacketCodec
+				&& ((CompressingPacketCodec) packetCodec).hasDictionary();
+		if (dictionary || udp != null) {
+			final HandshakePacket handshake = new HandshakePacket();
+			handshake.setUid(clientModel.uuid);
+			if (udp != null) {
+				handshake.setUdpPort(udp.getPort());
 			}
+			if (dictionary) {
+				handshake.setDictionary(((CompressingPacketCodec) packetCodec)
+						.getDictionary());
+			}
+			clientModel.sendPacket(handshake);
+		}
+
+		// Client is now connected, add to the registry if not in it.
+		final int online = clients.add(clientModel);
+		if (online < 0) {
+			// The UID is taken, it belongs to whoever holds it.
+			clientModel.cleanUp();
+			return false;
 		}
+		if (!clientModel.isConnected()) {
+			// Cleaned up before it was in the registry, which then released
+			// nothing.
+			if (clients.remove(clientModel) >= 0) {
+				generator.releaseUID(clientModel.uuid);
+			}
+			return false;
+		}
+		metrics.connects.increment();
+
+		// debug some info.
+		log.debug("A client [{}] has connected! (online: {})",
+				clientModel.uuid, online);
+
+		// notify user about clientConnected.
+		dispatch(clientModel, CONNECTED);
+		return true;
+	}
+
+	void clientDisconnected(final ClientModel clientModel) {
+		dispatch(clientModel, DISCONNECTED);
+	}
+
+	void writabilityChanged(final ClientModel clientModel,
+			final boolean writable) {
+		log.trace("Client [{}] writable: {}", clientModel.uuid,
+				Boolean.valueOf(writable));
+		if (serverEventListener != null) {
+			serverEventListener.writabilityChanged(clientModel, writable);
+		}
+	}
+
+	public void sendToAll(Packet packet) {
+		broadcast(packet, null);
 	}
 
 	public void sendToAllBut(ClientModel dontSendTo, Packet packet) {
-		for (ClientModel client : clients) {
-			if (client != null) {
-				if (!client.equals(dontSendTo)) {
-					client.sendPacket(packet);
+		broadcast(packet, dontSendTo);
+	}
+
+	/**
+	 * Send a packet to every member of the group, encoded once. Does nothing
+	 * if there is no such group.
+	 */
+	public void sendToGroup(final String name, final Packet packet) {
+		final ClientGroup group = groups.get(name);
+		if (group != null) {
+			broadcast(group, packet, null);
+		} else {
+			PacketPool.recycle(packet);
+		}
+	}
+
+	public void sendToGroup(final ClientGroup group, final Packet packet) {
+		broadcast(group, packet, null);
+	}
+
+	public void sendToGroupBut(final ClientGroup group,
+			final ClientModel dontSendTo, final Packet packet) {
+		broadcast(group, packet, dontSendTo);
+	}
+
+	/**
+	 * @return The group with that name, created if there is none yet.
+	 */
+	public ClientGroup getGroup(final String name) {
+		ClientGroup group = groups.get(name);
+		if (group == null) {
+			final ClientGroup created = new ClientGroup(name);
+			group = groups.putIfAbsent(name, created);
+			if (group == null) {
+				group = created;
+			}
+		}
+		return group;
+	}
+
+	/**
+	 * Remove a group, its members leave it.
+	 *
+	 * @return The removed group, or null if there was none.
+	 */
+	public ClientGroup removeGroup(final String name) {
+		final ClientGroup group = groups.remove(name);
+		if (group != null) {
+			group.remove();
+		}
+		return group;
+	}
+
+	/**
+	 * @return A live, weakly consistent view of the groups.
+	 */
+	public Collection<ClientGroup> getGroups() {
+		return groups.values();
+	}
+
+	/**
+	 * Send a packet to every client whose position is within radius of the
+	 * point, encoded once. Needs the interest grid, see
+	 * {@link #enableInterestGrid(float)}.
+	 */
+	public void sendToNearby(final float x, final float y, final float radius,
+			final Packet packet) {
+		sendToNearbyBut(null, x, y, radius, packet);
+	}
+
+	public void sendToNearbyBut(final ClientModel dontSendTo, final float x,
+			final float y, final float radius, final Packet packet) {
+		final SpatialGrid<ClientModel> grid = interest;
+		if (grid == null) {
+			PacketPool.recycle(packet);
+			throw new IllegalStateException("The interest grid is not enabled.");
+		}
+		final List<ClientModel> recipients = NEARBY.get();
+		try {
+			grid.query(x, y, radius, new SpatialGrid.Visitor<ClientModel>() {
+				@Override
+				protected void visit(final ClientModel client) {
+					if (client != dontSendTo) {
+						recipients.add(client);
+					}
+				}
+			});
+			multicast(recipients, packet);
+		} finally {
+			recipients.clear();
+		}
+	}
+
+	/**
+	 * Encode the packet once and queue the same bytes for each recipient.
+	 */
+	private void multicast(final List<ClientModel> recipients,
+			final Packet packet) {
+		if (recipients.isEmpty()) {
+			PacketPool.recycle(packet);
+			return;
+		}
+		sendEncodedOnce(new Recipients() {
+			@Override
+			void sendEach(final Packet packet) {
+				for (int i = 0; i < recipients.size(); i++) {
+					recipients.get(i).sendPacket(packet);
+				}
+			}
+
+			@Override
+			long queueFrame(final OutboundFrame frame, final Packet packet) {
+				long queued = 0;
+				for (int i = 0; i < recipients.size(); i++) {
+					if (recipients.get(i).queueFrame(frame, packet)) {
+						queued++;
+					}
+				}
+				return queued;
+			}
+		}, packet);
+	}
+
+	/**
+	 * Index clients by position for {@link #sendToNearby}. Report positions
+	 * with {@link #setPosition(ClientModel, float, float)}, they take effect
+	 * when the grid is flushed: by {@link #beginTick()} in tick mode, by
+	 * calling flush() on the returned grid once per tick otherwise. Clients
+	 * leave the grid when they disconnect.
+	 *
+	 * @param cellSize
+	 *            Grid cell size, about the usual sendToNearby radius.
+	 */
+	public synchronized SpatialGrid<ClientModel> enableInterestGrid(
+			final float cellSize) {
+		if (interest == null) {
+			interest = new SpatialGrid<ClientModel>(cellSize);
+		}
+		return interest;
+	}
+
+	/**
+	 * @return The interest grid, null unless enabled.
+	 */
+	public SpatialGrid<ClientModel> getInterestGrid() {
+		return interest;
+	}
+
+	/**
+	 * Report a clients position, applied with the next grid flush.
+	 */
+	public void setPosition(final ClientModel client, final float x,
+			final float y) {
+		final SpatialGrid<ClientModel> grid = interest;
+		if (grid == null) {
+			throw new IllegalStateException("The interest grid is not enabled.");
+		}
+		if (client.isConnected()) {
+			grid.update(client, x, y);
+			if (!client.isConnected()) {
+				// Raced with the client leaving, its removal may have been
+				// undone by the update.
+				grid.remove(client);
+			}
+		}
+	}
+
+	private void broadcast(final Packet packet, final ClientModel except) {
+		broadcast(null, packet, except);
+	}
+
+	/**
+	 * Encode the packet once and queue the same bytes for every client of the
+	 * group (or every client at all for null) but except (may be null).
+	 * Large audiences are fanned out across cores.
+	 */
+	private void broadcast(final ClientGroup group, final Packet packet,
+			final ClientModel except) {
+		if (group != null && group.isEmpty()) {
+			PacketPool.recycle(packet);
+			return;
+		}
+		sendEncodedOnce(new Recipients() {
+			@Override
+			void sendEach(final Packet packet) {
+				for (final ClientModel client : group != null ? group
+						.getMembers() : clients.values()) {
+					if (client != except) {
+						client.sendPacket(packet);
+					}
 				}
 			}
+
+			@Override
+			long queueFrame(final OutboundFrame frame, final Packet packet) {
+				return group != null ? group.queueFrame(frame, packet, except)
+						: clients.queueFrame(frame, packet, except);
+			}
+		}, packet);
+	}
+
+	/**
+	 * Encode the packet once and queue the same bytes for every recipient,
+	 * the object stream has every recipient encode it instead.
+	 */
+	private void sendEncodedOnce(final Recipients recipients,
+			final Packet packet) {
+		if (packetCodec == null) {
+			// Every object stream has its own state, so every client encodes.
+			recipients.sendEach(packet);
+			PacketPool.discard(packet);
+			return;
+		}
+		final OutboundFrame frame;
+		final long encodeNanos;
+		try {
+			final long started = System.nanoTime();
+			final PacketBuffer encoded = Frames.encode(packetCodec, packet);
+			encodeNanos = System.nanoTime() - started;
+			frame = OutboundFrame.copyOf(encoded);
+		} catch (final IOException e) {
+			log.error("Failed to encode {}: {}", packet.getPacketName(),
+					e.getMessage());
+			PacketPool.recycle(packet);
+			return;
+		}
+		try {
+			metrics.packetsSent(packet.getOpcode(), frame.length,
+					recipients.queueFrame(frame, packet), encodeNanos);
+		} finally {
+			frame.release();
+			PacketPool.recycle(packet);
 		}
 	}
 
+	/**
+	 * Write out every clients queued packets, call at the end of a tick when
+	 * using {@link FlushPolicy#END_OF_TICK}.
+	 */
+	public void flush() {
+		for (final ClientModel client : clients.values()) {
+			if (!client.outbound.isEmpty()) {
+				client.requestFlush();
+			}
+		}
+	}
+
+	void scheduleFlush(final ClientModel client, final long delayNanos) {
+		if (flushTimer == null) {
+			client.requestFlush();
+			return;
+		}
+		try {
+			flushTimer.schedule(new Runnable() {
+				public void run() {
+					client.flushTimerArmed.set(false);
+					client.requestFlush();
+				}
+			}, delayNanos, TimeUnit.NANOSECONDS);
+		} catch (final RejectedExecutionException e) {
+			// Shut down, flush right away instead.
+			client.flushTimerArmed.set(false);
+			client.requestFlush();
+		}
+	}
+
+	ExecutorService getWriterPool() {
+		return writerPool;
+	}
+
 	public void addEventListener(final ServerEventListener serverEventListener) {
 		this.serverEventListener = serverEventListener;
 	}
 
-	public void enableServerMonitor() {
-		serverMonitor = new ServerMonitor(this);
+	/**
+	 * Route every packet with the opcode to the handler instead of
+	 * {@link ServerEventListener#packetReceived}. A null handler removes it.
+	 */
+	public synchronized void addPacketHandler(final int opcode,
+			final ServerPacketHandler handler) {
+		if (opcode <= PacketRegistry.UNREGISTERED
+				|| opcode >= PacketRegistry.MAX_OPCODES) {
+			throw new IllegalArgumentException("Invalid opcode: " + opcode);
+		}
+		final ServerPacketHandler[] handlers = Arrays.copyOf(packetHandlers,
+				Math.max(packetHandlers.length, opcode + 1));
+		handlers[opcode] = handler;
+		packetHandlers = handlers;
 	}
 
-	void debug(final String msg) {
-		if (!debugging) {
-			// Let the user handle the message.
-			if (serverEventListener != null) {
-				serverEventListener.debugMessage(msg);
-				return;
+	/**
+	 * Route every packet with the registered name to the handler.
+	 */
+	public void addPacketHandler(final String packetName,
+			final ServerPacketHandler handler) {
+		final int opcode = PacketRegistry.opcodeOf(packetName);
+		if (opcode == PacketRegistry.UNREGISTERED) {
+			throw new IllegalArgumentException(packetName
+					+ " isn't registered with the PacketRegistry");
+		}
+		addPacketHandler(opcode, handler);
+	}
+
+	/**
+	 * Hand a packet or lifecycle event to the listener, on the clients worker
+	 * if there are workers and right here otherwise.
+	 */
+	void dispatch(final ClientModel client, final Object message) {
+		if (tickMode && message == CONNECTED) {
+			tickConnects.add(client);
+		} else if (tickMode && message == DISCONNECTED) {
+			tickDisconnects.add(client);
+		} else if (workers == null) {
+			client.deliverLock.lock();
+			try {
+				deliver(client, message);
+			} finally {
+				client.deliverLock.unlock();
 			}
-		} else if (debugging) {
-			System.out.println("GNetServer -> " + msg);
+			client.deliverDatagrams();
+		} else if (message instanceof Packet) {
+			submit(client, detach((Packet) message));
+		} else {
+			submit(client, message);
 		}
 	}
 
-	void error(final String msg) {
-		if (!debugging) {
-			// Let the user handle the message.
-			if (serverEventListener != null) {
-				serverEventListener.errorMessage(msg);
-				return;
+	/**
+	 * Hand a message to the clients worker. A full worker makes blocking
+	 * readers wait, but an I/O loop serves many clients and never waits: it
+	 * stops reading from that one client until the worker caught up.
+	 */
+	private void submit(final ClientModel client, final Object message) {
+		if (client instanceof NioClientModel
+				&& ((NioClientModel) client).inLoop()) {
+			if (!workers.trySubmit(client.uuid, client, message)) {
+				((NioClientModel) client).pauseReading();
+			}
+		} else {
+			workers.submit(client.uuid, client, message);
+		}
+	}
+
+	/**
+	 * Hand a clients batch to the batch listener, on the clients worker if
+	 * there are workers.
+	 *
+	 * @return Whether a worker took the batch, the caller must not reuse it
+	 *         then.
+	 */
+	boolean dispatchBatch(final ClientModel client, final PacketBatch batch) {
+		if (workers == null) {
+			client.deliverLock.lock();
+			try {
+				batchListener.packetsReceived(batch);
+			} finally {
+				client.deliverLock.unlock();
+			}
+			client.deliverDatagrams();
+			return false;
+		}
+		submit(client, batch);
+		return true;
+	}
+
+	/**
+	 * Hand over a packet or batch that arrived as a datagram, in turn with
+	 * the clients TCP packets. The datagram thread serves every client, so
+	 * it never waits for a worker: a datagram its worker has no room for is
+	 * dropped.
+	 */
+	void dispatchDatagram(final ClientModel client, final Object message) {
+		if (workers == null) {
+			client.queueDatagram(message);
+		} else if (!workers.offer(client.uuid, client, message)) {
+			metrics.inboundDropped.increment();
+			if (message instanceof PacketBatch) {
+				PacketBatch.release((PacketBatch) message);
+			}
+		}
+	}
+
+	/**
+	 * @return A packet that stays valid after the handler returns, views are
+	 *         reused for the next frame as soon as it does.
+	 */
+	static Packet detach(final Packet packet) {
+		return packet instanceof PacketView ? ((PacketView) packet).toPacket()
+				: packet;
+	}
+
+	void deliver(final ClientModel client, final Object message) {
+		if (message == CONNECTED) {
+			serverEventListener.clientConnected(client);
+		} else if (message == DISCONNECTED) {
+			serverEventListener.clientDisconnected(client);
+		} else if (message instanceof PacketBatch) {
+			try {
+				batchListener.packetsReceived((PacketBatch) message);
+			} finally {
+				PacketBatch.release((PacketBatch) message);
+			}
+		} else {
+			deliver(client, (Packet) message);
+		}
+	}
+
+	/**
+	 * Hand a packet to its opcodes handler, or the listener if it has none.
+	 */
+	private void deliver(final ClientModel client, final Packet packet) {
+		final int opcode = packet.getOpcode();
+		final ServerPacketHandler[] handlers = packetHandlers;
+		if (opcode < handlers.length && handlers[opcode] != null) {
+			handlers[opcode].handle(client, packet);
+		} else {
+			serverEventListener.packetReceived(client, packet);
+		}
+	}
+
+	/**
+	 * Receive packets in batches instead of through
+	 * {@link ServerEventListener#packetReceived}, which then only hears about
+	 * connects and disconnects. Packet handlers aren't used either, the
+	 * listener gets every packet. Null turns batching off. Must be called
+	 * before start().
+	 */
+	public void setBatchListener(final PacketBatchListener batchListener,
+			final BatchMode batchMode) {
+		this.batchListener = batchListener;
+		this.batchMode = batchListener != null ? batchMode : null;
+	}
+
+	public BatchMode getBatchMode() {
+		return batchMode;
+	}
+
+	/**
+	 * Deliver every packet received since the last call to the batch
+	 * listener, in one batch on the calling thread. Each clients packets are
+	 * together and in order. Only for {@link BatchMode#PER_TICK} (or tick
+	 * mode, where this is {@link #beginTick()}), call it once per tick:
+	 * packets pile up until it is called.
+	 *
+	 * @return The number of packets delivered.
+	 */
+	public int pollPackets() {
+		if (tickMode) {
+			return beginTick();
+		}
+		if (batchMode != BatchMode.PER_TICK) {
+			throw new IllegalStateException("Not batching per tick.");
+		}
+		pollLock.lock();
+		try {
+			collectInbound();
+			return deliverInbound();
+		} finally {
+			pollLock.unlock();
+		}
+	}
+
+	/**
+	 * Run the server in step with a game loop: received packets wait in a
+	 * queue per client, and so do connects and disconnects, until the loop
+	 * calls {@link #beginTick()}. Everything the loop sends waits until
+	 * {@link #endTick()}, which writes it all out with one write per client.
+	 * Listeners and handlers then only ever run on the loops thread, no
+	 * locking needed. Sets the {@link FlushPolicy#END_OF_TICK} flush policy,
+	 * worker threads aren't used. Must be called before start().
+	 */
+	public void setTickMode(final boolean tickMode) {
+		this.tickMode = tickMode;
+		if (tickMode) {
+			flushPolicy = FlushPolicy.END_OF_TICK;
+		}
+	}
+
+	public boolean isTickMode() {
+		return tickMode;
+	}
+
+	/**
+	 * Most packets a client may send per tick, further ones are dropped (see
+	 * {@link MetricsSnapshot#getInboundDropped()}) so a flooding client can't
+	 * grow its queue without bound. 0, the default, is no limit. Applies to
+	 * tick mode and {@link BatchMode#PER_TICK}.
+	 */
+	public void setMaxInboundPerTick(final int maxInboundPerTick) {
+		this.maxInboundPerTick = maxInboundPerTick;
+	}
+
+	public int getMaxInboundPerTick() {
+		return maxInboundPerTick;
+	}
+
+	/**
+	 * Start a tick in tick mode: deliver everything that arrived since the
+	 * last one on the calling thread. New clients are announced first, then
+	 * each clients packets in order (to the batch listener if there is one,
+	 * packet handlers and the listener otherwise), then the clients that
+	 * left. Positions reported meanwhile are applied to the interest grid
+	 * last.
+	 *
+	 * @return The number of packets delivered.
+	 */
+	public int beginTick() {
+		if (!tickMode) {
+			throw new IllegalStateException("Not in tick mode.");
+		}
+		pollLock.lock();
+		try {
+			tick++;
+			// Take the leavers first, so all they sent gets collected below.
+			ClientModel client;
+			while ((client = tickDisconnects.poll()) != null) {
+				leaving.add(client);
+			}
+			collectInbound();
+			try {
+				while ((client = tickConnects.poll()) != null) {
+					serverEventListener.clientConnected(client);
+				}
+				final int delivered = deliverInbound();
+				for (int i = 0; i < leaving.size(); i++) {
+					serverEventListener.clientDisconnected(leaving.get(i));
+				}
+				final SpatialGrid<ClientModel> grid = interest;
+				if (grid != null) {
+					grid.flush();
+				}
+				return delivered;
+			} finally {
+				leaving.clear();
+			}
+		} finally {
+			pollLock.unlock();
+		}
+	}
+
+	/**
+	 * End a tick: write out everything sent during it, one write per client.
+	 */
+	public void endTick() {
+		flush();
+	}
+
+	/**
+	 * @return Ticks begun so far.
+	 */
+	public long getTick() {
+		return tick;
+	}
+
+	private void collectInbound() {
+		for (final ClientModel client : clients.values()) {
+			client.drainInbound(tickBatch);
+		}
+		ClientModel client;
+		while ((client = departed.poll()) != null) {
+			client.drainInbound(tickBatch);
+		}
+	}
+
+	private int deliverInbound() {
+		final int delivered = tickBatch.size();
+		try {
+			if (batchListener != null) {
+				if (delivered > 0) {
+					batchListener.packetsReceived(tickBatch);
+				}
+			} else {
+				for (int i = 0; i < delivered; i++) {
+					deliver(tickBatch.getClient(i), tickBatch.getPacket(i));
+				}
 			}
-		} else if (debugging) {
-			System.err.println("GNetServer -> " + msg);
+		} finally {
+			tickBatch.clear();
+		}
+		return delivered;
+	}
+
+	/**
+	 * Show the servers statistics in a window, sampled by the
+	 * {@link HeadlessMonitor}. Needs a display.
+	 */
+	public void enableServerMonitor() {
+		serverMonitor = new ServerMonitor(this, enableHeadlessMonitor());
+	}
+
+	/**
+	 * Sample the servers statistics once per interval, without a display.
+	 * Configure the returned monitor (output file, HTTP port) before start().
+	 */
+	public HeadlessMonitor enableHeadlessMonitor() {
+		if (headlessMonitor == null) {
+			headlessMonitor = new HeadlessMonitor(this);
 		}
+		return headlessMonitor;
 	}
 
+	/**
+	 * Replicate entity state to the clients as deltas, see {@link Replicator}.
+	 * Only clients that enabled replication too get updates.
+	 */
+	public synchronized Replicator enableReplication() {
+		if (replicator == null) {
+			replicator = new Replicator(this);
+		}
+		return replicator;
+	}
+
+	/**
+	 * @return The replicator, null unless enabled.
+	 */
+	public Replicator getReplicator() {
+		return replicator;
+	}
+
+	/**
+	 * @return The headless monitor, null unless enabled.
+	 */
+	public HeadlessMonitor getHeadlessMonitor() {
+		return headlessMonitor;
+	}
+
+	/**
+	 * Print messages to the console (the default), or hand them to the
+	 * listeners debugMessage() and errorMessage() instead. Either way they
+	 * are delivered on the logging thread, see {@link #setLogLevel(LogLevel)}
+	 * for which ones.
+	 */
 	public void setDebugging(final boolean debugging) {
 		this.debugging = debugging;
 	}
 
+	/**
+	 * DEBUG (the default) reports connections and lifecycle, TRACE adds every
+	 * packet sent and received. Disabled levels cost nothing.
+	 */
+	public void setLogLevel(final LogLevel level) {
+		log.setLevel(level);
+	}
+
+	public LogLevel getLogLevel() {
+		return log.getLevel();
+	}
+
+	/**
+	 * Bound the memory of the legacy ObjectOutputStream transport by
+	 * periodically resetting the streams. Only used without a packet codec,
+	 * must be called before start(). Clients need a matching policy if it
+	 * enables compact descriptors.
+	 */
+	public void setStreamResetPolicy(final StreamResetPolicy streamResetPolicy) {
+		this.streamResetPolicy = streamResetPolicy;
+	}
+
+	public StreamResetPolicy getStreamResetPolicy() {
+		return streamResetPolicy;
+	}
+
+	/**
+	 * Select the I/O engine, must be called before bind().
+	 */
+	public void setEngine(final ServerEngine engine) {
+		this.engine = engine;
+	}
+
+	public ServerEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Number of I/O loops the NIO engine runs, one per core by default. Must
+	 * be called before start().
+	 */
+	public void setIoThreads(final int ioThreads) {
+		this.ioThreads = ioThreads;
+	}
+
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	/**
+	 * How the NIO engine assigns new clients to its I/O loops.
+	 */
+	public void setLoopBalancing(final LoopBalancing loopBalancing) {
+		this.loopBalancing = loopBalancing;
+	}
+
+	public LoopBalancing getLoopBalancing() {
+		return loopBalancing;
+	}
+
+	/**
+	 * Decide when queued packets are written, must be called before start().
+	 */
+	public void setFlushPolicy(final FlushPolicy flushPolicy) {
+		this.flushPolicy = flushPolicy;
+	}
+
+	public FlushPolicy getFlushPolicy() {
+		return flushPolicy;
+	}
+
+	/**
+	 * Bound what may be queued for each client and decide what happens to a
+	 * client that can't keep up. Must be called before start().
+	 */
+	public void setBackpressurePolicy(
+			final BackpressurePolicy backpressurePolicy) {
+		this.backpressurePolicy = backpressurePolicy;
+	}
+
+	public BackpressurePolicy getBackpressurePolicy() {
+		return backpressurePolicy;
+	}
+
+	/**
+	 * Most clients connected at once, further clients are refused until
+	 * someone leaves. Must be called before bind().
+	 */
+	public void setMaxClients(final int maxClients) {
+		this.maxClients = maxClients;
+	}
+
+	public int getMaxClients() {
+		return maxClients;
+	}
+
+	/**
+	 * Give clients random 8 digit UIDs that can't be guessed from each other
+	 * (the default), or count up from 10000000. Must be called before bind().
+	 */
+	public void setRandomUIDs(final boolean randomUIDs) {
+		this.randomUIDs = randomUIDs;
+	}
+
+	public boolean isRandomUIDs() {
+		return randomUIDs;
+	}
+
+	/**
+	 * Run the accept loop and every blocking client reader on virtual threads
+	 * (JDK 21+, platform threads otherwise). Must be called before bind().
+	 */
+	public void setVirtualThreads(final boolean virtualThreads) {
+		if (virtualThreads && !Threads.isVirtualSupported()) {
+			log.error("Virtual threads are not supported by this JVM, using platform threads.");
+		}
+		this.virtualThreads = virtualThreads;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Run listeners and packet handlers on this many worker threads instead
+	 * of the I/O threads, so a slow handler doesn't stop reading. 0 (the
+	 * default) keeps them on the I/O threads. Each client sticks to one
+	 * worker, so its packets and its connect and disconnect events are still
+	 * handled one at a time and in order. Packet views are copied before the
+	 * handoff. Must be called before start().
+	 */
+	public void setWorkerThreads(final int workerThreads) {
+		this.workerThreads = workerThreads;
+	}
+
+	public int getWorkerThreads() {
+		return workerThreads;
+	}
+
+	/**
+	 * Packets each worker can have waiting, 1024 by default. A blocking
+	 * reader that finds its worker full waits for it, the NIO engine stops
+	 * reading from that client until the worker is half empty again, see
+	 * {@link MetricsSnapshot#getWorkerSaturated()}. Must be called before
+	 * start().
+	 */
+	public void setWorkerQueueCapacity(final int workerQueueCapacity) {
+		this.workerQueueCapacity = workerQueueCapacity;
+	}
+
+	public int getWorkerQueueCapacity() {
+		return workerQueueCapacity;
+	}
+
+	/**
+	 * Open a datagram channel next to TCP for {@link Delivery#UNRELIABLE_SEQUENCED}
+	 * packets, must be called before bind(). Needs a packet codec. Clients
+	 * are told the port when they connect.
+	 *
+	 * A clients datagrams are delivered one at a time with its TCP packets,
+	 * on its worker if there are workers. Without workers they are delivered
+	 * on the datagram thread, or by the clients reader if it is busy
+	 * delivering, so a slow handler holds up datagrams from every client.
+	 *
+	 * @param udpPort
+	 *            The port, 0 for any free one or -1 for no datagram channel.
+	 */
+	public void setUdpPort(final int udpPort) {
+		this.udpPort = udpPort;
+	}
+
+	/**
+	 * @return The port the datagram channel is bound to, or the configured
+	 *         port before bind().
+	 */
+	public int getUdpPort() {
+		final UdpChannel channel = udp;
+		return channel != null ? channel.getPort() : udpPort;
+	}
+
+	private void bindUdp() throws IOException {
+		if (packetCodec == null) {
+			log.error("The datagram channel needs a packet codec, not opening it.");
+			return;
+		}
+		udp = new UdpChannel(this, InetAddress.getByName(host), udpPort);
+		log.debug("Datagram channel bound to port {}.", udp.getPort());
+	}
+
+	/**
+	 * @return The worker stage, null unless started with worker threads.
+	 */
+	public WorkerPool<ClientModel> getWorkers() {
+		return workers;
+	}
+
+	/**
+	 * Select a framed packet codec, must be called before bind(). Clients must
+	 * use the same codec. Null keeps the legacy ObjectOutputStream transport.
+	 * A {@link CompressingPacketCodec} dictionary is sent to clients when
+	 * they connect.
+	 */
+	public void setPacketCodec(final PacketCodec packetCodec) {
+		this.packetCodec = packetCodec;
+	}
+
+	public PacketCodec getPacketCodec() {
+		return packetCodec;
+	}
+
+	/**
+	 * Hand packet handlers a {@link PacketView} over the received frame
+	 * instead of a decoded packet, must be called before bind(). Only works
+	 * with the {@link BinaryPacketCodec}. A view is only valid until the
+	 * handler returns, but can be sent on to other clients as is.
+	 */
+	public void setPacketViews(final boolean packetViews) {
+		this.packetViews = packetViews;
+	}
+
+	/**
+	 * @return Whether clients get packet views, see
+	 *         {@link #setPacketViews(boolean)}.
+	 */
+	public boolean isPacketViews() {
+		return packetViews && packetCodec instanceof BinaryPacketCodec;
+	}
+
 	public boolean isDebugging() {
 		return debugging;
 	}
@@ -251,11 +1439,22 @@ public class GNetServer {
 	}
 
 	public int getOnlineClients() {
-		return onlineClients;
+		return clients.size();
+	}
+
+	/**
+	 * @return A live, weakly consistent view of the connected clients. Safe to
+	 *         iterate while clients come and go.
+	 */
+	public Collection<ClientModel> getClients() {
+		return clients.values();
 	}
 
-	public ArrayList<ClientModel> getClients() {
-		return clients;
+	/**
+	 * @return The connected client with the given UID, or null.
+	 */
+	public ClientModel getClient(final int uid) {
+		return clients.get(uid);
 	}
 
 	public boolean isBindingComplete() {
@@ -282,16 +1481,48 @@ public class GNetServer {
 		return tcpBound;
 	}
 
+	/**
+	 * @return Packets received since the server was created, see
+	 *         {@link #getMetrics()} for more.
+	 */
 	public int getRecievedPackets() {
-		return recievedPackets;
+		return (int) metrics.getPacketsIn();
 	}
 
+	/**
+	 * @return Packets queued for clients since the server was created, a
+	 *         broadcast counts once per recipient.
+	 */
 	public int getSentPackets() {
-		return sentPackets;
+		return (int) metrics.getPacketsOut();
+	}
+
+	/**
+	 * @return Traffic, timing and connection statistics.
+	 */
+	public ServerMetrics getMetrics() {
+		return metrics;
 	}
 
 	public ServerMonitor getServerMonitor() {
 		return serverMonitor;
 	}
 
+	/**
+	 * Who {@link GNetServer#sendEncodedOnce} sends to.
+	 */
+	private abstract static class Recipients {
+
+		/**
+		 * Send every recipient the packet, for the object stream.
+		 */
+		abstract void sendEach(Packet packet);
+
+		/**
+		 * @return The number of recipients the frame was queued for.
+		 */
+		abstract long queueFrame(OutboundFrame frame, Packet packet);
+
+	}
+
 }
@@ -0,0 +1,209 @@
+package org.gnet.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Samples a servers statistics on a timer and publishes them, no display
+ * needed. Each sample is a {@link ServerStats}, available from
+ * {@link #getLatest()} and optionally written to a file or served over HTTP
+ * on the loopback interface:
+ *
+ * GET /stats for text, GET /stats.json for JSON.
+ *
+ * Sampling reads the servers lock free counters once per interval on its own
+ * daemon thread, the I/O threads don't notice. Configure before the server
+ * starts.
+ */
+public class HeadlessMonitor {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final GNetServer server;
+	private long intervalMillis = 1000;
+	private File outputFile;
+	private int httpPort = -1;
+
+	private ScheduledExecutorService sampler;
+	private HttpServer httpServer;
+	private volatile ServerStats latest;
+
+	public HeadlessMonitor(final GNetServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Time between samples, one second by default.
+	 */
+	public void setInterval(final long intervalMillis) {
+		if (intervalMillis <= 0) {
+			throw new IllegalArgumentException("Interval must be positive.");
+		}
+		this.intervalMillis = intervalMillis;
+	}
+
+	public long getInterval() {
+		return intervalMillis;
+	}
+
+	/**
+	 * Replace the file with every sample, as JSON if its name ends in .json
+	 * and as text otherwise. Readers always see a complete sample.
+	 */
+	public void setOutputFile(final File outputFile) {
+		this.outputFile = outputFile;
+	}
+
+	public File getOutputFile() {
+		return outputFile;
+	}
+
+	/**
+	 * Serve samples over HTTP on 127.0.0.1, 0 picks a free port (see
+	 * {@link #getHttpPort()} once started), -1 turns it off (the default).
+	 */
+	public void setHttpPort(final int httpPort) {
+		this.httpPort = httpPort;
+	}
+
+	/**
+	 * @return The port samples are served on, -1 if they aren't.
+	 */
+	public int getHttpPort() {
+		return httpServer != null ? httpServer.getAddress().getPort()
+				: httpPort;
+	}
+
+	/**
+	 * @return The most recent sample, null before the first one.
+	 */
+	public ServerStats getLatest() {
+		return latest;
+	}
+
+	public synchronized void start() {
+		if (sampler != null) {
+			return;
+		}
+		if (httpPort >= 0) {
+			try {
+				httpServer = HttpServer.create(new InetSocketAddress(
+						InetAddress.getLoopbackAddress(), httpPort), 0);
+				httpServer.createContext("/stats", new StatsHandler());
+				httpServer.start();
+			} catch (final IOException e) {
+				server.log.error("Monitor failed to serve on port {}.",
+						httpPort);
+				e.printStackTrace();
+				httpServer = null;
+			}
+		}
+		sampler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(final Runnable task) {
+						final Thread thread = new Thread(task,
+								"GNetServer-Monitor");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		sampler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				sample();
+			}
+		}, 0, intervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (sampler == null) {
+			return;
+		}
+		sampler.shutdownNow();
+		sampler = null;
+		if (httpServer != null) {
+			httpServer.stop(0);
+			httpServer = null;
+		}
+	}
+
+	private void sample() {
+		// An exception would cancel the schedule, so never let one out.
+		try {
+			final ServerStats previous = latest;
+			final ServerStats stats = new ServerStats(server, server.metrics
+					.snapshot(previous != null ? previous.getMetrics() : null));
+			latest = stats;
+			if (outputFile != null) {
+				write(stats);
+			}
+		} catch (final Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void write(final ServerStats stats) throws IOException {
+		final String contents = outputFile.getName().endsWith(".json") ? stats
+				.toJson() : stats.toText();
+		final File directory = outputFile.getAbsoluteFile().getParentFile();
+		final File temp = new File(directory, outputFile.getName() + ".tmp");
+		final OutputStream out = new FileOutputStream(temp);
+		try {
+			out.write(contents.getBytes(UTF_8));
+		} finally {
+			out.close();
+		}
+		try {
+			Files.move(temp.toPath(), outputFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+		} catch (final AtomicMoveNotSupportedException e) {
+			Files.move(temp.toPath(), outputFile.toPath(),
+					StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private final class StatsHandler implements HttpHandler {
+
+		public void handle(final HttpExchange exchange) throws IOException {
+			try {
+				final String path = exchange.getRequestURI().getPath();
+				final ServerStats stats = latest;
+				if (!exchange.getRequestMethod().equals("GET")
+						|| stats == null
+						|| !(path.equals("/stats") || path
+								.equals("/stats.json"))) {
+					exchange.sendResponseHeaders(stats == null ? 503 : 404, -1);
+					return;
+				}
+				final boolean json = path.endsWith(".json");
+				final byte[] body = (json ? stats.toJson() : stats.toText())
+						.getBytes(UTF_8);
+				exchange.getResponseHeaders().set(
+						"Content-Type",
+						json ? "application/json; charset=utf-8"
+								: "text/plain; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				exchange.getResponseBody().write(body);
+			} finally {
+				exchange.close();
+			}
+		}
+	}
+
+}
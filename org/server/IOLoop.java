@@ -0,0 +1,211 @@
+package org.gnet.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A selector thread reading and writing for the {@link NioClientModel}s
+ * assigned to it. Clients are handed over by the acceptor and stay pinned to
+ * one loop for their whole life, so their state is never touched by two I/O
+ * threads.
+ */
+final class IOLoop implements Runnable {
+
+	private final GNetServer server;
+	private final Selector selector;
+	private final Thread thread;
+	private final Queue<NioClientModel> pendingRegistrations = new ConcurrentLinkedQueue<NioClientModel>();
+	private final Queue<NioClientModel> pendingFlushes = new ConcurrentLinkedQueue<NioClientModel>();
+	// Clients to read from again, their worker caught up.
+	private final Queue<NioClientModel> pendingResumes = new ConcurrentLinkedQueue<NioClientModel>();
+	private final AtomicInteger connections = new AtomicInteger();
+	private final AtomicBoolean wakeupPending = new AtomicBoolean();
+
+	// Shared by every client on this loop, partial frames get copied out.
+	private final ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+
+	// Queued frames are packed into this for a single write.
+	final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64 * 1024);
+	private volatile boolean running;
+
+	IOLoop(final GNetServer server, final String name) throws IOException {
+		this.server = server;
+		selector = Selector.open();
+		thread = new Thread(this, name);
+	}
+
+	void start() {
+		running = true;
+		thread.start();
+	}
+
+	/**
+	 * Stop after flushing what was asked for, the loops clients are
+	 * disconnected.
+	 */
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Wait for the loop to stop, unless called on the loop itself.
+	 */
+	void join() {
+		if (inLoop()) {
+			return;
+		}
+		try {
+			thread.join();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	boolean inLoop() {
+		return Thread.currentThread() == thread;
+	}
+
+	/**
+	 * Number of clients currently pinned to this loop.
+	 */
+	int getConnections() {
+		return connections.get();
+	}
+
+	/**
+	 * Hand a freshly accepted client to this loop, safe from any thread.
+	 */
+	void register(final NioClientModel client) {
+		connections.incrementAndGet();
+		pendingRegistrations.add(client);
+		wakeup();
+	}
+
+	void unregister() {
+		connections.decrementAndGet();
+	}
+
+	/**
+	 * Ask the loop to flush a clients outbound queue, safe from any thread.
+	 */
+	void scheduleFlush(final NioClientModel client) {
+		pendingFlushes.add(client);
+		if (!inLoop()) {
+			wakeup();
+		}
+	}
+
+	/**
+	 * Ask the loop to read from a paused client again, safe from any thread.
+	 */
+	void scheduleResume(final NioClientModel client) {
+		pendingResumes.add(client);
+		wakeup();
+	}
+
+	private void wakeup() {
+		if (wakeupPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+			} catch (final IOException e) {
+				server.log.error("Selector failed: {}", e.getMessage());
+				break;
+			}
+
+			// Reset before draining so work queued meanwhile wakes us.
+			wakeupPending.set(false);
+			NioClientModel pending;
+			while ((pending = pendingRegistrations.poll()) != null) {
+				registerClient(pending);
+			}
+			while ((pending = pendingResumes.poll()) != null) {
+				pending.readAgain();
+			}
+			flushPending();
+
+			final Iterator<SelectionKey> keys = selector.selectedKeys()
+					.iterator();
+			while (keys.hasNext()) {
+				final SelectionKey key = keys.next();
+				keys.remove();
+				try {
+					final NioClientModel client = (NioClientModel) key
+							.attachment();
+					try {
+						if (key.isReadable()) {
+							client.read(readBuffer);
+						}
+						if (key.isValid() && key.isWritable()) {
+							client.flush();
+						}
+					} catch (final IOException e) {
+						server.log.debug("Client [{}] I/O failure: {}",
+								client.uuid, e.getMessage());
+						client.cleanUp();
+					}
+				} catch (final CancelledKeyException e) {
+					// Client was closed while processing, nothing to do.
+				}
+			}
+
+			// Replies queued while reading go out together.
+			flushPending();
+		}
+
+		// Shutting down, send what is pending and let go of the clients.
+		flushPending();
+		NioClientModel pending;
+		while ((pending = pendingRegistrations.poll()) != null) {
+			pending.cleanUp();
+		}
+		for (final SelectionKey key : selector.keys().toArray(
+				new SelectionKey[0])) {
+			((NioClientModel) key.attachment()).cleanUp();
+		}
+		try {
+			selector.close();
+		} catch (final IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void flushPending() {
+		NioClientModel pending;
+		while ((pending = pendingFlushes.poll()) != null) {
+			pending.flush();
+		}
+	}
+
+	private void registerClient(final NioClientModel client) {
+		try {
+			client.setKey(client.getChannel().register(selector,
+					SelectionKey.OP_READ, client));
+		} catch (final ClosedChannelException e) {
+			// Never registered, so cleanUp() leaves the UID alone.
+			client.cleanUp();
+			server.generator.releaseUID(client.uuid);
+			return;
+		}
+		server.registerClient(client);
+
+		// Flush anything queued from within clientConnected.
+		client.flush();
+	}
+
+}
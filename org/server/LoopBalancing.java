@@ -0,0 +1,15 @@
+package org.gnet.server;
+
+public enum LoopBalancing {
+
+	/**
+	 * Cycle through the I/O loops in order.
+	 */
+	ROUND_ROBIN,
+
+	/**
+	 * Pick the I/O loop with the fewest connected clients.
+	 */
+	LEAST_LOADED
+
+}
@@ -0,0 +1,428 @@
+package org.gnet.server;
+
+import java.util.Arrays;
+
+import org.gnet.util.Histogram;
+import org.gnet.util.WorkerPool;
+
+/**
+ * A point in time copy of a servers {@link ServerMetrics}. Counters are
+ * totals since the server was created, rates are per second since the
+ * previous snapshot it was taken with and timings are in nanoseconds.
+ */
+public final class MetricsSnapshot {
+
+	private static final Histogram.Snapshot EMPTY = new Histogram().snapshot();
+
+	private final long timestamp;
+	private final long intervalMillis;
+	private final int onlineClients;
+	private final long accepted;
+	private final long refused;
+	private final long connects;
+	private final long disconnects;
+	private final long inboundDropped;
+	private final long outboundDropped;
+	private final long slowConsumers;
+	private final long queuedBytes;
+	private final long maxQueuedBytes;
+	private final Histogram.Snapshot encodeNanos;
+	private final Histogram.Snapshot decodeNanos;
+	private final Histogram.Snapshot queueDepth;
+
+	// The worker stage, all zero without workers.
+	private final int workerQueued;
+	private final int workerMaxQueued;
+	private final int workerCapacity;
+	private final long workerSubmitted;
+	private final long workerSaturated;
+	private final long workerBlockedNanos;
+	private final Histogram.Snapshot workerQueueNanos;
+	private final Histogram.Snapshot workerQueueDepth;
+
+	// Opcodes that saw traffic, in order, and their counters.
+	private final int[] opcodes;
+	private final long[] packetsIn;
+	private final long[] bytesIn;
+	private final long[] packetsOut;
+	private final long[] bytesOut;
+
+	private final long totalPacketsIn;
+	private final long totalBytesIn;
+	private final long totalPacketsOut;
+	private final long totalBytesOut;
+
+	private final double acceptRate;
+	private final double connectRate;
+	private final double disconnectRate;
+	private final double packetsInRate;
+	private final double packetsOutRate;
+	private final double bytesInRate;
+	private final double bytesOutRate;
+	private final double workerSaturatedRate;
+
+	MetricsSnapshot(final ServerMetrics metrics, final MetricsSnapshot previous) {
+		timestamp = System.currentTimeMillis();
+		intervalMillis = previous != null ? timestamp - previous.timestamp : 0;
+		onlineClients = metrics.getOnlineClients();
+		accepted = metrics.accepted.sum();
+		refused = metrics.refused.sum();
+		connects = metrics.connects.sum();
+		disconnects = metrics.disconnects.sum();
+		inboundDropped = metrics.inboundDropped.sum();
+		outboundDropped = metrics.outboundDropped.sum();
+		slowConsumers = metrics.slowConsumers.sum();
+		encodeNanos = metrics.encodeNanos.snapshot();
+		decodeNanos = metrics.decodeNanos.snapshot();
+		queueDepth = metrics.queueDepth.snapshot();
+
+		final WorkerPool<ClientModel> workers = metrics.getServer().workers;
+		if (workers != null) {
+			workerQueued = workers.getQueued();
+			workerMaxQueued = workers.getMaxQueued();
+			workerCapacity = workers.getCapacity();
+			workerSubmitted = workers.getSubmitted();
+			workerSaturated = workers.getSaturated();
+			workerBlockedNanos = workers.getBlockedNanos();
+			workerQueueNanos = workers.getQueueNanos();
+			workerQueueDepth = workers.getQueueDepth();
+		} else {
+			workerQueued = 0;
+			workerMaxQueued = 0;
+			workerCapacity = 0;
+			workerSubmitted = 0;
+			workerSaturated = 0;
+			workerBlockedNanos = 0;
+			workerQueueNanos = EMPTY;
+			workerQueueDepth = EMPTY;
+		}
+
+		long queued = 0;
+		long maxQueued = 0;
+		for (final ClientModel client : metrics.getServer().clients.values()) {
+			final long bytes = client.outbound.getBytes();
+			queued += bytes;
+			maxQueued = Math.max(maxQueued, bytes);
+		}
+		queuedBytes = queued;
+		maxQueuedBytes = maxQueued;
+
+		final int length = metrics.packetsIn.length();
+		final int[] opcodes = new int[length];
+		final long[] packetsIn = new long[length];
+		final long[] bytesIn = new long[length];
+		final long[] packetsOut = new long[length];
+		final long[] bytesOut = new long[length];
+		int count = 0;
+		for (int opcode = 0; opcode < length; opcode++) {
+			packetsIn[count] = metrics.packetsIn.get(opcode);
+			packetsOut[count] = metrics.packetsOut.get(opcode);
+			if (packetsIn[count] == 0 && packetsOut[count] == 0) {
+				continue;
+			}
+			bytesIn[count] = metrics.bytesIn.get(opcode);
+			bytesOut[count] = metrics.bytesOut.get(opcode);
+			opcodes[count++] = opcode;
+		}
+		this.opcodes = Arrays.copyOf(opcodes, count);
+		this.packetsIn = Arrays.copyOf(packetsIn, count);
+		this.bytesIn = Arrays.copyOf(bytesIn, count);
+		this.packetsOut = Arrays.copyOf(packetsOut, count);
+		this.bytesOut = Arrays.copyOf(bytesOut, count);
+		totalPacketsIn = sum(this.packetsIn);
+		totalBytesIn = sum(this.bytesIn);
+		totalPacketsOut = sum(this.packetsOut);
+		totalBytesOut = sum(this.bytesOut);
+
+		// The previous snapshot is only used here, so snapshots never chain.
+		acceptRate = rate(accepted, previous != null ? previous.accepted : 0);
+		connectRate = rate(connects, previous != null ? previous.connects : 0);
+		disconnectRate = rate(disconnects,
+				previous != null ? previous.disconnects : 0);
+		packetsInRate = rate(totalPacketsIn,
+				previous != null ? previous.totalPacketsIn : 0);
+		packetsOutRate = rate(totalPacketsOut,
+				previous != null ? previous.totalPacketsOut : 0);
+		bytesInRate = rate(totalBytesIn,
+				previous != null ? previous.totalBytesIn : 0);
+		bytesOutRate = rate(totalBytesOut,
+				previous != null ? previous.totalBytesOut : 0);
+		workerSaturatedRate = rate(workerSaturated,
+				previous != null ? previous.workerSaturated : 0);
+	}
+
+	private double rate(final long now, final long before) {
+		return intervalMillis > 0 ? (now - before) * 1000.0 / intervalMillis
+				: 0;
+	}
+
+	private static long sum(final long[] values) {
+		long sum = 0;
+		for (final long value : values) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	/**
+	 * @return When the snapshot was taken, in epoch milliseconds.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * @return Milliseconds since the previous snapshot, 0 for the first one.
+	 */
+	public long getIntervalMillis() {
+		return intervalMillis;
+	}
+
+	public int getOnlineClients() {
+		return onlineClients;
+	}
+
+	public long getPacketsIn() {
+		return totalPacketsIn;
+	}
+
+	public long getPacketsOut() {
+		return totalPacketsOut;
+	}
+
+	public long getBytesIn() {
+		return totalBytesIn;
+	}
+
+	public long getBytesOut() {
+		return totalBytesOut;
+	}
+
+	/**
+	 * @return Connections accepted, including refused ones.
+	 */
+	public long getAccepted() {
+		return accepted;
+	}
+
+	/**
+	 * @return Connections closed right away because no UID was free.
+	 */
+	public long getRefused() {
+		return refused;
+	}
+
+	public long getConnects() {
+		return connects;
+	}
+
+	public long getDisconnects() {
+		return disconnects;
+	}
+
+	/**
+	 * @return Packets dropped because a client sent more than
+	 *         {@link GNetServer#setMaxInboundPerTick(int)} in a tick.
+	 */
+	public long getInboundDropped() {
+		return inboundDropped;
+	}
+
+	/**
+	 * @return Packets the {@link BackpressurePolicy} dropped, conflated ones
+	 *         included.
+	 */
+	public long getOutboundDropped() {
+		return outboundDropped;
+	}
+
+	/**
+	 * @return Clients the {@link BackpressurePolicy} disconnected.
+	 */
+	public long getSlowConsumers() {
+		return slowConsumers;
+	}
+
+	/**
+	 * @return Bytes waiting to be written, over all clients.
+	 */
+	public long getQueuedBytes() {
+		return queuedBytes;
+	}
+
+	/**
+	 * @return Bytes waiting for the most backed up client.
+	 */
+	public long getMaxQueuedBytes() {
+		return maxQueuedBytes;
+	}
+
+	public double getAcceptRate() {
+		return acceptRate;
+	}
+
+	public double getConnectRate() {
+		return connectRate;
+	}
+
+	public double getDisconnectRate() {
+		return disconnectRate;
+	}
+
+	public double getPacketsInRate() {
+		return packetsInRate;
+	}
+
+	public double getPacketsOutRate() {
+		return packetsOutRate;
+	}
+
+	public double getBytesInRate() {
+		return bytesInRate;
+	}
+
+	public double getBytesOutRate() {
+		return bytesOutRate;
+	}
+
+	public Histogram.Snapshot getEncodeNanos() {
+		return encodeNanos;
+	}
+
+	public Histogram.Snapshot getDecodeNanos() {
+		return decodeNanos;
+	}
+
+	/**
+	 * @return Bytes queued for a client right after queueing a packet for it.
+	 */
+	public Histogram.Snapshot getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * @return Packets and events waiting for the workers, over all of them.
+	 */
+	public int getWorkerQueued() {
+		return workerQueued;
+	}
+
+	/**
+	 * @return Packets and events waiting for the most backed up worker.
+	 */
+	public int getWorkerMaxQueued() {
+		return workerMaxQueued;
+	}
+
+	/**
+	 * @return What each worker can have waiting, 0 without workers.
+	 */
+	public int getWorkerCapacity() {
+		return workerCapacity;
+	}
+
+	public long getWorkerSubmitted() {
+		return workerSubmitted;
+	}
+
+	/**
+	 * @return How often a reader found its worker full and had to wait. Keeps
+	 *         rising when the workers are too few or too slow.
+	 */
+	public long getWorkerSaturated() {
+		return workerSaturated;
+	}
+
+	public double getWorkerSaturatedRate() {
+		return workerSaturatedRate;
+	}
+
+	/**
+	 * @return Total time readers spent waiting for a full worker.
+	 */
+	public long getWorkerBlockedNanos() {
+		return workerBlockedNanos;
+	}
+
+	/**
+	 * @return How long packets waited for a worker.
+	 */
+	public Histogram.Snapshot getWorkerQueueNanos() {
+		return workerQueueNanos;
+	}
+
+	/**
+	 * @return Packets waiting for a worker right after handing it one.
+	 */
+	public Histogram.Snapshot getWorkerQueueDepth() {
+		return workerQueueDepth;
+	}
+
+	/**
+	 * @return The opcodes that saw any traffic, in ascending order.
+	 */
+	public int[] getOpcodes() {
+		return opcodes.clone();
+	}
+
+	public long getPacketsIn(final int opcode) {
+		final int index = Arrays.binarySearch(opcodes, opcode);
+		return index >= 0 ? packetsIn[index] : 0;
+	}
+
+	public long getBytesIn(final int opcode) {
+		final int index = Arrays.binarySearch(opcodes, opcode);
+		return index >= 0 ? bytesIn[index] : 0;
+	}
+
+	public long getPacketsOut(final int opcode) {
+		final int index = Arrays.binarySearch(opcodes, opcode);
+		return index >= 0 ? packetsOut[index] : 0;
+	}
+
+	public long getBytesOut(final int opcode) {
+		final int index = Arrays.binarySearch(opcodes, opcode);
+		return index >= 0 ? bytesOut[index] : 0;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder text = new StringBuilder(512);
+		text.append("online: ").append(onlineClients)
+				.append(", accepted: ").append(accepted)
+				.append(", refused: ").append(refused)
+				.append(", connects: ").append(connects)
+				.append(", disconnects: ").append(disconnects).append('\n');
+		text.append("in: ").append(totalPacketsIn).append(" packets / ")
+				.append(totalBytesIn).append(" bytes, out: ")
+				.append(totalPacketsOut).append(" packets / ")
+				.append(totalBytesOut).append(" bytes, dropped in: ")
+				.append(inboundDropped).append(", dropped out: ")
+				.append(outboundDropped).append(", slow consumers: ")
+				.append(slowConsumers).append(", queued: ")
+				.append(queuedBytes).append(" bytes (max ")
+				.append(maxQueuedBytes).append(")\n");
+		text.append("encode ns: ").append(encodeNanos).append('\n');
+		text.append("decode ns: ").append(decodeNanos).append('\n');
+		text.append("queue depth: ").append(queueDepth);
+		if (workerCapacity > 0) {
+			text.append("\nworkers: ").append(workerQueued)
+					.append(" queued (max ").append(workerMaxQueued)
+					.append(" of ").append(workerCapacity)
+					.append("), saturated: ").append(workerSaturated)
+					.append(" (").append(workerBlockedNanos / 1000000)
+					.append("ms blocked)");
+			text.append("\nworker wait ns: ").append(workerQueueNanos);
+			text.append("\nworker depth: ").append(workerQueueDepth);
+		}
+		for (int i = 0; i < opcodes.length; i++) {
+			text.append('\n').append(ServerMetrics.nameOf(opcodes[i]))
+					.append(": in ").append(packetsIn[i]).append(" / ")
+					.append(bytesIn[i]).append(" bytes, out ")
+					.append(packetsOut[i]).append(" / ").append(bytesOut[i])
+					.append(" bytes");
+		}
+		return text.toString();
+	}
+
+}
@@ -0,0 +1,208 @@
+package org.gnet.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import org.gnet.packet.Frames;
+import org.gnet.packet.Packet;
+import org.gnet.packet.PacketCodec;
+
+/**
+ * A client connection driven by an {@link IOLoop} instead of its own thread.
+ * Reads and writes only ever happen on the loop thread, other threads merely
+ * queue outgoing frames and ask the loop to flush them.
+ */
+final class NioClientModel extends ClientModel {
+
+	private final SocketChannel channel;
+	private final IOLoop loop;
+	private SelectionKey key;
+
+	// Holds the start of a frame that didn't fully arrive yet.
+	private ByteBuffer partial;
+
+	NioClientModel(final GNetServer server, final SocketChannel channel,
+			final IOLoop loop, final PacketCodec codec) {
+		super(server, channel.socket(), codec);
+		this.channel = channel;
+		this.loop = loop;
+	}
+
+	@Override
+	public void run() {
+		// Nothing to do, the IOLoop drives this client.
+	}
+
+	void setKey(final SelectionKey key) {
+		this.key = key;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	boolean inLoop() {
+		return loop.inLoop();
+	}
+
+	/**
+	 * Stop reading until {@link #resumeReading()}, the loop goes on serving
+	 * everyone else. Only called on the loop.
+	 */
+	void pauseReading() {
+		if (key != null && key.isValid()
+				&& (key.interestOps() & SelectionKey.OP_READ) != 0) {
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		}
+	}
+
+	/**
+	 * Read again once the loop gets to it, safe from any thread.
+	 */
+	void resumeReading() {
+		if (connected) {
+			loop.scheduleResume(this);
+		}
+	}
+
+	/**
+	 * Only called on the loop.
+	 */
+	void readAgain() {
+		if (!connected || key == null) {
+			return;
+		}
+		try {
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+		} catch (final CancelledKeyException e) {
+			// Closed meanwhile, nothing to read.
+		}
+	}
+
+	/**
+	 * Read whatever is available and dispatch every complete frame.
+	 *
+	 * @param scratch
+	 *            The loops shared read buffer.
+	 */
+	void read(final ByteBuffer scratch) throws IOException {
+		ByteBuffer buffer = partial;
+		if (buffer == null) {
+			scratch.clear();
+			buffer = scratch;
+		}
+		if (channel.read(buffer) < 0) {
+			// Orderly close from the client.
+			cleanUp();
+			return;
+		}
+		buffer.flip();
+
+		int needed = 0;
+		try {
+			while (connected && buffer.remaining() >= Frames.HEADER_SIZE) {
+				final int length = buffer.getInt(buffer.position());
+				Frames.checkLength(length);
+				if (buffer.remaining() < Frames.HEADER_SIZE + length) {
+					needed = Frames.HEADER_SIZE + length;
+					break;
+				}
+				final int start = buffer.position() + Frames.HEADER_SIZE;
+				buffer.position(start + length);
+				final long started = System.nanoTime();
+				if (view != null) {
+					// Read straight out of the read buffer, nothing is copied.
+					view.wrap(buffer.array(), buffer.arrayOffset() + start,
+							length);
+					server.metrics.packetReceived(view.getOpcode(),
+							Frames.HEADER_SIZE + length, System.nanoTime()
+									- started);
+					handleView();
+					continue;
+				}
+				final ByteBuffer payload = buffer.duplicate();
+				payload.limit(start + length);
+				payload.position(start);
+				final Packet packet = codec.decode(payload);
+				server.metrics.packetReceived(packet.getOpcode(),
+						Frames.HEADER_SIZE + length, System.nanoTime() - started);
+				handlePacket(packet);
+			}
+		} finally {
+			// Everything this read brought in goes out as one batch.
+			endOfRead();
+		}
+
+		if (!connected || !buffer.hasRemaining()) {
+			// Everything consumed, don't hold on to memory for idle clients.
+			partial = null;
+			return;
+		}
+		needed = Math.max(needed, buffer.remaining() + 1);
+		if (buffer == partial && partial.capacity() >= needed) {
+			partial.compact();
+		} else {
+			final ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, 1024));
+			grown.put(buffer);
+			partial = grown;
+		}
+	}
+
+	/**
+	 * Flushes always run on the loop. Requests made on the loop itself are
+	 * collected and flushed together once the current batch of reads is done.
+	 */
+	@Override
+	void requestFlush() {
+		if (connected && flushScheduled.compareAndSet(false, true)) {
+			loop.scheduleFlush(this);
+		}
+	}
+
+	/**
+	 * Write queued frames, packed into the loops write buffer, until the
+	 * queue is empty or the socket buffer is full, in which case we wait for
+	 * OP_WRITE.
+	 */
+	void flush() {
+		flushScheduled.set(false);
+		if (!connected || key == null) {
+			return;
+		}
+		final ByteBuffer buffer = loop.writeBuffer;
+		try {
+			while (!outbound.isEmpty()) {
+				buffer.clear();
+				outbound.fill(buffer);
+				buffer.flip();
+				outbound.consume(channel.write(buffer));
+				if (buffer.hasRemaining()) {
+					// Socket buffer full, continue once writable.
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+		} catch (final IOException e) {
+			cleanUp();
+		} finally {
+			checkWritable();
+		}
+	}
+
+	@Override
+	void cleanUp() {
+		final boolean wasConnected = connected;
+		super.cleanUp();
+		partial = null;
+		if (wasConnected) {
+			loop.unregister();
+		}
+	}
+
+}
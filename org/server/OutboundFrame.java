@@ -0,0 +1,80 @@
+package org.gnet.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gnet.packet.PacketBuffer;
+
+/**
+ * One encoded frame waiting in {@link OutboundQueue}s. Frames are pooled by
+ * size and reference counted: a broadcast queues the same frame for many
+ * clients, and whoever writes it last gives it back to the pool.
+ */
+final class OutboundFrame {
+
+	private static final int SMALL = 256;
+	private static final int MEDIUM = 4 * 1024;
+	private static final int LARGE = 64 * 1024;
+
+	private static final ArrayBlockingQueue<OutboundFrame> SMALL_POOL = new ArrayBlockingQueue<OutboundFrame>(
+			4096);
+	private static final ArrayBlockingQueue<OutboundFrame> MEDIUM_POOL = new ArrayBlockingQueue<OutboundFrame>(
+			512);
+	private static final ArrayBlockingQueue<OutboundFrame> LARGE_POOL = new ArrayBlockingQueue<OutboundFrame>(
+			32);
+
+	final byte[] data;
+	int length;
+	private final ArrayBlockingQueue<OutboundFrame> pool;
+	private final AtomicInteger references = new AtomicInteger();
+
+	private OutboundFrame(final int capacity,
+			final ArrayBlockingQueue<OutboundFrame> pool) {
+		data = new byte[capacity];
+		this.pool = pool;
+	}
+
+	/**
+	 * @return A frame holding a copy of the buffers contents, with one
+	 *         reference owned by the caller.
+	 */
+	static OutboundFrame copyOf(final PacketBuffer buffer) {
+		final int length = buffer.size();
+		final OutboundFrame frame = acquire(length);
+		System.arraycopy(buffer.array(), 0, frame.data, 0, length);
+		frame.length = length;
+		frame.references.set(1);
+		return frame;
+	}
+
+	private static OutboundFrame acquire(final int length) {
+		if (length <= SMALL) {
+			return acquire(SMALL_POOL, SMALL);
+		}
+		if (length <= MEDIUM) {
+			return acquire(MEDIUM_POOL, MEDIUM);
+		}
+		if (length <= LARGE) {
+			return acquire(LARGE_POOL, LARGE);
+		}
+		// Frames too large for any pool are used once.
+		return new OutboundFrame(length, null);
+	}
+
+	private static OutboundFrame acquire(
+			final ArrayBlockingQueue<OutboundFrame> pool, final int capacity) {
+		final OutboundFrame frame = pool.poll();
+		return frame != null ? frame : new OutboundFrame(capacity, pool);
+	}
+
+	void retain() {
+		references.incrementAndGet();
+	}
+
+	void release() {
+		if (references.decrementAndGet() == 0 && pool != null) {
+			pool.offer(this);
+		}
+	}
+
+}
@@ -0,0 +1,349 @@
+package org.gnet.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.gnet.packet.PacketRegistry;
+
+/**
+ * Encoded frames waiting to be written to one client. Any thread may add,
+ * only the clients writer removes. Backed by a growable ring so queueing
+ * doesn't allocate. The queue owns one reference to every frame in it.
+ *
+ * The {@link BackpressurePolicy} bounds the queue. Frames are only ever
+ * dropped before any of their bytes were handed to the writer.
+ */
+final class OutboundQueue {
+
+	// Scratch arrays the blocking writers coalesce frames into.
+	private static final int SCRATCH_SIZE = 64 * 1024;
+	private static final ArrayBlockingQueue<byte[]> SCRATCH = new ArrayBlockingQueue<byte[]>(
+			64);
+
+	private final BackpressurePolicy policy;
+	// Object streams break if a frame goes missing, they never drop.
+	private final boolean droppable;
+	private final LongAdder dropped;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private OutboundFrame[] frames = new OutboundFrame[8];
+	// Bytes of each frame that have been written already.
+	private int[] written = new int[8];
+	private int[] opcodes = new int[8];
+	private long[] queuedAt = new long[8];
+	private int head;
+	private int size;
+	// Frames at the head fill() copied out that consume() didn't see yet.
+	private int pinned;
+	private volatile long bytes;
+	private volatile boolean writable = true;
+
+	/**
+	 * @param dropped
+	 *            Counts the frames the policy dropped.
+	 */
+	OutboundQueue(final BackpressurePolicy policy, final boolean droppable,
+			final LongAdder dropped) {
+		this.policy = policy;
+		this.droppable = droppable;
+		this.dropped = dropped;
+	}
+
+	/**
+	 * Queue a frame, handing the callers reference to the queue. If the queue
+	 * is full the policies overflow action applies.
+	 *
+	 * @return Bytes queued after adding the frame, -1 if the client has to be
+	 *         disconnected, the frame was released then.
+	 */
+	long add(final OutboundFrame frame, final int opcode) {
+		lock.lock();
+		try {
+			// An empty queue takes any frame, however large.
+			final long limit = policy.getMaxBytes() - frame.length;
+			if (bytes > 0 && bytes > limit && isDroppable(opcode)) {
+				if (!droppable
+						|| policy.getAction() == OverflowAction.DISCONNECT) {
+					frame.release();
+					return -1;
+				}
+				if (policy.getAction() == OverflowAction.CONFLATE
+						&& conflate(frame, opcode)) {
+					return bytes;
+				}
+				// Expiring only drops what timed out.
+				final boolean expire = policy.getAction() == OverflowAction.EXPIRE;
+				dropFront(expire ? Long.MAX_VALUE : limit);
+				if (bytes > 0 && bytes > limit) {
+					// Nothing left to drop, this one goes.
+					frame.release();
+					dropped.increment();
+					return bytes;
+				}
+			}
+			if (size == frames.length) {
+				grow();
+			}
+			final int tail = (head + size) & (frames.length - 1);
+			frames[tail] = frame;
+			written[tail] = 0;
+			opcodes[tail] = opcode;
+			queuedAt[tail] = policy.getTtlNanos() > 0 ? System.nanoTime() : 0;
+			size++;
+			bytes += frame.length;
+			if (writable && bytes > policy.getHighWatermark()) {
+				writable = false;
+			}
+			return bytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Remove the oldest frame, the caller has to release it once written.
+	 */
+	OutboundFrame poll() {
+		lock.lock();
+		try {
+			if (policy.getTtlNanos() > 0) {
+				dropFront(Long.MAX_VALUE);
+			}
+			if (size == 0) {
+				return null;
+			}
+			final OutboundFrame frame = frames[head];
+			bytes -= frame.length - written[head];
+			removeHead();
+			updateWritable();
+			return frame;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Copy as many unwritten bytes as fit into the buffer, without removing
+	 * anything. Follow with {@link #consume(int)} once it's known how much was
+	 * actually written.
+	 */
+	void fill(final ByteBuffer into) {
+		lock.lock();
+		try {
+			pinned = 0;
+			if (policy.getTtlNanos() > 0) {
+				dropFront(Long.MAX_VALUE);
+			}
+			for (int i = 0; i < size && into.hasRemaining(); i++) {
+				final int index = (head + i) & (frames.length - 1);
+				final OutboundFrame frame = frames[index];
+				final int length = Math.min(frame.length - written[index],
+						into.remaining());
+				into.put(frame.data, written[index], length);
+				pinned++;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Mark count bytes from the head as written, releasing frames that have
+	 * been written completely.
+	 */
+	void consume(int count) {
+		lock.lock();
+		try {
+			pinned = 0;
+			while (count > 0 && size > 0) {
+				final int left = frames[head].length - written[head];
+				if (count < left) {
+					written[head] += count;
+					bytes -= count;
+					break;
+				}
+				count -= left;
+				bytes -= left;
+				frames[head].release();
+				removeHead();
+			}
+			updateWritable();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	void clear() {
+		lock.lock();
+		try {
+			while (size > 0) {
+				frames[head].release();
+				removeHead();
+			}
+			bytes = 0;
+			pinned = 0;
+			writable = true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isEmpty() {
+		// Frames are never empty, so no bytes means no frames.
+		return bytes == 0;
+	}
+
+	int size() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return False from crossing the high watermark until drained below the
+	 *         low one.
+	 */
+	boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * Drop frames from the front that are over the limit or expired, skipping
+	 * those that must stay. Frames are in queueing order, so the first one
+	 * that is neither ends it.
+	 */
+	private void dropFront(final long limit) {
+		final long ttl = policy.getTtlNanos();
+		final long expired = ttl > 0 ? System.nanoTime() - ttl : 0;
+		final int mask = frames.length - 1;
+		int scanned = 0;
+		int removed = 0;
+		for (; scanned < size; scanned++) {
+			final int index = (head + scanned) & mask;
+			if (bytes <= limit && (ttl == 0 || queuedAt[index] - expired >= 0)) {
+				break;
+			}
+			if (scanned < pinned || written[index] > 0
+					|| !isDroppable(opcodes[index])) {
+				continue;
+			}
+			bytes -= frames[index].length;
+			frames[index].release();
+			frames[index] = null;
+			removed++;
+		}
+		if (removed == 0) {
+			return;
+		}
+		dropped.add(removed);
+		// Move the frames that stayed up against the rest, the gap becomes
+		// the new head.
+		int to = scanned - 1;
+		for (int from = scanned - 1; from >= 0; from--) {
+			final int index = (head + from) & mask;
+			if (frames[index] != null) {
+				final int target = (head + to) & mask;
+				frames[target] = frames[index];
+				written[target] = written[index];
+				opcodes[target] = opcodes[index];
+				queuedAt[target] = queuedAt[index];
+				to--;
+			}
+		}
+		for (int i = 0; i < removed; i++) {
+			frames[(head + i) & mask] = null;
+		}
+		head = (head + removed) & mask;
+		size -= removed;
+		updateWritable();
+	}
+
+	/**
+	 * Put the frame in place of the newest droppable frame with the same
+	 * opcode.
+	 *
+	 * @return False if there is none.
+	 */
+	private boolean conflate(final OutboundFrame frame, final int opcode) {
+		if (opcode == PacketRegistry.UNREGISTERED) {
+			// Could be any packet.
+			return false;
+		}
+		final int mask = frames.length - 1;
+		for (int i = size - 1; i >= pinned; i--) {
+			final int index = (head + i) & mask;
+			if (opcodes[index] == opcode && written[index] == 0) {
+				bytes += frame.length - frames[index].length;
+				frames[index].release();
+				frames[index] = frame;
+				// Later frames may be older now, they expire a bit late.
+				queuedAt[index] = policy.getTtlNanos() > 0 ? System.nanoTime()
+						: 0;
+				dropped.increment();
+				updateWritable();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void updateWritable() {
+		if (!writable && bytes <= policy.getLowWatermark()) {
+			writable = true;
+		} else if (writable && bytes > policy.getHighWatermark()) {
+			writable = false;
+		}
+	}
+
+	/**
+	 * @return False for connection control, which always goes out.
+	 */
+	private static boolean isDroppable(final int opcode) {
+		return opcode == PacketRegistry.UNREGISTERED
+				|| opcode >= PacketRegistry.FIRST_USER_OPCODE;
+	}
+
+	private void removeHead() {
+		frames[head] = null;
+		head = (head + 1) & (frames.length - 1);
+		size--;
+	}
+
+	private void grow() {
+		final OutboundFrame[] grownFrames = new OutboundFrame[frames.length * 2];
+		final int[] grownWritten = new int[frames.length * 2];
+		final int[] grownOpcodes = new int[frames.length * 2];
+		final long[] grownQueuedAt = new long[frames.length * 2];
+		for (int i = 0; i < size; i++) {
+			final int index = (head + i) & (frames.length - 1);
+			grownFrames[i] = frames[index];
+			grownWritten[i] = written[index];
+			grownOpcodes[i] = opcodes[index];
+			grownQueuedAt[i] = queuedAt[index];
+		}
+		frames = grownFrames;
+		written = grownWritten;
+		opcodes = grownOpcodes;
+		queuedAt = grownQueuedAt;
+		head = 0;
+	}
+
+	static byte[] acquireScratch() {
+		final byte[] scratch = SCRATCH.poll();
+		return scratch != null ? scratch : new byte[SCRATCH_SIZE];
+	}
+
+	static void releaseScratch(final byte[] scratch) {
+		SCRATCH.offer(scratch);
+	}
+
+}
@@ -0,0 +1,31 @@
+package org.gnet.server;
+
+/**
+ * What a clients full outbound queue does with one more packet, see
+ * {@link BackpressurePolicy}.
+ */
+public enum OverflowAction {
+
+	/**
+	 * Drop the oldest packets not yet being written to make room.
+	 */
+	DROP_OLDEST,
+
+	/**
+	 * Drop packets that waited longer than the policies TTL, the new packet
+	 * if that didn't make room.
+	 */
+	EXPIRE,
+
+	/**
+	 * Replace the newest queued packet with the same opcode, the latest state
+	 * wins. Drops the oldest if there is none.
+	 */
+	CONFLATE,
+
+	/**
+	 * Disconnect the client.
+	 */
+	DISCONNECT
+
+}
@@ -0,0 +1,102 @@
+package org.gnet.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.gnet.packet.Packet;
+
+/**
+ * Packets handed to a {@link PacketBatchListener} in one call, each with the
+ * client that sent it. A clients packets are in the order they arrived.
+ *
+ * Batches are reused, so don't hold on to one after packetsReceived()
+ * returns. The packets themselves can be kept, views are copied before they
+ * are batched.
+ */
+public final class PacketBatch {
+
+	// Batches handed to workers come from here and go back once delivered.
+	private static final ArrayBlockingQueue<PacketBatch> POOL = new ArrayBlockingQueue<PacketBatch>(
+			256);
+
+	private ClientModel[] clients;
+	private Packet[] packets;
+	private int size;
+
+	PacketBatch(final int capacity) {
+		clients = new ClientModel[capacity];
+		packets = new Packet[capacity];
+	}
+
+	static PacketBatch acquire() {
+		final PacketBatch batch = POOL.poll();
+		return batch != null ? batch : new PacketBatch(16);
+	}
+
+	static void release(final PacketBatch batch) {
+		batch.clear();
+		POOL.offer(batch);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * @return The client that sent the packet at index.
+	 */
+	public ClientModel getClient(final int index) {
+		checkIndex(index);
+		return clients[index];
+	}
+
+	public Packet getPacket(final int index) {
+		checkIndex(index);
+		return packets[index];
+	}
+
+	void add(final ClientModel client, final Packet packet) {
+		if (size == packets.length) {
+			grow(size + 1);
+		}
+		clients[size] = client;
+		packets[size++] = packet;
+	}
+
+	/**
+	 * Append another batches packets, leaving it as it is.
+	 */
+	void addAll(final PacketBatch other) {
+		if (size + other.size > packets.length) {
+			grow(size + other.size);
+		}
+		System.arraycopy(other.clients, 0, clients, size, other.size);
+		System.arraycopy(other.packets, 0, packets, size, other.size);
+		size += other.size;
+	}
+
+	void clear() {
+		// Let go of the packets, the arrays are kept.
+		Arrays.fill(clients, 0, size, null);
+		Arrays.fill(packets, 0, size, null);
+		size = 0;
+	}
+
+	private void grow(final int needed) {
+		final int capacity = Math.max(needed, packets.length * 2);
+		clients = Arrays.copyOf(clients, capacity);
+		packets = Arrays.copyOf(packets, capacity);
+	}
+
+	private void checkIndex(final int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index: " + index + ", size: "
+					+ size);
+		}
+	}
+
+}
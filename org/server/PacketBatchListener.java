@@ -0,0 +1,10 @@
+package org.gnet.server;
+
+/**
+ * Receives packets in batches instead of one
+ * {@link ServerEventListener#packetReceived} call each, see
+ * {@link GNetServer#setBatchListener(PacketBatchListener, BatchMode)}.
+ */
+public abstract class PacketBatchListener {
+	protected abstract void packetsReceived(PacketBatch batch);
+}
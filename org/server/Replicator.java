@@ -0,0 +1,432 @@
+package org.gnet.server;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.gnet.packet.DeltaEncoder;
+import org.gnet.packet.Delivery;
+import org.gnet.packet.Packet;
+import org.gnet.packet.PacketRegistry;
+
+/**
+ * Replicates entity state to every client, sending each one only what
+ * changed since the last update it acknowledged. Entities are ids with named
+ * fields, the game sets fields as they change and calls {@link #tick()} once
+ * per game tick to send the updates.
+ *
+ * A client that just joined, or whose last acknowledgement is more than
+ * {@link #getMaxDeltaTicks()} ticks old, gets a full snapshot instead. A
+ * snapshot still unacknowledged after {@link #getSnapshotResendTicks()}
+ * ticks is taken as lost and sent again. Deltas
+ * are built from a log of what changed in each tick, so their cost follows
+ * the change rate rather than the size of the world, and clients at the same
+ * acknowledged tick share one encoded delta.
+ *
+ * Updates go out {@link Delivery#UNRELIABLE_SEQUENCED}, a lost one is
+ * covered by the next since deltas are relative to what was acknowledged.
+ * Only clients that enabled replication get them, and a client nothing
+ * changed for gets an empty delta only now and then, so its base doesn't
+ * age out of the log.
+ */
+public final class Replicator {
+
+	private final GNetServer server;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final HashMap<Integer, Entity> entities = new HashMap<Integer, Entity>();
+	// Removed entity ids by the tick they were removed in.
+	private final HashMap<Integer, Long> removed = new HashMap<Integer, Long>();
+	private final ConcurrentHashMap<ClientModel, Viewer> viewers = new ConcurrentHashMap<ClientModel, Viewer>();
+
+	// The tick being built, changes are stamped with it.
+	private long tick = 1;
+	// Entity ids changed per tick, indexed by tick modulo its length.
+	private ChangeList[] log;
+	// Deltas can't start before this tick, the log starts here.
+	private long logStart = 1;
+	private volatile int snapshotResendTicks = 8;
+
+	// Reused while building updates.
+	private final DeltaEncoder encoder = new DeltaEncoder();
+	private final HashSet<Integer> seen = new HashSet<Integer>();
+	private final HashMap<Long, Packet> updates = new HashMap<Long, Packet>();
+	private final HashSet<Long> emptyUpdates = new HashSet<Long>();
+
+	private final AtomicLong snapshotsSent = new AtomicLong();
+	private final AtomicLong deltasSent = new AtomicLong();
+	private final AtomicLong bytesBuilt = new AtomicLong();
+
+	Replicator(final GNetServer server) {
+		this.server = server;
+		setMaxDeltaTicks(32);
+	}
+
+	/**
+	 * Clients whose acknowledgement is older than this many ticks get a full
+	 * snapshot. The change log keeps this many ticks.
+	 */
+	public void setMaxDeltaTicks(final int maxDeltaTicks) {
+		if (maxDeltaTicks < 1) {
+			throw new IllegalArgumentException("Invalid max delta ticks: "
+					+ maxDeltaTicks);
+		}
+		lock.lock();
+		try {
+			final ChangeList[] old = log;
+			log = new ChangeList[maxDeltaTicks + 1];
+			for (int i = 0; i < log.length; i++) {
+				log[i] = new ChangeList();
+			}
+			if (old != null) {
+				// Changes of the tick being built aren't logged again, keep
+				// them. Older ticks are gone, start over from here.
+				log[(int) (tick % log.length)] = old[(int) (tick % old.length)];
+			}
+			logStart = tick;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getMaxDeltaTicks() {
+		return log.length - 1;
+	}
+
+	/**
+	 * Ticks to wait for a snapshot to be acknowledged before sending another,
+	 * should cover a round trip.
+	 */
+	public void setSnapshotResendTicks(final int snapshotResendTicks) {
+		if (snapshotResendTicks < 1) {
+			throw new IllegalArgumentException("Invalid snapshot resend ticks: "
+					+ snapshotResendTicks);
+		}
+		this.snapshotResendTicks = snapshotResendTicks;
+	}
+
+	public int getSnapshotResendTicks() {
+		return snapshotResendTicks;
+	}
+
+	/**
+	 * Set a field, creating the entity if needed. Setting a field to a value
+	 * equal to the current one is not a change.
+	 *
+	 * @throws IllegalArgumentException
+	 *             If the value can't be encoded.
+	 */
+	public void set(final int entity, final String field, final Object value) {
+		DeltaEncoder.checkValue(value);
+		lock.lock();
+		try {
+			Entity e = entities.get(entity);
+			if (e == null) {
+				// Recreated ids are removed on the client first.
+				e = new Entity(tick, removed.remove(entity) != null);
+				entities.put(entity, e);
+			}
+			Field f = e.fields.get(field);
+			if (f == null) {
+				f = new Field();
+				e.fields.put(field, f);
+			} else if (f.value == null ? value == null : f.value.equals(value)) {
+				return;
+			}
+			f.value = value;
+			f.changedTick = tick;
+			changed(entity, e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void remove(final int entity) {
+		lock.lock();
+		try {
+			if (entities.remove(entity) != null) {
+				removed.put(entity, tick);
+				log[(int) (tick % log.length)].add(entity);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The fields current value, or null.
+	 */
+	public Object get(final int entity, final String field) {
+		lock.lock();
+		try {
+			final Entity e = entities.get(entity);
+			final Field f = e != null ? e.fields.get(field) : null;
+			return f != null ? f.value : null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getEntityCount() {
+		lock.lock();
+		try {
+			return entities.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The tick changes are currently stamped with.
+	 */
+	public long getTick() {
+		lock.lock();
+		try {
+			return tick;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Send every client what changed since its acknowledged tick and start
+	 * the next tick.
+	 */
+	public void tick() {
+		lock.lock();
+		try {
+			for (final ClientModel client : server.clients.values()) {
+				if (!client.replicating) {
+					continue;
+				}
+				Viewer viewer = viewers.get(client);
+				if (viewer == null) {
+					viewer = new Viewer();
+					viewers.put(client, viewer);
+				}
+				final long base = baseOf(viewer);
+				Packet update = updates.get(base);
+				if (update == null) {
+					update = build(base);
+					updates.put(base, update);
+				}
+				if (emptyUpdates.contains(base)
+						&& base > tick - getMaxDeltaTicks() / 2) {
+					// Nothing new, and the base isn't about to age out.
+					continue;
+				}
+				if (base < 0) {
+					viewer.snapshotTick = tick;
+					snapshotsSent.incrementAndGet();
+				} else {
+					deltasSent.incrementAndGet();
+				}
+				client.sendPacket(update, Delivery.UNRELIABLE_SEQUENCED);
+			}
+			updates.clear();
+			emptyUpdates.clear();
+
+			// Forget clients that left.
+			for (final Iterator<ClientModel> it = viewers.keySet().iterator(); it
+					.hasNext();) {
+				if (!it.next().isConnected()) {
+					it.remove();
+				}
+			}
+
+			// Removals older than the log are covered by snapshots.
+			final long oldest = tick - getMaxDeltaTicks();
+			for (final Iterator<Long> it = removed.values().iterator(); it
+					.hasNext();) {
+				if (it.next().longValue() < oldest) {
+					it.remove();
+				}
+			}
+
+			tick++;
+			log[(int) (tick % log.length)].clear();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called when a client acknowledged an update.
+	 */
+	void acknowledged(final ClientModel client, final long acked) {
+		final Viewer viewer = viewers.get(client);
+		if (viewer != null && acked > viewer.acked) {
+			// Acks may be late or reordered, never go back.
+			viewer.acked = acked;
+		}
+	}
+
+	/**
+	 * @return The tick to build the clients delta from, or -1 for a full
+	 *         snapshot.
+	 */
+	private long baseOf(final Viewer viewer) {
+		// A snapshot that wasn't acknowledged yet is most likely on its way,
+		// the client drops deltas it can't apply until it arrives. Once it
+		// is overdue it was lost, fall back to what was acknowledged.
+		final long acked = viewer.acked;
+		final long base = viewer.snapshotTick > acked
+				&& tick - viewer.snapshotTick <= snapshotResendTicks ? viewer.snapshotTick
+				: acked;
+		if (base < 0 || base < tick - getMaxDeltaTicks() || base < logStart - 1) {
+			return -1;
+		}
+		return base;
+	}
+
+	private Packet build(final long base) {
+		encoder.clear();
+		if (base < 0) {
+			for (final Map.Entry<Integer, Entity> entry : entities.entrySet()) {
+				writeEntity(entry.getKey().intValue(), entry.getValue(), -1);
+			}
+		} else {
+			seen.clear();
+			for (long t = base + 1; t <= tick; t++) {
+				final ChangeList changes = log[(int) (t % log.length)];
+				for (int i = 0; i < changes.size; i++) {
+					final int id = changes.ids[i];
+					if (seen.add(id)) {
+						writeChanges(id, base);
+					}
+				}
+			}
+		}
+		if (base >= 0 && encoder.getRecords() == 0) {
+			emptyUpdates.add(base);
+		}
+		final byte[] state = encoder.toByteArray();
+		bytesBuilt.addAndGet(state.length);
+		final Packet update = new Packet(PacketRegistry.REPLICATION_UPDATE, 3);
+		update.addEntry("tick", Long.valueOf(tick));
+		update.addEntry("base", Long.valueOf(base));
+		update.addEntry("state", state);
+		return update;
+	}
+
+	private void writeChanges(final int id, final long base) {
+		final Entity e = entities.get(id);
+		if (e == null) {
+			final Long gone = removed.get(id);
+			if (gone != null && gone.longValue() > base) {
+				encoder.removed(id);
+			}
+			return;
+		}
+		if (e.createdTick > base) {
+			if (e.recreated) {
+				// The client may still have the old one.
+				encoder.removed(id);
+			}
+			writeEntity(id, e, -1);
+		} else {
+			writeEntity(id, e, base);
+		}
+	}
+
+	/**
+	 * Write the fields changed after base, all of them for -1. An entity
+	 * with a field that can't be encoded is left out of the update.
+	 */
+	private void writeEntity(final int id, final Entity e, final long base) {
+		int count = 0;
+		for (final Field f : e.fields.values()) {
+			if (f.changedTick > base) {
+				count++;
+			}
+		}
+		if (count == 0 && base >= 0) {
+			return;
+		}
+		encoder.entity(id, count);
+		try {
+			for (final Map.Entry<String, Field> entry : e.fields.entrySet()) {
+				if (entry.getValue().changedTick > base) {
+					encoder.field(entry.getKey(), entry.getValue().value);
+				}
+			}
+		} catch (final IOException ex) {
+			// A value that changed after set() checked it.
+			encoder.dropEntity();
+			server.log.error("Failed to encode entity {}: {}", id,
+					ex.getMessage());
+		}
+	}
+
+	private void changed(final int id, final Entity e) {
+		if (e.changedTick != tick) {
+			e.changedTick = tick;
+			log[(int) (tick % log.length)].add(id);
+		}
+	}
+
+	public long getSnapshotsSent() {
+		return snapshotsSent.get();
+	}
+
+	public long getDeltasSent() {
+		return deltasSent.get();
+	}
+
+	/**
+	 * @return Bytes of state encoded so far, shared updates count once.
+	 */
+	public long getBytesBuilt() {
+		return bytesBuilt.get();
+	}
+
+	private static final class Entity {
+
+		final long createdTick;
+		final boolean recreated;
+		long changedTick;
+		final LinkedHashMap<String, Field> fields = new LinkedHashMap<String, Field>();
+
+		Entity(final long createdTick, final boolean recreated) {
+			this.createdTick = createdTick;
+			this.recreated = recreated;
+		}
+
+	}
+
+	private static final class Field {
+		Object value;
+		long changedTick;
+	}
+
+	private static final class Viewer {
+		volatile long acked = -1;
+		long snapshotTick = -1;
+	}
+
+	private static final class ChangeList {
+
+		int[] ids = new int[16];
+		int size;
+
+		void add(final int id) {
+			if (size == ids.length) {
+				final int[] grown = new int[size * 2];
+				System.arraycopy(ids, 0, grown, 0, size);
+				ids = grown;
+			}
+			ids[size++] = id;
+		}
+
+		void clear() {
+			size = 0;
+		}
+
+	}
+
+}
@@ -0,0 +1,17 @@
+package org.gnet.server;
+
+public enum ServerEngine {
+
+	/**
+	 * One blocking reader thread per connected client.
+	 */
+	BLOCKING,
+
+	/**
+	 * Non-blocking channels multiplexed on a pool of selector threads, with
+	 * accepting kept on its own thread. Requires a framed
+	 * {@link org.gnet.packet.PacketCodec}, clients must use the same codec.
+	 */
+	NIO
+
+}
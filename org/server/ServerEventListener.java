@@ -6,4 +6,14 @@ public abstract class ServerEventListener {
 	protected abstract void packetReceived(ClientModel client, org.gnet.packet.Packet packet);
 	protected abstract void debugMessage(String msg);
 	protected abstract void errorMessage(String msg);
+
+	/**
+	 * A clients outbound queue crossed a watermark of the servers
+	 * {@link BackpressurePolicy}: false once it is backed up, true once it
+	 * drained. Runs on whichever thread crossed it, tick mode included, so
+	 * just note it and send less to the client meanwhile.
+	 */
+	protected void writabilityChanged(final ClientModel client,
+			final boolean writable) {
+	}
 }
\ No newline at end of file
@@ -0,0 +1,289 @@
+package org.gnet.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.gnet.packet.PacketRegistry;
+import org.gnet.util.Histogram;
+import org.gnet.util.WorkerPool;
+
+/**
+ * Traffic, timing and connection statistics of a {@link GNetServer}. Counters
+ * are striped ({@link LongAdder}) and histograms lock free, so the I/O threads
+ * recording them never wait on each other or on whoever reads them. Take a
+ * {@link #snapshot()} to look at everything at once, or register the
+ * {@link ServerMetricsMXBean} to watch the server over JMX.
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+	private final GNetServer server;
+
+	// Per opcode, unregistered packets count as opcode 0.
+	final OpcodeCounters packetsIn = new OpcodeCounters();
+	final OpcodeCounters bytesIn = new OpcodeCounters();
+	final OpcodeCounters packetsOut = new OpcodeCounters();
+	final OpcodeCounters bytesOut = new OpcodeCounters();
+
+	final Histogram encodeNanos = new Histogram();
+	final Histogram decodeNanos = new Histogram();
+	// Bytes waiting for a client right after queueing a packet.
+	final Histogram queueDepth = new Histogram();
+
+	final LongAdder accepted = new LongAdder();
+	final LongAdder refused = new LongAdder();
+	final LongAdder connects = new LongAdder();
+	final LongAdder disconnects = new LongAdder();
+	// Packets over a clients per tick limit.
+	final LongAdder inboundDropped = new LongAdder();
+	// Packets a clients backpressure policy dropped or conflated, and
+	// clients it disconnected.
+	final LongAdder outboundDropped = new LongAdder();
+	final LongAdder slowConsumers = new LongAdder();
+
+	private ObjectName objectName;
+
+	ServerMetrics(final GNetServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * @param bytes
+	 *            Frame size, 0 if unknown.
+	 * @param decodeNanos
+	 *            Time spent decoding, negative if unknown.
+	 */
+	void packetReceived(final int opcode, final int bytes,
+			final long decodeNanos) {
+		packetsIn.add(opcode, 1);
+		if (bytes > 0) {
+			bytesIn.add(opcode, bytes);
+		}
+		if (decodeNanos >= 0) {
+			this.decodeNanos.record(decodeNanos);
+		}
+	}
+
+	/**
+	 * A packet encoded once and queued for count clients.
+	 *
+	 * @param encodeNanos
+	 *            Time spent encoding, negative if unknown.
+	 */
+	void packetsSent(final int opcode, final int bytes, final long count,
+			final long encodeNanos) {
+		if (count > 0) {
+			packetsOut.add(opcode, count);
+			bytesOut.add(opcode, bytes * count);
+		}
+		if (encodeNanos >= 0) {
+			this.encodeNanos.record(encodeNanos);
+		}
+	}
+
+	void packetQueued(final long queuedBytes) {
+		queueDepth.record(queuedBytes);
+	}
+
+	/**
+	 * @return Everything at once, rates are 0. Pass it to
+	 *         {@link #snapshot(MetricsSnapshot)} next time to get rates.
+	 */
+	public MetricsSnapshot snapshot() {
+		return new MetricsSnapshot(this, null);
+	}
+
+	/**
+	 * Each poller keeps its own previous snapshot, so several of them don't
+	 * skew each others rates.
+	 *
+	 * @param previous
+	 *            This callers previous snapshot, or null.
+	 * @return Everything at once. Rates are per second since previous, so
+	 *         polling on a fixed interval gives steady numbers.
+	 */
+	public MetricsSnapshot snapshot(final MetricsSnapshot previous) {
+		return new MetricsSnapshot(this, previous);
+	}
+
+	/**
+	 * Make the metrics available over JMX as
+	 * org.gnet:type=ServerMetrics,port=(port). Unregistered again when the
+	 * server shuts down.
+	 */
+	public synchronized void registerMBean() {
+		if (objectName != null) {
+			return;
+		}
+		try {
+			final ObjectName name = new ObjectName(
+					"org.gnet:type=ServerMetrics,port=" + server.getPort());
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					name);
+			objectName = name;
+		} catch (final JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public synchronized void unregisterMBean() {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+					objectName);
+		} catch (final JMException e) {
+			e.printStackTrace();
+		}
+		objectName = null;
+	}
+
+	GNetServer getServer() {
+		return server;
+	}
+
+	public int getOnlineClients() {
+		return server.getOnlineClients();
+	}
+
+	public long getPacketsIn() {
+		return packetsIn.total();
+	}
+
+	public long getPacketsOut() {
+		return packetsOut.total();
+	}
+
+	public long getBytesIn() {
+		return bytesIn.total();
+	}
+
+	public long getBytesOut() {
+		return bytesOut.total();
+	}
+
+	public long getAccepted() {
+		return accepted.sum();
+	}
+
+	public long getRefused() {
+		return refused.sum();
+	}
+
+	public long getConnects() {
+		return connects.sum();
+	}
+
+	public long getDisconnects() {
+		return disconnects.sum();
+	}
+
+	public long getQueuedBytes() {
+		long queued = 0;
+		for (final ClientModel client : server.clients.values()) {
+			queued += client.outbound.getBytes();
+		}
+		return queued;
+	}
+
+	public long getEncodeNanosP99() {
+		return encodeNanos.snapshot().getP99();
+	}
+
+	public long getDecodeNanosP99() {
+		return decodeNanos.snapshot().getP99();
+	}
+
+	public long getQueueDepthP99() {
+		return queueDepth.snapshot().getP99();
+	}
+
+	public int getWorkerQueued() {
+		final WorkerPool<ClientModel> workers = server.workers;
+		return workers != null ? workers.getQueued() : 0;
+	}
+
+	public long getWorkerSaturated() {
+		final WorkerPool<ClientModel> workers = server.workers;
+		return workers != null ? workers.getSaturated() : 0;
+	}
+
+	public long getWorkerQueueNanosP99() {
+		final WorkerPool<ClientModel> workers = server.workers;
+		return workers != null ? workers.getQueueNanos().getP99() : 0;
+	}
+
+	public Map<String, Long> getPacketsInByName() {
+		return packetsIn.byName();
+	}
+
+	public Map<String, Long> getPacketsOutByName() {
+		return packetsOut.byName();
+	}
+
+	/**
+	 * One striped counter per opcode, created on first use.
+	 */
+	static final class OpcodeCounters {
+
+		private final AtomicReferenceArray<LongAdder> counters = new AtomicReferenceArray<LongAdder>(
+				PacketRegistry.MAX_OPCODES);
+
+		void add(final int opcode, final long value) {
+			final int index = opcode > 0 && opcode < counters.length() ? opcode
+					: 0;
+			LongAdder counter = counters.get(index);
+			if (counter == null) {
+				counters.compareAndSet(index, null, new LongAdder());
+				counter = counters.get(index);
+			}
+			counter.add(value);
+		}
+
+		long get(final int opcode) {
+			final LongAdder counter = counters.get(opcode);
+			return counter != null ? counter.sum() : 0;
+		}
+
+		int length() {
+			return counters.length();
+		}
+
+		long total() {
+			long total = 0;
+			for (int i = 0; i < counters.length(); i++) {
+				total += get(i);
+			}
+			return total;
+		}
+
+		Map<String, Long> byName() {
+			final Map<String, Long> byName = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < counters.length(); i++) {
+				final long value = get(i);
+				if (value > 0) {
+					byName.put(nameOf(i), value);
+				}
+			}
+			return byName;
+		}
+	}
+
+	/**
+	 * @return The opcodes packet name, "unregistered" for opcode 0.
+	 */
+	static String nameOf(final int opcode) {
+		if (opcode == PacketRegistry.UNREGISTERED) {
+			return "unregistered";
+		}
+		final String name = PacketRegistry.nameOf(opcode);
+		return name != null ? name : "#" + opcode;
+	}
+
+}
@@ -0,0 +1,60 @@
+package org.gnet.server;
+
+import java.util.Map;
+
+/**
+ * The JMX face of {@link ServerMetrics}, see
+ * {@link ServerMetrics#registerMBean()}. Counters are totals since the server
+ * was created, timings are in nanoseconds.
+ */
+public interface ServerMetricsMXBean {
+
+	int getOnlineClients();
+
+	long getPacketsIn();
+
+	long getPacketsOut();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getAccepted();
+
+	long getRefused();
+
+	long getConnects();
+
+	long getDisconnects();
+
+	long getQueuedBytes();
+
+	long getEncodeNanosP99();
+
+	long getDecodeNanosP99();
+
+	long getQueueDepthP99();
+
+	/**
+	 * @return Packets and events waiting for the worker stage.
+	 */
+	int getWorkerQueued();
+
+	/**
+	 * @return How often a reader had to wait for a full worker.
+	 */
+	long getWorkerSaturated();
+
+	long getWorkerQueueNanosP99();
+
+	/**
+	 * @return Packets received by packet name.
+	 */
+	Map<String, Long> getPacketsInByName();
+
+	/**
+	 * @return Packets sent by packet name.
+	 */
+	Map<String, Long> getPacketsOutByName();
+
+}
@@ -0,0 +1,11 @@
+package org.gnet.server;
+
+import org.gnet.packet.Packet;
+
+/**
+ * Handles one kind of packet, see
+ * {@link GNetServer#addPacketHandler(int, ServerPacketHandler)}.
+ */
+public abstract class ServerPacketHandler {
+	protected abstract void handle(ClientModel client, Packet packet);
+}
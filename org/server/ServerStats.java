@@ -0,0 +1,319 @@
+package org.gnet.server;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+
+import org.gnet.util.Histogram;
+
+/**
+ * One sample taken by the {@link HeadlessMonitor}: the servers state, its
+ * {@link MetricsSnapshot} and the JVMs memory. The text and JSON forms are
+ * built once per sample, however many readers ask for them.
+ */
+public final class ServerStats {
+
+	private static final Runtime RUNTIME = Runtime.getRuntime();
+	private static final long MB = 1024 * 1024;
+
+	private final String host;
+	private final int port;
+	private final boolean bound;
+	private final boolean accepting;
+	private final MetricsSnapshot metrics;
+	private final long maxMemory;
+	private final long allocatedMemory;
+	private final long freeMemory;
+	private final long gcCount;
+	private final long gcMillis;
+
+	private final String[] serverLines;
+	private final String[] memoryLines;
+	private String text;
+	private String json;
+
+	ServerStats(final GNetServer server, final MetricsSnapshot metrics) {
+		host = server.getHost();
+		port = server.getPort();
+		bound = server.tcpBound;
+		accepting = server.connectNewClients;
+		this.metrics = metrics;
+		maxMemory = RUNTIME.maxMemory();
+		allocatedMemory = RUNTIME.totalMemory();
+		freeMemory = RUNTIME.freeMemory();
+		long count = 0;
+		long millis = 0;
+		for (final GarbageCollectorMXBean gc : ManagementFactory
+				.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		gcCount = count;
+		gcMillis = millis;
+
+		serverLines = new String[] { "SERVER STATISTICS:",
+				"Server: " + host + ":" + port,
+				"Bound: " + bound + ", accepting: " + accepting,
+				"Online clients: " + metrics.getOnlineClients(),
+				"Sent packets: " + metrics.getPacketsOut(),
+				"Received packets: " + metrics.getPacketsIn(),
+				"Packets/s in: " + Math.round(metrics.getPacketsInRate())
+						+ ", out: " + Math.round(metrics.getPacketsOutRate()),
+				"KB/s in: " + Math.round(metrics.getBytesInRate() / 1024)
+						+ ", out: "
+						+ Math.round(metrics.getBytesOutRate() / 1024),
+				"Queued KB: " + metrics.getQueuedBytes() / 1024,
+				"Worker queue: " + metrics.getWorkerQueued() + " (max "
+						+ metrics.getWorkerMaxQueued() + "/"
+						+ metrics.getWorkerCapacity() + ")",
+				"Worker wait p99: "
+						+ metrics.getWorkerQueueNanos().getP99() / 1000
+						+ "us, saturated/s: "
+						+ Math.round(metrics.getWorkerSaturatedRate()),
+				"Encode p99: " + metrics.getEncodeNanos().getP99() / 1000
+						+ "us, decode p99: "
+						+ metrics.getDecodeNanos().getP99() / 1000 + "us",
+				"Connects/s: " + Math.round(metrics.getConnectRate())
+						+ ", disconnects/s: "
+						+ Math.round(metrics.getDisconnectRate()) };
+		memoryLines = new String[] { "MEMORY STATISTICS:",
+				"Max megabytes: " + maxMemory / MB,
+				"Allocated megabytes: " + allocatedMemory / MB,
+				"Free megabytes: " + freeMemory / MB,
+				"Used megabytes: " + getUsedMemory() / MB,
+				"GC runs: " + gcCount + " (" + gcMillis + "ms)" };
+	}
+
+	public MetricsSnapshot getMetrics() {
+		return metrics;
+	}
+
+	public long getTimestamp() {
+		return metrics.getTimestamp();
+	}
+
+	public long getMaxMemory() {
+		return maxMemory;
+	}
+
+	public long getAllocatedMemory() {
+		return allocatedMemory;
+	}
+
+	public long getFreeMemory() {
+		return freeMemory;
+	}
+
+	public long getUsedMemory() {
+		return allocatedMemory - freeMemory;
+	}
+
+	/**
+	 * @return The server column of the monitor, header first.
+	 */
+	public String[] getServerLines() {
+		return serverLines.clone();
+	}
+
+	/**
+	 * @return The memory column of the monitor, header first.
+	 */
+	public String[] getMemoryLines() {
+		return memoryLines.clone();
+	}
+
+	String serverLine(final int line) {
+		return serverLines[line];
+	}
+
+	String memoryLine(final int line) {
+		return memoryLines[line];
+	}
+
+	int serverLineCount() {
+		return serverLines.length;
+	}
+
+	int memoryLineCount() {
+		return memoryLines.length;
+	}
+
+	/**
+	 * @return Both columns plus the full metrics, one fact per line.
+	 */
+	public synchronized String toText() {
+		if (text == null) {
+			final StringBuilder out = new StringBuilder(1024);
+			for (final String line : serverLines) {
+				out.append(line).append('\n');
+			}
+			for (final String line : memoryLines) {
+				out.append(line).append('\n');
+			}
+			out.append("METRICS:\n").append(metrics).append('\n');
+			text = out.toString();
+		}
+		return text;
+	}
+
+	public synchronized String toJson() {
+		if (json == null) {
+			final StringBuilder out = new StringBuilder(1024);
+			out.append('{');
+			field(out, "timestamp", metrics.getTimestamp());
+			out.append(",\"host\":");
+			string(out, host);
+			out.append(',');
+			field(out, "port", port);
+			out.append(",\"bound\":").append(bound);
+			out.append(",\"accepting\":").append(accepting);
+			out.append(",\"clients\":{");
+			field(out, "online", metrics.getOnlineClients());
+			out.append(',');
+			field(out, "accepted", metrics.getAccepted());
+			out.append(',');
+			field(out, "refused", metrics.getRefused());
+			out.append(',');
+			field(out, "connects", metrics.getConnects());
+			out.append(',');
+			field(out, "disconnects", metrics.getDisconnects());
+			out.append(',');
+			field(out, "acceptRate", metrics.getAcceptRate());
+			out.append(',');
+			field(out, "connectRate", metrics.getConnectRate());
+			out.append(',');
+			field(out, "disconnectRate", metrics.getDisconnectRate());
+			out.append("},\"traffic\":{");
+			field(out, "packetsIn", metrics.getPacketsIn());
+			out.append(',');
+			field(out, "packetsOut", metrics.getPacketsOut());
+			out.append(',');
+			field(out, "bytesIn", metrics.getBytesIn());
+			out.append(',');
+			field(out, "bytesOut", metrics.getBytesOut());
+			out.append(',');
+			field(out, "packetsInRate", metrics.getPacketsInRate());
+			out.append(',');
+			field(out, "packetsOutRate", metrics.getPacketsOutRate());
+			out.append(',');
+			field(out, "bytesInRate", metrics.getBytesInRate());
+			out.append(',');
+			field(out, "bytesOutRate", metrics.getBytesOutRate());
+			out.append(',');
+			field(out, "inboundDropped", metrics.getInboundDropped());
+			out.append(',');
+			field(out, "outboundDropped", metrics.getOutboundDropped());
+			out.append(',');
+			field(out, "slowConsumers", metrics.getSlowConsumers());
+			out.append(',');
+			field(out, "queuedBytes", metrics.getQueuedBytes());
+			out.append(',');
+			field(out, "maxQueuedBytes", metrics.getMaxQueuedBytes());
+			out.append(",\"opcodes\":[");
+			final int[] opcodes = metrics.getOpcodes();
+			for (int i = 0; i < opcodes.length; i++) {
+				out.append(i > 0 ? ",{" : "{");
+				field(out, "opcode", opcodes[i]);
+				out.append(",\"name\":");
+				string(out, ServerMetrics.nameOf(opcodes[i]));
+				out.append(',');
+				field(out, "packetsIn", metrics.getPacketsIn(opcodes[i]));
+				out.append(',');
+				field(out, "bytesIn", metrics.getBytesIn(opcodes[i]));
+				out.append(',');
+				field(out, "packetsOut", metrics.getPacketsOut(opcodes[i]));
+				out.append(',');
+				field(out, "bytesOut", metrics.getBytesOut(opcodes[i]));
+				out.append('}');
+			}
+			out.append("]},\"encodeNanos\":");
+			histogram(out, metrics.getEncodeNanos());
+			out.append(",\"decodeNanos\":");
+			histogram(out, metrics.getDecodeNanos());
+			out.append(",\"queueDepth\":");
+			histogram(out, metrics.getQueueDepth());
+			out.append(",\"workers\":{");
+			field(out, "queued", metrics.getWorkerQueued());
+			out.append(',');
+			field(out, "maxQueued", metrics.getWorkerMaxQueued());
+			out.append(',');
+			field(out, "capacity", metrics.getWorkerCapacity());
+			out.append(',');
+			field(out, "submitted", metrics.getWorkerSubmitted());
+			out.append(',');
+			field(out, "saturated", metrics.getWorkerSaturated());
+			out.append(',');
+			field(out, "saturatedRate", metrics.getWorkerSaturatedRate());
+			out.append(',');
+			field(out, "blockedNanos", metrics.getWorkerBlockedNanos());
+			out.append(",\"queueNanos\":");
+			histogram(out, metrics.getWorkerQueueNanos());
+			out.append(",\"queueDepth\":");
+			histogram(out, metrics.getWorkerQueueDepth());
+			out.append("},\"memory\":{");
+			field(out, "max", maxMemory);
+			out.append(',');
+			field(out, "allocated", allocatedMemory);
+			out.append(',');
+			field(out, "free", freeMemory);
+			out.append(',');
+			field(out, "used", getUsedMemory());
+			out.append(',');
+			field(out, "gcCount", gcCount);
+			out.append(',');
+			field(out, "gcMillis", gcMillis);
+			out.append("}}");
+			json = out.toString();
+		}
+		return json;
+	}
+
+	@Override
+	public String toString() {
+		return toText();
+	}
+
+	private static void histogram(final StringBuilder out,
+			final Histogram.Snapshot histogram) {
+		out.append('{');
+		field(out, "count", histogram.getCount());
+		out.append(',');
+		field(out, "mean", histogram.getMean());
+		out.append(',');
+		field(out, "p50", histogram.getP50());
+		out.append(',');
+		field(out, "p90", histogram.getPercentile(90));
+		out.append(',');
+		field(out, "p99", histogram.getP99());
+		out.append(',');
+		field(out, "max", histogram.getMax());
+		out.append('}');
+	}
+
+	private static void field(final StringBuilder out, final String name,
+			final long value) {
+		out.append('"').append(name).append("\":").append(value);
+	}
+
+	private static void field(final StringBuilder out, final String name,
+			final double value) {
+		// Two decimals are plenty for rates and means.
+		out.append('"').append(name).append("\":")
+				.append(Math.round(value * 100) / 100.0);
+	}
+
+	private static void string(final StringBuilder out, final String value) {
+		out.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			final char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			} else if (c < 0x20) {
+				out.append(String.format("\\u%04x", (int) c));
+			} else {
+				out.append(c);
+			}
+		}
+		out.append('"');
+	}
+
+}
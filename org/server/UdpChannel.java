@@ -0,0 +1,123 @@
+package org.gnet.server;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+
+import org.gnet.packet.Datagrams;
+import org.gnet.packet.Packet;
+import org.gnet.packet.PacketBuffer;
+import org.gnet.util.Threads;
+
+/**
+ * The servers datagram socket. One thread receives, any thread may send.
+ * Clients learn the port from their handshake and identify themselves by
+ * their session UID, datagrams that don't come from the clients TCP address
+ * are ignored.
+ */
+final class UdpChannel {
+
+	private static final int RECEIVE_BUFFER_SIZE = 1024 * 1024;
+
+	private final GNetServer server;
+	private final DatagramSocket socket;
+	private volatile boolean running;
+
+	UdpChannel(final GNetServer server, final InetAddress address,
+			final int port) throws SocketException {
+		this.server = server;
+		socket = new DatagramSocket(new InetSocketAddress(address, port));
+		// Bursts are dropped by the kernel once this fills up.
+		socket.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+	}
+
+	int getPort() {
+		return socket.getLocalPort();
+	}
+
+	void start(final boolean virtual) {
+		running = true;
+		Threads.newThread(new Runnable() {
+			public void run() {
+				receiveLoop();
+			}
+		}, "GNetServer-UDP", virtual).start();
+	}
+
+	void stop() {
+		running = false;
+		socket.close();
+	}
+
+	/**
+	 * Send a packet to the client as one datagram.
+	 *
+	 * @return False if the packet doesn't fit a datagram, nothing was sent.
+	 */
+	boolean send(final ClientModel client, final SocketAddress address,
+			final Packet packet) throws IOException {
+		final long started = System.nanoTime();
+		final PacketBuffer encoded = Datagrams.encode(client.codec,
+				client.uuid, client.nextUdpSequence(), packet);
+		if (encoded.size() > Datagrams.MAX_DATAGRAM_SIZE) {
+			return false;
+		}
+		socket.send(new DatagramPacket(encoded.array(), 0, encoded.size(),
+				address));
+		server.metrics.packetsSent(packet.getOpcode(), encoded.size(), 1,
+				System.nanoTime() - started);
+		return true;
+	}
+
+	/**
+	 * Echo a clients hello, which tells it the channel is up.
+	 */
+	void sendHello(final ClientModel client, final SocketAddress address)
+			throws IOException {
+		final PacketBuffer hello = Datagrams.encode(null, client.uuid, 0, null);
+		socket.send(new DatagramPacket(hello.array(), 0, hello.size(),
+				address));
+	}
+
+	private void receiveLoop() {
+		final byte[] data = new byte[65536];
+		final DatagramPacket datagram = new DatagramPacket(data, data.length);
+		while (running) {
+			try {
+				datagram.setLength(data.length);
+				socket.receive(datagram);
+				received(datagram);
+			} catch (final SocketException e) {
+				if (socket.isClosed()) {
+					// Stopped.
+					return;
+				}
+				e.printStackTrace();
+			} catch (final IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void received(final DatagramPacket datagram) {
+		if (datagram.getLength() < Datagrams.HEADER_SIZE) {
+			return;
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(datagram.getData(),
+				datagram.getOffset(), datagram.getLength());
+		final ClientModel client = server.clients.get(buffer.getInt());
+		if (client == null || !client.connected
+				|| !datagram.getAddress().equals(client.getInetAddress())) {
+			// Unknown session, or someone guessing UIDs.
+			return;
+		}
+		client.datagramReceived(datagram.getSocketAddress(), buffer.getInt(),
+				buffer);
+	}
+
+}
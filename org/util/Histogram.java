@@ -0,0 +1,170 @@
+package org.gnet.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of non negative values, nanoseconds or bytes for example.
+ * Recording is lock free and never allocates: values land in log-linear
+ * buckets (8 per power of two, so within 12.5% of the real value), and every
+ * thread counts into one of a few stripes so I/O threads recording at the
+ * same time don't fight over the same counters.
+ *
+ * Snapshots merge the stripes and can be taken at any time, concurrent
+ * records may or may not be included.
+ */
+public final class Histogram {
+
+	// Values below this get a bucket each.
+	private static final int LINEAR = 16;
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int BUCKETS = LINEAR + (63 - 4 + 1) * SUB_BUCKETS;
+
+	private static final int STRIPES = stripes();
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS
+			* STRIPES);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		final int stripe = (int) (Thread.currentThread().getId() * 0x9E3779B9L >>> 16)
+				& (STRIPES - 1);
+		counts.incrementAndGet(stripe * BUCKETS + bucket(value));
+		sum.add(value);
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+
+	public Snapshot snapshot() {
+		final long[] merged = new long[BUCKETS];
+		for (int stripe = 0; stripe < STRIPES; stripe++) {
+			for (int i = 0; i < BUCKETS; i++) {
+				merged[i] += counts.get(stripe * BUCKETS + i);
+			}
+		}
+		return new Snapshot(merged, sum.sum(), max.get());
+	}
+
+	static int bucket(final long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(value);
+		final int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exponent - 4) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return The smallest value that lands in the bucket.
+	 */
+	static long lowest(final int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		final int exponent = (bucket - LINEAR) / SUB_BUCKETS + 4;
+		final int sub = (bucket - LINEAR) % SUB_BUCKETS;
+		return (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+	}
+
+	private static int stripes() {
+		int stripes = 1;
+		while (stripes < Runtime.getRuntime().availableProcessors()
+				&& stripes < 8) {
+			stripes <<= 1;
+		}
+		return stripes;
+	}
+
+	/**
+	 * An immutable copy of a histogram. Percentiles are accurate to the
+	 * bucket, within 12.5%.
+	 */
+	public static final class Snapshot {
+
+		private final long[] counts;
+		private final long count;
+		private final long sum;
+		private final long max;
+
+		Snapshot(final long[] counts, final long sum, final long max) {
+			this.counts = counts;
+			long count = 0;
+			for (final long bucket : counts) {
+				count += bucket;
+			}
+			this.count = count;
+			this.sum = sum;
+			this.max = max;
+		}
+
+		/**
+		 * @return What was recorded after the earlier snapshot of the same
+		 *         histogram. The max stays the overall max.
+		 */
+		public Snapshot since(final Snapshot earlier) {
+			final long[] delta = new long[counts.length];
+			for (int i = 0; i < delta.length; i++) {
+				delta[i] = Math.max(0, counts[i] - earlier.counts[i]);
+			}
+			return new Snapshot(delta, sum - earlier.sum, max);
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return count == 0 ? 0 : (double) sum / count;
+		}
+
+		public long getMax() {
+			return max;
+		}
+
+		/**
+		 * @param percentile
+		 *            0 to 100.
+		 */
+		public long getPercentile(final double percentile) {
+			if (count == 0) {
+				return 0;
+			}
+			final long rank = Math.max(1,
+					(long) Math.ceil(count * percentile / 100));
+			long seen = 0;
+			for (int i = 0; i < counts.length; i++) {
+				seen += counts[i];
+				if (seen >= rank) {
+					return Math.min(lowest(i), max);
+				}
+			}
+			return max;
+		}
+
+		public long getP50() {
+			return getPercentile(50);
+		}
+
+		public long getP99() {
+			return getPercentile(99);
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " mean=" + Math.round(getMean())
+					+ " p50=" + getP50() + " p90=" + getPercentile(90)
+					+ " p99=" + getP99() + " max=" + max;
+		}
+	}
+
+}
@@ -0,0 +1,322 @@
+package org.gnet.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Asynchronous logging for the I/O paths. The level is checked before
+ * anything else, so disabled messages cost a field read. Enabled ones are
+ * parameterized: the pattern and its arguments ({} marks where each goes)
+ * are put in a ring buffer as they are, no String is built and long
+ * arguments aren't boxed. A single appender thread formats them and hands
+ * them to each logs {@link LogSink}, and sleeps while there is nothing to
+ * write.
+ *
+ * Logging never blocks. If the appender falls a whole ring behind, messages
+ * are dropped and counted, see {@link #getDropped()}.
+ */
+public final class Log {
+
+	private static final int CAPACITY = 8192;
+	private static final int MASK = CAPACITY - 1;
+	private static final int MAX_ARGS = 2;
+	// Empty drains before the appender parks, bursts rarely pause longer.
+	private static final int SPINS = 100;
+
+	private static final Event[] RING = new Event[CAPACITY];
+	// Next sequence to claim and next one to format. Producers may only
+	// claim sequences less than a ring ahead of the appender.
+	private static final AtomicLong CLAIMED = new AtomicLong();
+	private static volatile long consumed;
+	private static final LongAdder DROPPED = new LongAdder();
+	private static final ReentrantLock DRAIN_LOCK = new ReentrantLock();
+	private static final StringBuilder FORMAT = new StringBuilder(256);
+	private static final Thread APPENDER;
+	// Set while the appender is about to park, producers then wake it.
+	private static volatile boolean idle;
+
+	// Marks an argument passed as a long.
+	private static final Object LONG = new Object();
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			RING[i] = new Event();
+		}
+		APPENDER = new Thread(new Runnable() {
+			public void run() {
+				int empty = 0;
+				while (true) {
+					if (drain()) {
+						empty = 0;
+					} else if (++empty < SPINS) {
+						Thread.yield();
+					} else {
+						idle = true;
+						// A message published before idle was seen is
+						// drained here, any later one unparks.
+						if (!drain()) {
+							LockSupport.park();
+						}
+						idle = false;
+						empty = 0;
+					}
+				}
+			}
+		}, "GNet-Log");
+		APPENDER.setDaemon(true);
+		APPENDER.start();
+		// Don't lose the last messages when the JVM exits.
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				flush();
+			}
+		}, "GNet-Log-Flush"));
+	}
+
+	private final LogSink sink;
+	private volatile int threshold = LogLevel.DEBUG.ordinal();
+
+	public Log(final LogSink sink) {
+		this.sink = sink;
+	}
+
+	/**
+	 * Let messages of this level and above through, DEBUG by default.
+	 */
+	public void setLevel(final LogLevel level) {
+		threshold = level.ordinal();
+	}
+
+	public LogLevel getLevel() {
+		return LogLevel.values()[threshold];
+	}
+
+	public boolean isEnabled(final LogLevel level) {
+		return level.ordinal() >= threshold && level != LogLevel.OFF;
+	}
+
+	public boolean isTraceEnabled() {
+		return threshold == 0;
+	}
+
+	/**
+	 * Format and write everything logged so far on the calling thread.
+	 */
+	public static void flush() {
+		while (drain()) {
+			// Keep going until the ring is empty.
+		}
+	}
+
+	/**
+	 * @return Messages dropped because the appender couldn't keep up.
+	 */
+	public static long getDropped() {
+		return DROPPED.sum();
+	}
+
+	public void log(final LogLevel level, final String pattern) {
+		if (isEnabled(level)) {
+			publish(level, pattern, 0, null, 0, null, 0);
+		}
+	}
+
+	public void log(final LogLevel level, final String pattern,
+			final Object arg) {
+		if (isEnabled(level)) {
+			publish(level, pattern, 1, arg, 0, null, 0);
+		}
+	}
+
+	public void log(final LogLevel level, final String pattern, final long arg) {
+		if (isEnabled(level)) {
+			publish(level, pattern, 1, LONG, arg, null, 0);
+		}
+	}
+
+	public void log(final LogLevel level, final String pattern,
+			final Object arg0, final Object arg1) {
+		if (isEnabled(level)) {
+			publish(level, pattern, 2, arg0, 0, arg1, 0);
+		}
+	}
+
+	public void log(final LogLevel level, final String pattern,
+			final long arg0, final Object arg1) {
+		if (isEnabled(level)) {
+			publish(level, pattern, 2, LONG, arg0, arg1, 0);
+		}
+	}
+
+	public void log(final LogLevel level, final String pattern,
+			final Object arg0, final long arg1) {
+		if (isEnabled(level)) {
+			publish(level, pattern, 2, arg0, 0, LONG, arg1);
+		}
+	}
+
+	public void log(final LogLevel level, final String pattern,
+			final long arg0, final long arg1) {
+		if (isEnabled(level)) {
+			publish(level, pattern, 2, LONG, arg0, LONG, arg1);
+		}
+	}
+
+	public void trace(final String pattern) {
+		log(LogLevel.TRACE, pattern);
+	}
+
+	public void trace(final String pattern, final Object arg) {
+		log(LogLevel.TRACE, pattern, arg);
+	}
+
+	public void trace(final String pattern, final long arg0, final Object arg1) {
+		log(LogLevel.TRACE, pattern, arg0, arg1);
+	}
+
+	public void debug(final String pattern) {
+		log(LogLevel.DEBUG, pattern);
+	}
+
+	public void debug(final String pattern, final Object arg) {
+		log(LogLevel.DEBUG, pattern, arg);
+	}
+
+	public void debug(final String pattern, final long arg) {
+		log(LogLevel.DEBUG, pattern, arg);
+	}
+
+	public void debug(final String pattern, final Object arg0,
+			final Object arg1) {
+		log(LogLevel.DEBUG, pattern, arg0, arg1);
+	}
+
+	public void debug(final String pattern, final long arg0, final Object arg1) {
+		log(LogLevel.DEBUG, pattern, arg0, arg1);
+	}
+
+	public void debug(final String pattern, final Object arg0, final long arg1) {
+		log(LogLevel.DEBUG, pattern, arg0, arg1);
+	}
+
+	public void debug(final String pattern, final long arg0, final long arg1) {
+		log(LogLevel.DEBUG, pattern, arg0, arg1);
+	}
+
+	public void error(final String pattern) {
+		log(LogLevel.ERROR, pattern);
+	}
+
+	public void error(final String pattern, final Object arg) {
+		log(LogLevel.ERROR, pattern, arg);
+	}
+
+	public void error(final String pattern, final Object arg0,
+			final Object arg1) {
+		log(LogLevel.ERROR, pattern, arg0, arg1);
+	}
+
+	private void publish(final LogLevel level, final String pattern,
+			final int args, final Object arg0, final long long0,
+			final Object arg1, final long long1) {
+		long sequence;
+		do {
+			sequence = CLAIMED.get();
+			if (sequence - consumed >= CAPACITY) {
+				// The appender is a whole ring behind, never wait for it.
+				DROPPED.increment();
+				return;
+			}
+		} while (!CLAIMED.compareAndSet(sequence, sequence + 1));
+		final Event event = RING[(int) sequence & MASK];
+		event.log = this;
+		event.level = level;
+		event.pattern = pattern;
+		event.args = args;
+		event.objects[0] = arg0;
+		event.longs[0] = long0;
+		event.objects[1] = arg1;
+		event.longs[1] = long1;
+		// Publish, the appender reads the event once it sees its sequence.
+		event.sequence = sequence;
+		if (idle) {
+			LockSupport.unpark(APPENDER);
+		}
+	}
+
+	/**
+	 * Format and write the published messages.
+	 *
+	 * @return Whether there were any.
+	 */
+	private static boolean drain() {
+		DRAIN_LOCK.lock();
+		try {
+			long next = consumed;
+			Event event = RING[(int) next & MASK];
+			if (event.sequence != next) {
+				return false;
+			}
+			do {
+				final Log log = event.log;
+				final LogLevel level = event.level;
+				final String message = event.format(FORMAT);
+				event.clear();
+				// Frees the slot for producers.
+				consumed = ++next;
+				try {
+					log.sink.write(level, message);
+				} catch (final RuntimeException e) {
+					e.printStackTrace();
+				}
+				event = RING[(int) next & MASK];
+			} while (event.sequence == next);
+			return true;
+		} finally {
+			DRAIN_LOCK.unlock();
+		}
+	}
+
+	private static final class Event {
+
+		volatile long sequence = -1;
+		Log log;
+		LogLevel level;
+		String pattern;
+		int args;
+		final Object[] objects = new Object[MAX_ARGS];
+		final long[] longs = new long[MAX_ARGS];
+
+		String format(final StringBuilder out) {
+			if (args == 0) {
+				return pattern;
+			}
+			out.setLength(0);
+			int arg = 0;
+			int from = 0;
+			int at;
+			while (arg < args && (at = pattern.indexOf("{}", from)) >= 0) {
+				out.append(pattern, from, at);
+				if (objects[arg] == LONG) {
+					out.append(longs[arg]);
+				} else {
+					out.append(objects[arg]);
+				}
+				arg++;
+				from = at + 2;
+			}
+			out.append(pattern, from, pattern.length());
+			return out.toString();
+		}
+
+		void clear() {
+			log = null;
+			pattern = null;
+			objects[0] = null;
+			objects[1] = null;
+		}
+	}
+
+}
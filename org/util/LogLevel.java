@@ -0,0 +1,29 @@
+package org.gnet.util;
+
+/**
+ * How much a {@link Log} lets through, from everything to nothing.
+ */
+public enum LogLevel {
+
+	/**
+	 * Every packet sent and received.
+	 */
+	TRACE,
+
+	/**
+	 * Connections coming and going, startup and shutdown.
+	 */
+	DEBUG,
+
+	INFO,
+
+	WARN,
+
+	ERROR,
+
+	/**
+	 * Nothing at all.
+	 */
+	OFF;
+
+}
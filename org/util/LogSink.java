@@ -0,0 +1,27 @@
+package org.gnet.util;
+
+import java.io.PrintStream;
+
+/**
+ * Where a {@link Log}s messages end up. Called on the logs appender thread,
+ * one message at a time.
+ */
+public abstract class LogSink {
+
+	protected abstract void write(LogLevel level, String message);
+
+	/**
+	 * @return A sink printing to System.out, or System.err from WARN up.
+	 */
+	public static LogSink console(final String prefix) {
+		return new LogSink() {
+			@Override
+			protected void write(final LogLevel level, final String message) {
+				final PrintStream out = level.compareTo(LogLevel.WARN) >= 0 ? System.err
+						: System.out;
+				out.println(prefix + message);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,316 @@
+package org.gnet.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A uniform grid of square cells for finding items near a point. Looking up
+ * the items within a radius visits only the cells the radius overlaps, so it
+ * costs about the same per item found however many items there are.
+ *
+ * Position updates and removals are only queued, {@link #flush()} applies
+ * them all at once, usually once per tick. Queueing never locks and a later
+ * update of the same item replaces an earlier one. Queries see the
+ * positions as of the last flush and run in parallel with each other.
+ *
+ * @param <T>
+ *            The item type, compared by equals().
+ */
+public final class SpatialGrid<T> {
+
+	/**
+	 * Called for every item a query finds.
+	 */
+	public abstract static class Visitor<T> {
+		protected abstract void visit(T item);
+	}
+
+	private final float cellSize;
+	private final ConcurrentHashMap<T, Entry<T>> entries = new ConcurrentHashMap<T, Entry<T>>();
+	private final ConcurrentLinkedQueue<Entry<T>> dirty = new ConcurrentLinkedQueue<Entry<T>>();
+
+	// Cells by packed coordinates, only touched under the lock.
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final HashMap<Long, Cell<T>> cells = new HashMap<Long, Cell<T>>();
+
+	/**
+	 * @param cellSize
+	 *            Cell width and height, about the typical query radius works
+	 *            well.
+	 */
+	public SpatialGrid(final float cellSize) {
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("Invalid cell size: " + cellSize);
+		}
+		this.cellSize = cellSize;
+	}
+
+	public float getCellSize() {
+		return cellSize;
+	}
+
+	/**
+	 * Queue a position update, applied by the next flush.
+	 */
+	public void update(final T item, final float x, final float y) {
+		Entry<T> entry = entries.get(item);
+		if (entry == null) {
+			final Entry<T> created = new Entry<T>(item);
+			entry = entries.putIfAbsent(item, created);
+			if (entry == null) {
+				entry = created;
+			}
+		}
+		entry.pending = pack(x, y);
+		entry.pendingRemoval = false;
+		if (entry.queued.compareAndSet(false, true)) {
+			dirty.add(entry);
+		}
+	}
+
+	/**
+	 * Queue removing an item, applied by the next flush.
+	 */
+	public void remove(final T item) {
+		final Entry<T> entry = entries.get(item);
+		if (entry == null) {
+			return;
+		}
+		entry.pendingRemoval = true;
+		if (entry.queued.compareAndSet(false, true)) {
+			dirty.add(entry);
+		}
+	}
+
+	/**
+	 * Apply the queued updates and removals.
+	 *
+	 * @return The number of items that moved, came or went.
+	 */
+	public int flush() {
+		if (dirty.isEmpty()) {
+			return 0;
+		}
+		int applied = 0;
+		lock.writeLock().lock();
+		try {
+			Entry<T> entry;
+			while ((entry = dirty.poll()) != null) {
+				// Clear first, updates from now on queue the entry again.
+				entry.queued.set(false);
+				if (entry.pendingRemoval) {
+					if (entry.cell != null) {
+						leave(entry);
+					}
+					entries.remove(entry.item, entry);
+				} else if (entries.get(entry.item) == entry) {
+					move(entry, entry.pending);
+				}
+				applied++;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		return applied;
+	}
+
+	/**
+	 * Visit every item within radius of the point, as of the last flush.
+	 *
+	 * @return The number of items visited.
+	 */
+	public int query(final float x, final float y, final float radius,
+			final Visitor<? super T> visitor) {
+		final float squared = radius * radius;
+		final boolean finite = Float.isFinite(x - radius)
+				&& Float.isFinite(x + radius) && Float.isFinite(y - radius)
+				&& Float.isFinite(y + radius);
+		// Cell numbers saturate at the ends of the int range, in long so
+		// neither the spans nor the loops overflow.
+		final long minX = cell(x - radius);
+		final long maxX = cell(x + radius);
+		final long minY = cell(y - radius);
+		final long maxY = cell(y + radius);
+		final long spanX = maxX - minX + 1;
+		final long spanY = maxY - minY + 1;
+		int found = 0;
+		lock.readLock().lock();
+		try {
+			final int size = cells.size();
+			if (!finite || spanX > size || spanY > size
+					|| spanX * spanY > size) {
+				// Fewer cells exist than the radius covers, check them all.
+				for (final Cell<T> c : cells.values()) {
+					found += visit(c, x, y, squared, visitor);
+				}
+				return found;
+			}
+			for (long cx = minX; cx <= maxX; cx++) {
+				for (long cy = minY; cy <= maxY; cy++) {
+					final Cell<T> c = cells.get(key((int) cx, (int) cy));
+					if (c != null) {
+						found += visit(c, x, y, squared, visitor);
+					}
+				}
+			}
+			return found;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Whether the item is in the grid, as of the last flush.
+	 */
+	public boolean contains(final T item) {
+		final Entry<T> entry = entries.get(item);
+		if (entry == null) {
+			return false;
+		}
+		lock.readLock().lock();
+		try {
+			return entry.cell != null;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of items in the grid, as of the last flush.
+	 */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			int size = 0;
+			for (final Iterator<Cell<T>> it = cells.values().iterator(); it
+					.hasNext();) {
+				size += it.next().size;
+			}
+			return size;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of updates and removals waiting for a flush.
+	 */
+	public int getPending() {
+		return dirty.size();
+	}
+
+	private int visit(final Cell<T> c, final float x, final float y,
+			final float squared, final Visitor<? super T> visitor) {
+		int found = 0;
+		for (int i = 0; i < c.size; i++) {
+			final Entry<T> entry = c.entries[i];
+			final float dx = entry.x - x;
+			final float dy = entry.y - y;
+			if (dx * dx + dy * dy <= squared) {
+				visitor.visit(entry.item);
+				found++;
+			}
+		}
+		return found;
+	}
+
+	private void move(final Entry<T> entry, final long position) {
+		final float x = Float.intBitsToFloat((int) (position >>> 32));
+		final float y = Float.intBitsToFloat((int) position);
+		final long key = key(cell(x), cell(y));
+		entry.x = x;
+		entry.y = y;
+		if (entry.cell != null) {
+			if (entry.cell.key == key) {
+				// Moved within its cell.
+				return;
+			}
+			leave(entry);
+		}
+		Cell<T> c = cells.get(key);
+		if (c == null) {
+			c = new Cell<T>(key);
+			cells.put(key, c);
+		}
+		c.add(entry);
+	}
+
+	private void leave(final Entry<T> entry) {
+		final Cell<T> c = entry.cell;
+		c.remove(entry);
+		if (c.size == 0) {
+			cells.remove(c.key);
+		}
+	}
+
+	private int cell(final float coordinate) {
+		return (int) Math.floor(coordinate / cellSize);
+	}
+
+	private static long key(final int cx, final int cy) {
+		return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+	}
+
+	// Both coordinates in one long, so a racing flush never sees half an
+	// update.
+	private static long pack(final float x, final float y) {
+		return ((long) Float.floatToRawIntBits(x) << 32)
+				| (Float.floatToRawIntBits(y) & 0xFFFFFFFFL);
+	}
+
+	private static final class Entry<T> {
+
+		final T item;
+		final AtomicBoolean queued = new AtomicBoolean();
+		volatile long pending;
+		volatile boolean pendingRemoval;
+
+		// Applied state, only touched under the lock.
+		float x;
+		float y;
+		Cell<T> cell;
+		int index;
+
+		Entry(final T item) {
+			this.item = item;
+		}
+
+	}
+
+	private static final class Cell<T> {
+
+		final long key;
+		@SuppressWarnings("unchecked")
+		Entry<T>[] entries = (Entry<T>[]) new Entry<?>[8];
+		int size;
+
+		Cell(final long key) {
+			this.key = key;
+		}
+
+		void add(final Entry<T> entry) {
+			if (size == entries.length) {
+				entries = Arrays.copyOf(entries, size * 2);
+			}
+			entry.cell = this;
+			entry.index = size;
+			entries[size++] = entry;
+		}
+
+		void remove(final Entry<T> entry) {
+			// Swap the last entry into the gap.
+			final Entry<T> last = entries[--size];
+			entries[entry.index] = last;
+			last.index = entry.index;
+			entries[size] = null;
+			entry.cell = null;
+		}
+
+	}
+
+}
@@ -0,0 +1,66 @@
+package org.gnet.util;
+
+import java.lang.reflect.Method;
+
+/**
+ * Creates the threads GNetServer and GNetClient run on. Virtual threads are
+ * looked up reflectively so the library still runs on JDKs without them, in
+ * which case platform threads are used instead.
+ */
+public final class Threads {
+
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (final Exception e) {
+			// Pre JDK 21, no virtual threads available.
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_UNSTARTED = unstarted;
+	}
+
+	private Threads() {
+	}
+
+	public static boolean isVirtualSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Create an unstarted thread.
+	 *
+	 * @param task
+	 *            The task to run.
+	 * @param name
+	 *            The threads name.
+	 * @param virtual
+	 *            True to create a virtual thread if the JDK supports them.
+	 * @return The new thread.
+	 */
+	public static Thread newThread(final Runnable task, final String name,
+			final boolean virtual) {
+		if (virtual && OF_VIRTUAL != null) {
+			try {
+				final Object builder = BUILDER_NAME.invoke(
+						OF_VIRTUAL.invoke(null), name);
+				return (Thread) BUILDER_UNSTARTED.invoke(builder, task);
+			} catch (final Exception e) {
+				// Fall through to a platform thread.
+			}
+		}
+		return new Thread(task, name);
+	}
+
+}
@@ -1,45 +1,155 @@
 package org.gnet.util;
 
-import java.util.ArrayList;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Hands out unique IDs from a fixed number of slots. Allocating and releasing
+ * is O(1) and lock free, released slots are recycled through a free list so
+ * memory stays bounded no matter how many connections come and go.
+ *
+ * An ID is min + slot + capacity * tag. Without random IDs the tag is always
+ * 0, with random IDs it is picked at random on every allocation so IDs can't
+ * be guessed from earlier ones (the more room max - min leaves per slot, the
+ * harder they are to guess).
+ */
 public class UIDGenerator {
+
+	/**
+	 * Slots used by {@link #UIDGenerator(int, String)}.
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 17;
+
 	private final int min;
-	private final int length;
-	private final String string;
-	private final ArrayList<Integer> list;
+	private final int capacity;
+	private final int tags;
+	private final SecureRandom random;
 
+	// The ID each slot currently holds, 0 while free.
+	private final AtomicIntegerArray ids;
+	// Free list links, slot + 1 of the next free slot or 0 at the end.
+	private final AtomicIntegerArray next;
+	// Free list head as slot + 1 in the low half, plus a stamp in the high
+	// half so a slot popped and pushed back meanwhile fails the CAS.
+	private final AtomicLong head = new AtomicLong();
+	// Slots below this have been handed out before.
+	private final AtomicInteger used = new AtomicInteger();
+
+	/**
+	 * Random IDs that are exactly as many digits long as length, e.g.
+	 * "99999999" for 8 digit IDs.
+	 *
+	 * @param min
+	 *            Unused, IDs never start with a 0 digit.
+	 */
 	public UIDGenerator(final int min, final String length) {
+		this(length.length() > 1 ? (int) Math.pow(10, length.length() - 1) : 1,
+				Integer.parseInt(length), DEFAULT_CAPACITY, true);
+	}
+
+	/**
+	 * @param min
+	 *            Lowest ID, must be above 0.
+	 * @param max
+	 *            Highest ID.
+	 * @param capacity
+	 *            Most IDs in use at once.
+	 * @param random
+	 *            Whether IDs should be hard to guess.
+	 */
+	public UIDGenerator(final int min, final int max, final int capacity,
+			final boolean random) {
+		if (min <= 0 || capacity <= 0 || (long) max - min + 1 < capacity) {
+			throw new IllegalArgumentException("Can't fit " + capacity
+					+ " IDs between " + min + " and " + max);
+		}
 		this.min = min;
-		this.length = length.length();
-		string = length;
-		list = new ArrayList<Integer>();
-		// System.out.println("New UIDGenerator created. (length: " +
-		// this.length + ")");
+		this.capacity = capacity;
+		tags = (int) (((long) max - min + 1) / capacity);
+		this.random = random && tags > 1 ? new SecureRandom() : null;
+		ids = new AtomicIntegerArray(capacity);
+		next = new AtomicIntegerArray(capacity);
 	}
 
+	/**
+	 * @return A free ID, or -1 if all of them are in use.
+	 */
 	public int generateUID() {
-		final String id = new RandomInt(0, Integer.parseInt(string))
-				.generateRandom() + "";
-		if (!(id.length() == length)) {
-			// System.out.println("Regenerating, length!=length (" +
-			// Integer.parseInt(id) + ")");
-			// System.out.println("Error: " + id.length() + " <-> " + length);
-			return generateUID();
-
-		} else {
-			final int idNum = Integer.parseInt(id);
-			if (!list.contains(idNum)) {
-				list.add(idNum);
-				// System.out.println("ADDED NEW UID: " + idNum);
-				return idNum;
-			} else if (list.contains(idNum)) {
-				// System.out.println("Regenerating, list.contains(id) (" +
-				// idNum + ")");
-				return generateUID();
-			} else {
-				return -1;
+		final int slot = allocateSlot();
+		if (slot < 0) {
+			return -1;
+		}
+		final int tag = random != null ? random.nextInt(tags) : 0;
+		final int id = min + slot + capacity * tag;
+		ids.set(slot, id);
+		return id;
+	}
+
+	/**
+	 * Give an ID back so it can be handed out again. Releasing an ID that
+	 * isn't in use does nothing.
+	 *
+	 * @return Whether the ID was in use.
+	 */
+	public boolean releaseUID(final int id) {
+		final int slot = slotOf(id);
+		if (slot < 0 || !ids.compareAndSet(slot, id, 0)) {
+			return false;
+		}
+		long current;
+		do {
+			current = head.get();
+			next.set(slot, (int) current);
+		} while (!head.compareAndSet(current, stamped(current, slot + 1)));
+		return true;
+	}
+
+	public boolean isInUse(final int id) {
+		final int slot = slotOf(id);
+		return slot >= 0 && ids.get(slot) == id;
+	}
+
+	/**
+	 * @return Most IDs in use at once.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	private int allocateSlot() {
+		// Recycle a released slot first.
+		long current;
+		while ((int) (current = head.get()) != 0) {
+			final int slot = (int) current - 1;
+			if (head.compareAndSet(current, stamped(current, next.get(slot)))) {
+				return slot;
+			}
+		}
+
+		// Nothing released, take a slot that was never used.
+		int slot;
+		while ((slot = used.get()) < capacity) {
+			if (used.compareAndSet(slot, slot + 1)) {
+				return slot;
 			}
+		}
+
+		// A slot may have been released meanwhile.
+		return (int) head.get() != 0 ? allocateSlot() : -1;
+	}
 
+	private int slotOf(final int id) {
+		final long offset = (long) id - min;
+		if (offset < 0 || offset >= (long) capacity * tags) {
+			return -1;
 		}
+		return (int) (offset % capacity);
 	}
+
+	private static long stamped(final long current, final int slotPlusOne) {
+		return ((current >>> 32) + 1) << 32 | (slotPlusOne & 0xffffffffL);
+	}
+
 }
@@ -0,0 +1,380 @@
+package org.gnet.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Runs handlers off the I/O threads. Every worker owns a bounded ring, and a
+ * connection always lands on the same worker (picked by its key), so each
+ * connections messages are handled one at a time, in the order they arrived,
+ * while different connections run in parallel.
+ *
+ * A full ring blocks the submitting thread until its worker catches up,
+ * which pushes back on the sender through TCP rather than queueing without
+ * bound. Threads serving many connections must not block for one of them,
+ * they use {@link #trySubmit} instead and stop reading from just that
+ * connection until {@link Handler#drained} says the worker caught up.
+ * Messages that may be lost are {@link #offer}ed and dropped instead. How
+ * often a ring was full and how long submitters waited is counted, see
+ * {@link #getSaturated()} and {@link #getBlockedNanos()}.
+ *
+ * @param <C>
+ *            The connection type handed to the {@link Handler}.
+ */
+public final class WorkerPool<C> {
+
+	// What submitting to a full ring does.
+	private static final int WAIT = 0;
+	private static final int PAUSE = 1;
+	private static final int DROP = 2;
+
+	/**
+	 * Called on a worker thread for every submitted message.
+	 */
+	public abstract static class Handler<C> {
+		protected abstract void handle(C connection, Object message);
+
+		/**
+		 * Called on a worker once the ring a failed
+		 * {@link WorkerPool#trySubmit} went to is down to half its capacity.
+		 * Does nothing by default.
+		 */
+		protected void drained(final C connection) {
+		}
+	}
+
+	private final String name;
+	private final Handler<C> handler;
+	private final Ring[] rings;
+	private final int capacity;
+	private final boolean virtual;
+	private volatile boolean running;
+
+	private final LongAdder submitted = new LongAdder();
+	private final LongAdder saturated = new LongAdder();
+	private final LongAdder blockedNanos = new LongAdder();
+	// Time from submit until a worker picked the message up.
+	private final Histogram queueNanos = new Histogram();
+	// Messages waiting on the ring a message was submitted to, itself included.
+	private final Histogram queueDepth = new Histogram();
+
+	/**
+	 * @param workers
+	 *            Number of worker threads.
+	 * @param capacity
+	 *            Messages each worker can have waiting, rounded up to a power
+	 *            of two.
+	 * @param virtual
+	 *            True to run the workers on virtual threads if the JDK has
+	 *            them.
+	 */
+	public WorkerPool(final String name, final int workers, final int capacity,
+			final boolean virtual, final Handler<C> handler) {
+		if (workers <= 0 || capacity <= 0) {
+			throw new IllegalArgumentException(
+					"Workers and capacity must be positive.");
+		}
+		this.name = name;
+		this.handler = handler;
+		this.virtual = virtual;
+		int rounded = 1;
+		while (rounded < capacity) {
+			rounded <<= 1;
+		}
+		this.capacity = rounded;
+		rings = new Ring[workers];
+		for (int i = 0; i < workers; i++) {
+			rings[i] = new Ring(this.capacity);
+		}
+	}
+
+	public synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		for (int i = 0; i < rings.length; i++) {
+			final Ring ring = rings[i];
+			final Thread thread = Threads.newThread(new Runnable() {
+				public void run() {
+					work(ring);
+				}
+			}, name + "-" + i, virtual);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Let the workers finish what is queued, then stop them. Messages
+	 * submitted afterwards are handled on the submitting thread.
+	 */
+	public synchronized void shutdown() {
+		if (!running) {
+			return;
+		}
+		running = false;
+		for (final Ring ring : rings) {
+			ring.lock.lock();
+			try {
+				ring.notEmpty.signalAll();
+			} finally {
+				ring.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Queue a message for the connections worker, waiting for room if the
+	 * worker is a whole ring behind.
+	 *
+	 * @param key
+	 *            Identifies the connection, equal keys share a worker.
+	 */
+	public void submit(final int key, final C connection, final Object message) {
+		submit(key, connection, message, WAIT);
+	}
+
+	/**
+	 * Queue a message for the connections worker without ever waiting. A
+	 * full ring takes it anyway, the caller should then stop taking in more
+	 * from the connection until {@link Handler#drained} is called for it.
+	 *
+	 * @return False if the ring is full.
+	 */
+	public boolean trySubmit(final int key, final C connection,
+			final Object message) {
+		return submit(key, connection, message, PAUSE);
+	}
+
+	/**
+	 * Queue a message for the connections worker unless the ring is full,
+	 * never waiting.
+	 *
+	 * @return False if the ring is full, the message wasn't queued.
+	 */
+	public boolean offer(final int key, final C connection,
+			final Object message) {
+		return submit(key, connection, message, DROP);
+	}
+
+	private boolean submit(final int key, final C connection,
+			final Object message, final int whenFull) {
+		final Ring ring = rings[((key * 0x9E3779B9) >>> 1) % rings.length];
+		final long now = System.nanoTime();
+		int depth;
+		boolean full = false;
+		ring.lock.lock();
+		try {
+			if (!running) {
+				// Stopped, nobody would pick it up.
+				depth = -1;
+			} else {
+				if (ring.size >= capacity) {
+					saturated.increment();
+					if (whenFull == WAIT) {
+						do {
+							ring.notFull.awaitUninterruptibly();
+						} while (ring.size >= capacity);
+						blockedNanos.add(System.nanoTime() - now);
+					} else if (whenFull == PAUSE) {
+						full = true;
+						ring.paused.add(connection);
+					} else {
+						return false;
+					}
+				}
+				if (ring.size == ring.messages.length) {
+					// Only non-waiting submitters get past capacity.
+					ring.grow();
+				}
+				final int slot = ring.tail;
+				ring.connections[slot] = connection;
+				ring.messages[slot] = message;
+				ring.times[slot] = now;
+				ring.tail = slot + 1 & ring.mask;
+				depth = ++ring.size;
+				if (depth == 1) {
+					ring.notEmpty.signal();
+				}
+			}
+		} finally {
+			ring.lock.unlock();
+		}
+		if (depth < 0) {
+			handler.handle(connection, message);
+			return true;
+		}
+		submitted.increment();
+		queueDepth.record(depth);
+		return !full;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void work(final Ring ring) {
+		final List<Object> drained = new ArrayList<Object>();
+		while (true) {
+			final Object connection;
+			final Object message;
+			final long queued;
+			ring.lock.lock();
+			try {
+				while (ring.size == 0) {
+					if (!running) {
+						return;
+					}
+					ring.notEmpty.awaitUninterruptibly();
+				}
+				final int slot = ring.head;
+				connection = ring.connections[slot];
+				message = ring.messages[slot];
+				queued = ring.times[slot];
+				ring.connections[slot] = null;
+				ring.messages[slot] = null;
+				ring.head = slot + 1 & ring.mask;
+				if (ring.size-- == capacity) {
+					ring.notFull.signalAll();
+				}
+				if (!ring.paused.isEmpty() && ring.size <= capacity / 2) {
+					drained.addAll(ring.paused);
+					ring.paused.clear();
+				}
+			} finally {
+				ring.lock.unlock();
+			}
+			for (int i = 0; i < drained.size(); i++) {
+				try {
+					handler.drained((C) drained.get(i));
+				} catch (final RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+			drained.clear();
+			queueNanos.record(System.nanoTime() - queued);
+			try {
+				handler.handle((C) connection, message);
+			} catch (final RuntimeException e) {
+				// One bad message mustn't stop the worker.
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public int getWorkers() {
+		return rings.length;
+	}
+
+	/**
+	 * @return Messages each worker can have waiting.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return Messages waiting right now, over all workers.
+	 */
+	public int getQueued() {
+		int queued = 0;
+		for (final Ring ring : rings) {
+			queued += ring.size;
+		}
+		return queued;
+	}
+
+	/**
+	 * @return Messages waiting for the most backed up worker.
+	 */
+	public int getMaxQueued() {
+		int max = 0;
+		for (final Ring ring : rings) {
+			max = Math.max(max, ring.size);
+		}
+		return max;
+	}
+
+	public long getSubmitted() {
+		return submitted.sum();
+	}
+
+	/**
+	 * @return How often a submit found its workers ring full and had to wait.
+	 */
+	public long getSaturated() {
+		return saturated.sum();
+	}
+
+	/**
+	 * @return Total time submitters spent waiting for room.
+	 */
+	public long getBlockedNanos() {
+		return blockedNanos.sum();
+	}
+
+	/**
+	 * @return How long messages waited before a worker picked them up.
+	 */
+	public Histogram.Snapshot getQueueNanos() {
+		return queueNanos.snapshot();
+	}
+
+	/**
+	 * @return How many messages were waiting on a ring right after a submit.
+	 */
+	public Histogram.Snapshot getQueueDepth() {
+		return queueDepth.snapshot();
+	}
+
+	private static final class Ring {
+
+		Object[] connections;
+		Object[] messages;
+		long[] times;
+		int mask;
+		int head;
+		int tail;
+		// Written under the lock, read without it by the getters.
+		volatile int size;
+		// Connections a trySubmit() found the ring full for.
+		final LinkedHashSet<Object> paused = new LinkedHashSet<Object>();
+
+		final ReentrantLock lock = new ReentrantLock();
+		final Condition notEmpty = lock.newCondition();
+		final Condition notFull = lock.newCondition();
+
+		Ring(final int capacity) {
+			connections = new Object[capacity];
+			messages = new Object[capacity];
+			times = new long[capacity];
+			mask = capacity - 1;
+		}
+
+		void grow() {
+			final int length = messages.length * 2;
+			final Object[] grownConnections = new Object[length];
+			final Object[] grownMessages = new Object[length];
+			final long[] grownTimes = new long[length];
+			for (int i = 0; i < size; i++) {
+				final int index = head + i & mask;
+				grownConnections[i] = connections[index];
+				grownMessages[i] = messages[index];
+				grownTimes[i] = times[index];
+			}
+			connections = grownConnections;
+			messages = grownMessages;
+			times = grownTimes;
+			mask = length - 1;
+			head = 0;
+			tail = size;
+		}
+	}
+
+}